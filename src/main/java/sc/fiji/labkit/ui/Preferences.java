@@ -30,6 +30,7 @@
 package sc.fiji.labkit.ui;
 
 import org.scijava.Context;
+import sc.fiji.labkit.ui.models.DefaultCachedImageFactory;
 import org.scijava.prefs.PrefService;
 
 import java.util.Arrays;
@@ -60,4 +61,51 @@ public class Preferences {
 		labels.forEach(joiner::add);
 		prefService.put(Preferences.class, KEY, joiner.toString());
 	}
+
+	private static final String CACHE_SIZE_KEY = "cache_size_mb";
+
+	/**
+	 * Returns the memory budget, in megabytes, that is shared by all cached
+	 * segmentations and probability maps. Zero means that a quarter of the
+	 * maximum heap size is used.
+	 */
+	public long getCacheSizeInMegabytes() {
+		return prefService.getLong(Preferences.class, CACHE_SIZE_KEY, 0);
+	}
+
+	public void setCacheSizeInMegabytes(long megabytes) {
+		prefService.put(Preferences.class, CACHE_SIZE_KEY, megabytes);
+		DefaultCachedImageFactory.setMaxCacheSizeInBytes(megabytes << 20);
+	}
+
+	private static final String BINARY_LABELING_KEY = "binary_labeling_format";
+
+	/**
+	 * Returns true, if *.labeling files should be saved in the compact binary
+	 * format instead of JSON. The default is JSON.
+	 */
+	public boolean isBinaryLabelingFormat() {
+		return prefService.getBoolean(Preferences.class, BINARY_LABELING_KEY,
+			false);
+	}
+
+	public void setBinaryLabelingFormat(boolean binary) {
+		prefService.put(Preferences.class, BINARY_LABELING_KEY, binary);
+	}
+
+	private static final String KEEP_PREVIOUS_SEGMENTATION_KEY =
+		"keep_previous_segmentation";
+
+	/**
+	 * Returns true, if the previous segmentation should stay visible while a
+	 * classifier is retrained, until the new segmentation is computed.
+	 */
+	public boolean isKeepPreviousSegmentation() {
+		return prefService.getBoolean(Preferences.class,
+			KEEP_PREVIOUS_SEGMENTATION_KEY, false);
+	}
+
+	public void setKeepPreviousSegmentation(boolean keep) {
+		prefService.put(Preferences.class, KEEP_PREVIOUS_SEGMENTATION_KEY, keep);
+	}
 }
@@ -52,6 +52,8 @@ public abstract class AbstractFileIoAction {
 		"Labeling (*.labeling)", "labeling");
 	public static final FileFilter HDF5_FILTER = new FileNameExtensionFilter(
 		"HDF5 + XML (*.h5, *.xml)", "h5", "xml");
+	public static final FileFilter N5_FILTER = new FileNameExtensionFilter(
+		"N5 Directory (*.n5)", "n5");
 
 	protected final Extensible extensible;
 
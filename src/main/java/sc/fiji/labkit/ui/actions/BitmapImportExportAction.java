@@ -91,7 +91,9 @@ public class BitmapImportExportAction extends AbstractFileIoAction {
 
 	private void exportLabel(Label label, String filename) throws IOException {
 		Labeling labeling = model.labeling().get();
-		RandomAccessibleInterval<BitType> bitmap = labeling.getRegion(label);
+		// NB: The run length region only stores the runs of the label, and is
+		// converted lazily while the bitmap is written.
+		RandomAccessibleInterval<BitType> bitmap = labeling.runLengthRegion(label);
 		Dataset dataset = datasetService.create(toUnsignedByteType(bitmap));
 		datasetIOService.save(dataset, filename);
 	}
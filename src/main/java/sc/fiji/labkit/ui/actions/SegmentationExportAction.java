@@ -33,12 +33,15 @@ import sc.fiji.labkit.ui.utils.HDF5Saver;
 import io.scif.img.ImgSaver;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.ImgView;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import sc.fiji.labkit.ui.Extensible;
 import sc.fiji.labkit.ui.models.ImageLabelingModel;
 import sc.fiji.labkit.ui.models.SegmentationItem;
 import sc.fiji.labkit.ui.models.SegmentationResultsModel;
 import bdv.export.ProgressWriter;
+import sc.fiji.labkit.ui.utils.N5DatasetWriter;
 import sc.fiji.labkit.ui.utils.ParallelUtils;
 import sc.fiji.labkit.ui.utils.progress.SwingProgressWriter;
 import net.imglib2.type.NativeType;
@@ -47,6 +50,9 @@ import net.imglib2.type.numeric.NumericType;
 
 import javax.swing.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.function.Function;
 
 /**
@@ -63,7 +69,7 @@ public class SegmentationExportAction extends AbstractFileIoAction {
 		ImageLabelingModel labelingModel)
 	{
 		super(extensible, AbstractFileIoAction.TIFF_FILTER,
-			AbstractFileIoAction.HDF5_FILTER);
+			AbstractFileIoAction.HDF5_FILTER, AbstractFileIoAction.N5_FILTER);
 		this.labelingModel = labelingModel;
 		addMenuItems("Segmentation Result",
 			SegmentationResultsModel::segmentation,
@@ -78,7 +84,7 @@ public class SegmentationExportAction extends AbstractFileIoAction {
 		Function<SegmentationItem, Double> maxResultIntensity)
 	{
 		initSaveAction(SegmentationItem.SEGMENTER_MENU,
-			"Save " + title + " as TIF / HDF5 ...", 200,
+			"Save " + title + " as TIF / HDF5 / N5 ...", 200,
 			(item, filename) -> saveImage(filename, getResultsImage.apply(item.results(labelingModel))),
 			"");
 		extensible.addMenuItem(SegmentationItem.SEGMENTER_MENU,
@@ -117,13 +123,23 @@ public class SegmentationExportAction extends AbstractFileIoAction {
 	{
 		final ProgressWriter progress = new SwingProgressWriter(null,
 			"Segment Entire Image Volume");
-		ParallelUtils.populateCachedImg(result, progress);
+		ParallelUtils.populateCachedImg(result, progress, () -> labelingModel
+			.transformationModel().visibleInterval(labelingModel.labeling().get()
+				.interval(), labelingModel.labelTransformation()));
 	}
 
 	private <T extends Type<T>> void saveImage(String filename,
-		RandomAccessibleInterval<T> image)
+		RandomAccessibleInterval<T> image) throws IOException
 	{
-		if (filename.endsWith(".h5") || filename.endsWith(".xml")) {
+		if (filename.endsWith(".n5")) {
+			// NB: N5 stores the segmentation as 8-bit and the probability map as
+			// 32-bit float, no conversion to 16-bit is needed.
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			RandomAccessibleInterval rawImage = image;
+			N5DatasetWriter.writeImage(rawImage, new File(filename), blockSize(image),
+				new SwingProgressWriter(extensible.dialogParent(), "Save Image"));
+		}
+		else if (filename.endsWith(".h5") || filename.endsWith(".xml")) {
 			final HDF5Saver saver = new HDF5Saver(image, filename);
 			saver.setProgressWriter(new SwingProgressWriter(extensible.dialogParent(),
 				"Save Image"));
@@ -141,4 +157,16 @@ public class SegmentationExportAction extends AbstractFileIoAction {
 			}
 		}
 	}
+
+	private static int[] blockSize(RandomAccessibleInterval<?> image) {
+		if (image instanceof AbstractCellImg) {
+			CellGrid grid = ((AbstractCellImg<?, ?, ?, ?>) image).getCellGrid();
+			int[] blockSize = new int[grid.numDimensions()];
+			grid.cellDimensions(blockSize);
+			return blockSize;
+		}
+		int[] blockSize = new int[image.numDimensions()];
+		Arrays.fill(blockSize, 64);
+		return blockSize;
+	}
 }
@@ -31,6 +31,8 @@ package sc.fiji.labkit.ui.brush;
 
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.hash.TIntIntHashMap;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.Localizable;
 import net.imglib2.Point;
 import net.imglib2.RandomAccess;
@@ -41,6 +43,8 @@ import sc.fiji.labkit.ui.labeling.Label;
 import net.imglib2.roi.labeling.LabelingType;
 import net.imglib2.type.Type;
 import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.util.Localizables;
+import net.imglib2.util.Pair;
 import net.imglib2.view.ExtendedRandomAccessibleInterval;
 import net.imglib2.view.Views;
 
@@ -62,28 +66,30 @@ class FloodFill {
 	 * @param labeling Input and output to the flood fill operation.
 	 * @param seed Seed point.
 	 * @param operation Operation that es performed for the flood filled pixels.
+	 * @return The bounding box of the flood filled pixels, or null if no pixel
+	 *         was changed.
 	 */
-	public static void doFloodFillOnActiveLabels(
+	public static Interval doFloodFillOnActiveLabels(
 		RandomAccessibleInterval<LabelingType<Label>> labeling, Point seed,
 		Consumer<? super LabelingType<Label>> operation)
 	{
 		Set<Label> seedValue = getPixel(labeling, seed).copy();
 		Predicate<LabelingType<Label>> visit = value -> activeLabelsAreEquals(value,
 			seedValue);
-		cachedFloodFill(labeling, seed, visit, operation);
+		return cachedFloodFill(labeling, seed, visit, operation);
 	}
 
 	// package-private to allow testing
-	static <T> void cachedFloodFill(
+	static <T> Interval cachedFloodFill(
 		RandomAccessibleInterval<LabelingType<T>> image, Localizable seed,
 		Predicate<? super LabelingType<T>> visit, Consumer<? super LabelingType<T>> operation)
 	{
 		Predicate<LabelingType<T>> cachedVisit = new CacheForPredicateLabelingType<>(visit);
 		Consumer<LabelingType<T>> cachedOperation = new CacheForOperationLabelingType<>(operation);
-		doFloodFill(image, seed, cachedVisit, cachedOperation);
+		return doFloodFill(image, seed, cachedVisit, cachedOperation);
 	}
 
-	private static <T extends Type<T>> void doFloodFill(
+	private static <T extends Type<T>> Interval doFloodFill(
 		RandomAccessibleInterval<T> image, Localizable seed, Predicate<T> visit,
 		Consumer<T> operation)
 	{
@@ -92,13 +98,49 @@ class FloodFill {
 		T seedValue = ra.get().copy();
 		T seedValueChanged = seedValue.copy();
 		operation.accept(seedValueChanged);
-		if (visit.test(seedValueChanged)) return;
-		BiPredicate<T, T> filter = (f, s) -> visit.test(f);
+		if (visit.test(seedValueChanged)) return null;
+		BiPredicate<T, Pair<T, Localizable>> filter = (f, s) -> visit.test(f);
 		ExtendedRandomAccessibleInterval<T, RandomAccessibleInterval<T>> target =
 			Views.extendValue(image, seedValueChanged);
+		// NB: The target is paired with the pixel positions, to calculate the
+		// bounding box of the flood filled pixels.
+		RandomAccessible<Pair<T, Localizable>> targetWithPosition = Views.pair(
+			target, Localizables.randomAccessible(image.numDimensions()));
+		BoundingBox boundingBox = new BoundingBox(image.numDimensions());
 		final DiamondShape shape = new DiamondShape(1);
-		net.imglib2.algorithm.fill.FloodFill.fill(target, target, seed, shape,
-			filter, operation);
+		net.imglib2.algorithm.fill.FloodFill.fill(target, targetWithPosition, seed,
+			shape, filter, pair -> {
+				operation.accept(pair.getA());
+				boundingBox.add(pair.getB());
+			});
+		return boundingBox.interval();
+	}
+
+	private static class BoundingBox {
+
+		private final long[] min;
+
+		private final long[] max;
+
+		private boolean empty = true;
+
+		private BoundingBox(int n) {
+			min = new long[n];
+			max = new long[n];
+		}
+
+		private void add(Localizable position) {
+			for (int d = 0; d < min.length; d++) {
+				long x = position.getLongPosition(d);
+				min[d] = empty ? x : Math.min(min[d], x);
+				max[d] = empty ? x : Math.max(max[d], x);
+			}
+			empty = false;
+		}
+
+		private Interval interval() {
+			return empty ? null : new FinalInterval(min, max);
+		}
 	}
 
 	private static boolean activeLabelsAreEquals(LabelingType<Label> a,
@@ -31,6 +31,8 @@ package sc.fiji.labkit.ui.brush;
 
 import bdv.util.BdvHandle;
 import bdv.viewer.ViewerPanel;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.Point;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealLocalizable;
@@ -40,7 +42,9 @@ import sc.fiji.labkit.ui.ActionsAndBehaviours;
 import sc.fiji.labkit.ui.labeling.Label;
 import sc.fiji.labkit.ui.models.LabelingModel;
 import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
+import org.apache.commons.lang3.ArrayUtils;
 import org.scijava.ui.behaviour.util.RunnableAction;
 
 import javax.swing.*;
@@ -147,17 +151,31 @@ public class FloodFillController {
 			this.operationFactory = operationFactory;
 		}
 
-		protected void floodFill(final RealLocalizable imageCoordinates) {
+		/**
+		 * Returns the bounding box of the changed pixels, in the coordinates of
+		 * the labeling, or null if nothing changed.
+		 */
+		protected Interval floodFill(final RealLocalizable imageCoordinates) {
 			synchronized (viewer) {
 				RandomAccessibleInterval<LabelingType<Label>> frame = labeling();
-				if (frame.numDimensions() == 3 && planarMode) {
-					long z = Math.round(imageCoordinates.getDoublePosition(2));
+				boolean planar = frame.numDimensions() == 3 && planarMode;
+				long z = Math.round(imageCoordinates.getDoublePosition(2));
+				if (planar)
 					frame = Views.hyperSlice(frame, 2, z);
-				}
 				Point seed = roundAndReduceDimension(imageCoordinates, frame.numDimensions());
 				Consumer<Set<Label>> operation = operationFactory.get();
-				if (askUser(frame, seed, operation))
-					FloodFill.doFloodFillOnActiveLabels(frame, seed, operation);
+				if (!askUser(frame, seed, operation))
+					return null;
+				Interval changed = FloodFill.doFloodFillOnActiveLabels(frame, seed,
+					operation);
+				if (changed == null)
+					return null;
+				if (planar)
+					changed = addDimension(changed, 2, z);
+				if (model.isTimeSeries())
+					changed = addDimension(changed, changed.numDimensions(), viewer
+						.state().getCurrentTimepoint());
+				return changed;
 			}
 		}
 
@@ -185,11 +203,26 @@ public class FloodFillController {
 
 		@Override
 		public void click(int x, int y) {
-			floodFill(displayToImageCoordinates(x, y));
-			model.dataChangedNotifier().notifyListeners(null);
+			Interval changed = floodFill(displayToImageCoordinates(x, y));
+			if (changed != null)
+				model.dataChangedNotifier().notifyListeners(changed);
 		}
 	}
 
+	/**
+	 * Inserts a dimension of size one, at the given position, into the
+	 * interval.
+	 */
+	private static Interval addDimension(Interval interval, int d,
+		long position)
+	{
+		long[] min = ArrayUtils.insert(d, Intervals.minAsLongArray(interval),
+			position);
+		long[] max = ArrayUtils.insert(d, Intervals.maxAsLongArray(interval),
+			position);
+		return new FinalInterval(min, max);
+	}
+
 	private RandomAccessibleInterval<LabelingType<Label>> labeling() {
 		RandomAccessibleInterval<LabelingType<Label>> label = model.labeling()
 			.get();
@@ -33,7 +33,13 @@ import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
 import net.imagej.axis.AxisType;
 import net.imagej.axis.CalibratedAxis;
+import net.imagej.axis.LinearAxis;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgView;
 import net.imglib2.img.display.imagej.ImgPlusViews;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -178,6 +184,41 @@ public class ImgPlusViewsOld {
 		return ImgPlusViews.hyperSlice((ImgPlus) image, d, position);
 	}
 
+	/**
+	 * Returns a view of the image that only contains every factor-th pixel along
+	 * the spatial axes. The pixels are taken from the center of each block of
+	 * size factor, and the calibration of the spatial axes is scaled
+	 * accordingly.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static <T> ImgPlus<T> subsampleSpatialAxes(ImgPlus<T> image,
+		int factor)
+	{
+		int n = image.numDimensions();
+		long[] min = Intervals.minAsLongArray(image);
+		long[] max = Intervals.maxAsLongArray(image);
+		long[] steps = new long[n];
+		CalibratedAxis[] axes = new CalibratedAxis[n];
+		for (int d = 0; d < n; d++) {
+			axes[d] = image.axis(d).copy();
+			boolean spatial = axes[d].type().isSpatial();
+			steps[d] = spatial ? factor : 1;
+			if (spatial) {
+				min[d] += Math.min((factor - 1) / 2, image.dimension(d) - 1);
+				if (axes[d] instanceof LinearAxis) {
+					LinearAxis axis = (LinearAxis) axes[d];
+					axis.setScale(axis.scale() * factor);
+				}
+			}
+		}
+		RandomAccessibleInterval<T> view = Views.subsample(Views.zeroMin(Views
+			.interval(image, min, max)), steps);
+		Img<T> img = ImgView.wrap((RandomAccessibleInterval) view, null);
+		ImgPlus<T> out = new ImgPlus<>(img, image.getName(), axes);
+		copyMetadataFromTo(image, out);
+		return out;
+	}
+
 	public static <T> List<ImgPlus<?>> hyperSlices(ImgPlus<T> image, AxisType axis) {
 		int d = image.dimensionIndex(axis);
 		if (d < 0)
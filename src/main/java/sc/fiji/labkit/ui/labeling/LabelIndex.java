@@ -0,0 +1,243 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.labeling;
+
+import gnu.trove.map.hash.TLongIntHashMap;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.util.Intervals;
+import sc.fiji.labkit.ui.utils.sparse.PixelChangeListener;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Spatial index of a {@link Labeling}. The image is divided into blocks of
+ * 32x32x32 pixels. For each label the index keeps track of the blocks that
+ * contain the label, the number of pixels and the bounding box.
+ * <p>
+ * The index is updated incrementally, as it's registered as
+ * {@link PixelChangeListener} to the index image of the labeling.
+ *
+ * @author Matthias Arzt
+ */
+class LabelIndex implements PixelChangeListener {
+
+	private static final int BLOCK_SIZE = 32;
+
+	private final long[] min;
+
+	private final long[] max;
+
+	private final long[] gridSteps;
+
+	private final List<Set<Label>> labelSets;
+
+	private final Map<Label, Entry> entries = new ConcurrentHashMap<>();
+
+	LabelIndex(Interval interval, List<Set<Label>> labelSets) {
+		int n = interval.numDimensions();
+		this.min = Intervals.minAsLongArray(interval);
+		this.max = Intervals.maxAsLongArray(interval);
+		this.gridSteps = new long[n];
+		long step = 1;
+		for (int d = 0; d < n; d++) {
+			gridSteps[d] = step;
+			step *= (interval.dimension(d) + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		}
+		this.labelSets = labelSets;
+	}
+
+	@Override
+	public void pixelChanged(Localizable position, int oldValue, int newValue) {
+		Set<Label> oldSet = labelSets.get(oldValue);
+		Set<Label> newSet = labelSets.get(newValue);
+		long block = -1;
+		for (Label label : oldSet)
+			if (!newSet.contains(label)) {
+				if (block < 0) block = blockIndex(position);
+				entry(label).remove(block);
+			}
+		for (Label label : newSet)
+			if (!oldSet.contains(label)) {
+				if (block < 0) block = blockIndex(position);
+				entry(label).add(block, position);
+			}
+	}
+
+	/**
+	 * Returns the number of pixels, that carry the given label.
+	 */
+	public long pixelCount(Label label) {
+		Entry entry = entries.get(label);
+		return entry == null ? 0 : entry.count();
+	}
+
+	/**
+	 * Returns the bounding box of the given label, null if the label is not
+	 * used, or if the bounding box is not known, because pixels have been
+	 * removed from the label.
+	 */
+	public Interval boundingBox(Label label) {
+		Entry entry = entries.get(label);
+		return entry == null ? null : entry.boundingBox();
+	}
+
+	/**
+	 * Sets the bounding box for the given label, unless the label has been
+	 * modified since {@link #modificationCount(Label)} was called.
+	 */
+	public void setBoundingBox(Label label, long modificationCount,
+		Interval boundingBox)
+	{
+		Entry entry = entries.get(label);
+		if (entry != null)
+			entry.setBoundingBox(modificationCount, boundingBox);
+	}
+
+	public long modificationCount(Label label) {
+		Entry entry = entries.get(label);
+		return entry == null ? 0 : entry.modificationCount();
+	}
+
+	/**
+	 * Returns the intervals of all blocks that contain the given label, sorted
+	 * by block index.
+	 */
+	public Interval[] blocks(Label label) {
+		Entry entry = entries.get(label);
+		if (entry == null)
+			return new Interval[0];
+		long[] blocks = entry.blocks();
+		Arrays.sort(blocks);
+		return Arrays.stream(blocks).mapToObj(this::blockInterval).toArray(
+			Interval[]::new);
+	}
+
+	private long blockIndex(Localizable position) {
+		long index = 0;
+		for (int d = 0; d < min.length; d++)
+			index += (position.getLongPosition(d) - min[d]) / BLOCK_SIZE *
+				gridSteps[d];
+		return index;
+	}
+
+	private Interval blockInterval(long blockIndex) {
+		int n = min.length;
+		long[] blockMin = new long[n];
+		long[] blockMax = new long[n];
+		for (int d = n - 1; d >= 0; d--) {
+			long gridPosition = blockIndex / gridSteps[d];
+			blockIndex %= gridSteps[d];
+			blockMin[d] = min[d] + gridPosition * BLOCK_SIZE;
+			blockMax[d] = Math.min(max[d], blockMin[d] + BLOCK_SIZE - 1);
+		}
+		return new FinalInterval(blockMin, blockMax);
+	}
+
+	private Entry entry(Label label) {
+		return entries.computeIfAbsent(label, ignore -> new Entry(min.length));
+	}
+
+	private static class Entry {
+
+		private final TLongIntHashMap blocks = new TLongIntHashMap();
+
+		private final long[] min;
+
+		private final long[] max;
+
+		private long count = 0;
+
+		private long modificationCount = 0;
+
+		private boolean boundingBoxValid = true;
+
+		private Entry(int n) {
+			min = new long[n];
+			max = new long[n];
+		}
+
+		private synchronized void add(long block, Localizable position) {
+			blocks.adjustOrPutValue(block, 1, 1);
+			modificationCount++;
+			if (count++ == 0) {
+				position.localize(min);
+				position.localize(max);
+				boundingBoxValid = true;
+			}
+			else
+				for (int d = 0; d < min.length; d++) {
+					long p = position.getLongPosition(d);
+					min[d] = Math.min(min[d], p);
+					max[d] = Math.max(max[d], p);
+				}
+		}
+
+		private synchronized void remove(long block) {
+			if (blocks.adjustOrPutValue(block, -1, 0) <= 0)
+				blocks.remove(block);
+			modificationCount++;
+			count--;
+			boundingBoxValid = false;
+		}
+
+		private synchronized long count() {
+			return count;
+		}
+
+		private synchronized long modificationCount() {
+			return modificationCount;
+		}
+
+		private synchronized long[] blocks() {
+			return blocks.keys();
+		}
+
+		private synchronized Interval boundingBox() {
+			return boundingBoxValid && count > 0 ? new FinalInterval(min, max)
+				: null;
+		}
+
+		private synchronized void setBoundingBox(long modificationCount,
+			Interval boundingBox)
+		{
+			if (modificationCount != this.modificationCount || boundingBox == null)
+				return;
+			boundingBox.min(min);
+			boundingBox.max(max);
+			boundingBoxValid = true;
+		}
+	}
+}
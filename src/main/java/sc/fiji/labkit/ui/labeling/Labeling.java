@@ -30,6 +30,7 @@
 package sc.fiji.labkit.ui.labeling;
 
 import com.google.gson.annotations.JsonAdapter;
+import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import net.imagej.axis.CalibratedAxis;
@@ -44,6 +45,10 @@ import net.imglib2.roi.IterableRegion;
 import net.imglib2.roi.labeling.ImgLabeling;
 import net.imglib2.roi.labeling.LabelingMapping;
 import net.imglib2.roi.labeling.LabelingType;
+import sc.fiji.labkit.ui.utils.MemoryMappedIntType;
+import sc.fiji.labkit.ui.utils.sparse.ChunkedSparseRandomAccessIntType;
+import sc.fiji.labkit.ui.utils.sparse.IntervalIndexer2;
+import sc.fiji.labkit.ui.utils.sparse.RunLengthRegion;
 import sc.fiji.labkit.ui.utils.sparse.SparseIterableRegion;
 import sc.fiji.labkit.ui.utils.sparse.SparseRandomAccessIntType;
 import net.imglib2.type.BooleanType;
@@ -56,7 +61,12 @@ import net.imglib2.util.ConstantUtils;
 import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -72,6 +82,7 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 {
 
 	private final ImgLabeling<Label, ?> imgLabeling;
+	private final LabelIndex labelIndex;
 	private List<Label> labels;
 	private List<CalibratedAxis> axes;
 	private ColorSupplier colorSupplier;
@@ -84,12 +95,61 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 
 	public static Labeling createEmptyLabels(List<Label> labels,
 		Interval interval)
+	{
+		return createEmptyLabels(labels, interval, SparseRandomAccessIntType::new);
+	}
+
+	/**
+	 * Creates an empty {@link Labeling}. The index image of the labeling is
+	 * created by the given factory. This allows for example to use a
+	 * {@link ChunkedSparseRandomAccessIntType} for labelings, that are expected
+	 * to become dense.
+	 */
+	public static Labeling createEmptyLabels(List<Label> labels,
+		Interval interval,
+		Function<Interval, ? extends RandomAccessibleInterval<IntType>> indexImageFactory)
 	{
 		final ImgLabeling<Label, IntType> imgLabeling = new ImgLabeling<>(
-			new SparseRandomAccessIntType(interval));
+			indexImageFactory.apply(interval));
 		return new Labeling(labels, imgLabeling, new ColorSupplier());
 	}
 
+	/**
+	 * Creates an empty {@link Labeling}, with a {@link MemoryMappedIntType} as
+	 * index image. The index image is stored in the given file, and doesn't
+	 * occupy space on the Java heap. Saving the labeling as *.labeling file
+	 * writes a snapshot of the index image next to it, such that it can be
+	 * opened again without loading the pixels. Call {@link #dispose()} to
+	 * release the file, once the labeling is no longer used.
+	 */
+	public static Labeling createEmptyMemoryMapped(List<String> labels,
+		Interval interval, File indexFile) throws IOException
+	{
+		MemoryMappedIntType indexImg = MemoryMappedIntType.create(indexFile,
+			interval);
+		Labeling result = createEmptyLabels(Collections.emptyList(), interval,
+			ignore -> indexImg);
+		labels.forEach(result::addLabel);
+		return result;
+	}
+
+	/**
+	 * Releases the file and the memory mapping of a memory-mapped index image.
+	 * For a sparse index image, the labeling stops listening to its changes.
+	 * The labeling must not be used afterwards.
+	 */
+	public void dispose() throws IOException {
+		RandomAccessibleInterval<?> indexImg = imgLabeling.getIndexImg();
+		if (indexImg instanceof SparseRandomAccessIntType)
+			((SparseRandomAccessIntType) indexImg).removePixelChangeListener(
+				labelIndex);
+		if (indexImg instanceof ChunkedSparseRandomAccessIntType)
+			((ChunkedSparseRandomAccessIntType) indexImg).removePixelChangeListener(
+				labelIndex);
+		if (indexImg instanceof MemoryMappedIntType)
+			((MemoryMappedIntType) indexImg).close();
+	}
+
 	public static Labeling fromImgLabeling(ImgLabeling<String, ?> imgLabeling) {
 		ColorSupplier colors = new ColorSupplier();
 		ImgLabeling<Label, ?> labelsImgLabeling = Labelings.mapLabels(imgLabeling,
@@ -123,6 +183,16 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 	}
 
 	public static Labeling fromMap(Map<String, IterableRegion<BitType>> regions) {
+		return fromMap(regions, SparseRandomAccessIntType::new);
+	}
+
+	/**
+	 * Same as {@link #fromMap(Map)}, but the index image of the labeling is
+	 * created by the given factory.
+	 */
+	public static Labeling fromMap(Map<String, IterableRegion<BitType>> regions,
+		Function<Interval, ? extends RandomAccessibleInterval<IntType>> indexImageFactory)
+	{
 		if (regions.isEmpty()) throw new IllegalArgumentException(
 			"Labeling.fromMap: The given map must not be empty.");
 		ColorSupplier colors = new ColorSupplier();
@@ -130,16 +200,30 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 		for (Map.Entry<String, IterableRegion<BitType>> entry : regions.entrySet())
 			regions2.put(new Label(entry.getKey(), colors.get()), entry.getValue());
 		final ArrayList<Label> labels = new ArrayList<>(regions2.keySet());
-		final ImgLabeling<Label, ?> imgLabling = initImgLabling(regions2);
+		final ImgLabeling<Label, ?> imgLabling = initImgLabling(regions2,
+			indexImageFactory);
 		return new Labeling(labels, imgLabling, colors);
 	}
 
+	/**
+	 * Creates a {@link Labeling} from the given index image. The label set at
+	 * position i in the given list corresponds to the pixel value i.
+	 */
+	static Labeling fromIndexImage(List<Label> labels,
+		RandomAccessibleInterval<IntType> indexImg, List<Set<Label>> labelSets)
+	{
+		ImgLabeling<Label, IntType> imgLabeling = ImgLabeling
+			.fromImageAndLabelSets(indexImg, labelSets);
+		return new Labeling(labels, imgLabeling, new ColorSupplier());
+	}
+
 	private static ImgLabeling<Label, ?> initImgLabling(
-		Map<Label, IterableRegion<BitType>> regions)
+		Map<Label, IterableRegion<BitType>> regions,
+		Function<Interval, ? extends RandomAccessibleInterval<IntType>> indexImageFactory)
 	{
 		Interval interval = getInterval(regions.values());
 		ImgLabeling<Label, ?> imgLabeling = new ImgLabeling<>(
-			new SparseRandomAccessIntType(interval));
+			indexImageFactory.apply(interval));
 		RandomAccess<LabelingType<Label>> ra = imgLabeling.randomAccess();
 		regions.forEach((label, region) -> {
 			Cursor<Void> cursor = region.cursor();
@@ -170,6 +254,31 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 		this.labels = new ArrayList<>(labels);
 		this.colorSupplier = colorSupplier;
 		this.axes = initAxes(labeling.numDimensions());
+		this.labelIndex = initLabelIndex();
+	}
+
+	/**
+	 * Creates a {@link LabelIndex} for sparse index images. The index is kept up
+	 * to date by listening to the changes of the index image.
+	 */
+	private LabelIndex initLabelIndex() {
+		RandomAccessibleInterval<?> indexImg = imgLabeling.getIndexImg();
+		if (!(indexImg instanceof SparseRandomAccessIntType) &&
+			!(indexImg instanceof ChunkedSparseRandomAccessIntType))
+			return null;
+		LabelIndex index = new LabelIndex(imgLabeling, getLabelSets());
+		Cursor<? extends IntegerType<?>> cursor = indexCursor();
+		while (cursor.hasNext()) {
+			int value = cursor.next().getInteger();
+			if (value != 0)
+				index.pixelChanged(cursor, 0, value);
+		}
+		if (indexImg instanceof SparseRandomAccessIntType)
+			((SparseRandomAccessIntType) indexImg).addPixelChangeListener(index);
+		else
+			((ChunkedSparseRandomAccessIntType) indexImg).addPixelChangeListener(
+				index);
+		return index;
 	}
 
 	private List<CalibratedAxis> initAxes(int i) {
@@ -201,24 +310,129 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 		return slice(imgLabeling, label);
 	}
 
+	/**
+	 * Returns the regions of all labels as writable
+	 * {@link SparseIterableRegion}s. The regions are copies, modifying them
+	 * doesn't change the labeling. {@link #runLengthRegions()} returns a more
+	 * compact, read only representation.
+	 */
 	public Map<Label, IterableRegion<BitType>> iterableRegions() {
-		Cursor<?> cursor = sparsityCursor();
-		RandomAccess<LabelingType<Label>> ra = imgLabeling.randomAccess();
-		Map<Label, SparseIterableRegion> regions = new HashMap<>();
-		labels.forEach(label -> regions.put(label, new SparseIterableRegion(
-			imgLabeling)));
+		Map<Label, IterableRegion<BitType>> regions = new HashMap<>();
+		runLengthRegions().forEach((label, runs) -> {
+			SparseIterableRegion region = new SparseIterableRegion(imgLabeling);
+			// NB: The pixels are added in ascending order, which is cheap.
+			runs.forEachPixel(region, BitType::setOne);
+			regions.put(label, region);
+		});
+		return Collections.unmodifiableMap(regions);
+	}
+
+	/**
+	 * Returns the regions of all labels as {@link RunLengthRegion}s. All regions
+	 * are computed in a single pass over the labeled pixels.
+	 */
+	public Map<Label, RunLengthRegion> runLengthRegions() {
+		return runLengthRegions(labels);
+	}
+
+	/**
+	 * Returns the region of the given label as {@link RunLengthRegion}.
+	 */
+	public RunLengthRegion runLengthRegion(Label label) {
+		if (labelIndex == null)
+			return runLengthRegions(Collections.singletonList(label)).get(label);
+		RunLengthRegion.Builder builder = new RunLengthRegion.Builder(imgLabeling);
+		IntervalIndexer2 indexer = new IntervalIndexer2(imgLabeling);
+		List<Set<Label>> labelSets = getLabelSets();
+		forEachPixelInBlocks(label, (position, value) -> {
+			int index = value.getInteger();
+			if (index != 0 && labelSets.get(index).contains(label))
+				builder.add(indexer.positionToIndex(position));
+		});
+		return builder.build();
+	}
+
+	/**
+	 * Returns the number of pixels, that carry the given label.
+	 */
+	public long getPixelCount(Label label) {
+		if (labelIndex == null)
+			return runLengthRegion(label).size();
+		return labelIndex.pixelCount(label);
+	}
+
+	/**
+	 * Returns the bounding box of the given label, or null if the label is not
+	 * used.
+	 */
+	public Interval getBoundingBox(Label label) {
+		if (labelIndex == null)
+			return runLengthRegion(label).boundingBox();
+		Interval boundingBox = labelIndex.boundingBox(label);
+		if (boundingBox != null || labelIndex.pixelCount(label) == 0)
+			return boundingBox;
+		long modificationCount = labelIndex.modificationCount(label);
+		boundingBox = runLengthRegion(label).boundingBox();
+		labelIndex.setBoundingBox(label, modificationCount, boundingBox);
+		return boundingBox;
+	}
+
+	private Map<Label, RunLengthRegion> runLengthRegions(
+		Collection<Label> selectedLabels)
+	{
+		Map<Label, RunLengthRegion.Builder> builders = new HashMap<>();
+		for (Label label : selectedLabels)
+			builders.put(label, new RunLengthRegion.Builder(imgLabeling));
+		List<Set<Label>> labelSets = getLabelSets();
+		RunLengthRegion.Builder[][] buildersAtIndex =
+			new RunLengthRegion.Builder[labelSets.size()][];
+		IntervalIndexer2 indexer = new IntervalIndexer2(imgLabeling);
+		Cursor<? extends IntegerType<?>> cursor = indexCursor();
 		while (cursor.hasNext()) {
-			cursor.fwd();
-			ra.setPosition(cursor);
-			ra.get().forEach(label -> regions.get(label).add(cursor));
+			int index = cursor.next().getInteger();
+			// NB: Label sets might be added while the pixels are visited.
+			if (index >= buildersAtIndex.length)
+				buildersAtIndex = Arrays.copyOf(buildersAtIndex, Math.max(index + 1,
+					labelSets.size()));
+			RunLengthRegion.Builder[] selected = buildersAtIndex[index];
+			if (selected == null) {
+				selected = labelSets.get(index).stream().map(builders::get).filter(
+					Objects::nonNull).toArray(RunLengthRegion.Builder[]::new);
+				buildersAtIndex[index] = selected;
+			}
+			if (selected.length == 0)
+				continue;
+			long code = indexer.positionToIndex(cursor);
+			for (RunLengthRegion.Builder builder : selected)
+				builder.add(code);
 		}
-		return Collections.unmodifiableMap(regions);
+		Map<Label, RunLengthRegion> regions = new HashMap<>();
+		builders.forEach((label, builder) -> regions.put(label, builder.build()));
+		return regions;
+	}
+
+	/**
+	 * Adds the given label to all pixels of the given region.
+	 */
+	public void addRegion(Label label, RunLengthRegion region) {
+		IndexOperation addLabel = new IndexOperation(set -> set.add(label));
+		RandomAccess<? extends IntegerType<?>> indexRa = getIndexImg()
+			.randomAccess();
+		region.forEachRun((start, length) -> {
+			indexRa.setPosition(start);
+			for (int i = 0; i < length; i++) {
+				addLabel.apply(indexRa, indexRa.get());
+				indexRa.fwd(0);
+			}
+		});
 	}
 
 	public Cursor<?> sparsityCursor() {
 		RandomAccessibleInterval<?> indexImg = imgLabeling.getIndexImg();
 		if (indexImg instanceof SparseRandomAccessIntType)
 			return ((SparseRandomAccessIntType) indexImg).sparseCursor();
+		else if (indexImg instanceof ChunkedSparseRandomAccessIntType)
+			return ((ChunkedSparseRandomAccessIntType) indexImg).sparseCursor();
 		else {
 			RandomAccessible<Void> voids = ConstantUtils.constantRandomAccessible(
 				null, imgLabeling.numDimensions());
@@ -289,20 +503,83 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 	}
 
 	public void clearLabel(Label label) {
-		Cursor<?> cursor = sparsityCursor();
-		RandomAccess<LabelingType<Label>> ra = randomAccess();
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			ra.setPosition(cursor);
-			Set<Label> set = ra.get();
-			set.remove(label);
+		IndexOperation removeLabel = new IndexOperation(set -> set.remove(label));
+		if (labelIndex != null) {
+			forEachPixelInBlocks(label, removeLabel::apply);
+			return;
+		}
+		Cursor<? extends IntegerType<?>> cursor = indexCursor();
+		while (cursor.hasNext())
+			removeLabel.apply(cursor, cursor.next());
+	}
+
+	/**
+	 * Visits all pixels of the index image, that are in a block that, according
+	 * to the {@link LabelIndex}, contains the given label.
+	 */
+	private void forEachPixelInBlocks(Label label,
+		BiConsumer<Localizable, IntegerType<?>> action)
+	{
+		for (Interval block : labelIndex.blocks(label)) {
+			Cursor<? extends IntegerType<?>> cursor = Views.flatIterable(Views
+				.interval(getIndexImg(), block)).localizingCursor();
+			while (cursor.hasNext()) {
+				IntegerType<?> value = cursor.next();
+				action.accept(cursor, value);
+			}
 		}
 	}
 
+	/**
+	 * Returns a cursor over the index image, that skips the empty pixels if
+	 * possible.
+	 */
+	Cursor<? extends IntegerType<?>> indexCursor() {
+		RandomAccessibleInterval<? extends IntegerType<?>> indexImg =
+			getIndexImg();
+		if (indexImg instanceof SparseRandomAccessIntType)
+			return ((SparseRandomAccessIntType) indexImg).sparseCursor();
+		if (indexImg instanceof ChunkedSparseRandomAccessIntType)
+			return ((ChunkedSparseRandomAccessIntType) indexImg).sparseCursor();
+		return Views.flatIterable(indexImg).localizingCursor();
+	}
+
 	public void setLabelOrder(Comparator<? super Label> comparator) {
 		labels.sort(comparator);
 	}
 
+	/**
+	 * Applies an operation to the label sets of many pixels. The operation is
+	 * performed through a {@link LabelingType} only once for every distinct
+	 * value in the index image. For all other pixels the resulting index is
+	 * written directly to the index image.
+	 */
+	private class IndexOperation {
+
+		private final TIntIntHashMap newIndices = new TIntIntHashMap(16, 0.5f, -1,
+			-1);
+
+		private final RandomAccess<LabelingType<Label>> ra = randomAccess();
+
+		private final Consumer<Set<Label>> operation;
+
+		private IndexOperation(Consumer<Set<Label>> operation) {
+			this.operation = operation;
+		}
+
+		private void apply(Localizable position, IntegerType<?> index) {
+			int oldIndex = index.getInteger();
+			int newIndex = newIndices.get(oldIndex);
+			if (newIndex < 0) {
+				ra.setPosition(position);
+				operation.accept(ra.get());
+				newIndices.put(oldIndex, index.getInteger());
+			}
+			else if (newIndex != oldIndex)
+				index.setInteger(newIndex);
+		}
+	}
+
 	public static class SetEntryAsBitType<T> extends BitType {
 
 		private Set<T> set = null;
@@ -0,0 +1,508 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.labeling;
+
+import net.imagej.axis.Axes;
+import net.imagej.axis.CalibratedAxis;
+import net.imagej.axis.DefaultLinearAxis;
+import net.imagej.axis.LinearAxis;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import sc.fiji.labkit.ui.utils.MemoryMappedIntType;
+import sc.fiji.labkit.ui.utils.sparse.ChunkedSparseRandomAccessIntType;
+import sc.fiji.labkit.ui.utils.sparse.IntervalIndexer2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compact binary file format for {@link Labeling}. The file consists of:
+ * <ol>
+ * <li>a header: magic number, version, interval and pixel sizes,</li>
+ * <li>the label table: name and color of each label,</li>
+ * <li>the label set table: for each value of the index image the list of
+ * labels,</li>
+ * <li>the pixel data: a deflate compressed sequence of runs. Each run is a
+ * sequence of pixels in one row, that have the same label set. A run is stored
+ * as three variable length integers: the distance of its start to the end of
+ * the previous run, the length and the index of the label set.</li>
+ * </ol>
+ * The pixel data is written directly from the sparse index image of the
+ * labeling, and read directly into a new
+ * {@link ChunkedSparseRandomAccessIntType}.
+ * <p>
+ * If the index image of the labeling is a {@link MemoryMappedIntType}, the
+ * pixel data is not compressed. Instead a snapshot of the index image is
+ * written next to the labeling file, to a new file with the extension
+ * ".index". The labeling file refers to this snapshot by name, and the label
+ * sets are stored in the order of the index image values. Such a labeling is
+ * opened by mapping the snapshot copy-on-write, which is fast even for very
+ * large labelings, and leaves the snapshot unchanged. Snapshots are never
+ * overwritten, as they might be mapped by an opened labeling. Usually only the
+ * modified blocks of the index image are written, see
+ * {@link MemoryMappedIntType#writeTo(File)}.
+ *
+ * @author Matthias Arzt
+ */
+class LabelingBinaryFormat {
+
+	static final int MAGIC = 0x4c4b4c42; // "LKLB"
+
+	private static final int VERSION = 1;
+
+	private static final int COMPRESSION_NONE = 0;
+
+	private static final int COMPRESSION_DEFLATE = 1;
+
+	private static final int COMPRESSION_MAPPED = 2;
+
+	private LabelingBinaryFormat() {
+		// prevent from instantiation
+	}
+
+	/**
+	 * Returns true, if the given stream starts with the magic number of the
+	 * binary format. The stream must support mark and reset.
+	 */
+	static boolean isBinaryFormat(BufferedInputStream input) throws IOException {
+		input.mark(4);
+		try {
+			byte[] bytes = new byte[4];
+			int n = input.read(bytes);
+			return n == 4 && (((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) |
+				((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff)) == MAGIC;
+		}
+		finally {
+			input.reset();
+		}
+	}
+
+	/**
+	 * Writes the labeling to the given stream. The file is the labeling file that
+	 * is written, it's used to place the snapshot of a memory-mapped index
+	 * image.
+	 */
+	static void write(Labeling labeling, OutputStream outputStream, File file)
+		throws IOException
+	{
+		RandomAccessibleInterval<?> indexImg = labeling.getIndexImg();
+		// NB: The snapshot is taken before the label sets are read. Label sets
+		// are only ever added to a labeling, therefore all values in the snapshot
+		// are covered by the written label sets, even if the labeling is modified
+		// concurrently.
+		File snapshot = indexImg instanceof MemoryMappedIntType ? writeSnapshot(
+			(MemoryMappedIntType) indexImg, file) : null;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+			outputStream));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		writeInterval(out, labeling);
+		writeAxes(out, labeling.axes());
+		List<Label> labels = labeling.getLabels();
+		writeLabels(out, labels);
+		if (snapshot != null) {
+			writeLabelSets(out, labeling.getLabelSets(), labels, false);
+			out.writeByte(COMPRESSION_MAPPED);
+			out.writeUTF(snapshot.getName());
+			out.flush();
+			return;
+		}
+		int[] setIndices = writeLabelSets(out, labeling.getLabelSets(), labels,
+			true);
+		out.writeByte(COMPRESSION_DEFLATE);
+		Deflater compressor = new Deflater(Deflater.BEST_SPEED);
+		try {
+			DeflaterOutputStream deflater = new DeflaterOutputStream(out, compressor,
+				1 << 16);
+			DataOutputStream runs = new DataOutputStream(deflater);
+			writeRuns(runs, labeling, setIndices);
+			runs.flush();
+			deflater.finish();
+			out.flush();
+		}
+		finally {
+			compressor.end();
+		}
+	}
+
+	static void writeInterval(DataOutputStream out, Interval interval)
+		throws IOException
+	{
+		out.writeInt(interval.numDimensions());
+		for (int d = 0; d < interval.numDimensions(); d++) {
+			out.writeLong(interval.min(d));
+			out.writeLong(interval.max(d));
+		}
+	}
+
+	private static void writeAxes(DataOutputStream out,
+		List<CalibratedAxis> axes) throws IOException
+	{
+		for (CalibratedAxis axis : axes) {
+			boolean linear = axis instanceof LinearAxis;
+			out.writeDouble(linear ? ((LinearAxis) axis).scale() : 1);
+			String unit = linear ? axis.unit() : "unknown";
+			out.writeBoolean(unit != null);
+			if (unit != null)
+				out.writeUTF(unit);
+		}
+	}
+
+	static void writeLabels(DataOutputStream out, List<Label> labels)
+		throws IOException
+	{
+		out.writeInt(labels.size());
+		for (Label label : labels) {
+			out.writeUTF(label.name());
+			out.writeInt(label.color().get());
+		}
+	}
+
+	private static File writeSnapshot(MemoryMappedIntType indexImg, File file)
+		throws IOException
+	{
+		file = file.getAbsoluteFile();
+		File snapshot = File.createTempFile(file.getName() + "-", ".index", file
+			.getParentFile());
+		indexImg.writeTo(snapshot);
+		return snapshot;
+	}
+
+	/**
+	 * Returns the index image snapshots, that the given labeling file refers
+	 * to. The list is empty, if the file doesn't exist or doesn't refer to a
+	 * snapshot.
+	 */
+	static List<File> indexFiles(File file) throws IOException {
+		if (!file.exists())
+			return Collections.emptyList();
+		try (BufferedInputStream input = new BufferedInputStream(
+			new FileInputStream(file)))
+		{
+			if (!isBinaryFormat(input))
+				return Collections.emptyList();
+			DataInputStream in = new DataInputStream(input);
+			in.readInt();
+			if (in.readInt() != VERSION)
+				return Collections.emptyList();
+			Interval interval = readInterval(in);
+			readAxes(in, interval.numDimensions());
+			readLabelSets(in, readLabels(in));
+			if (in.readByte() != COMPRESSION_MAPPED)
+				return Collections.emptyList();
+			File snapshot = new File(in.readUTF());
+			if (!snapshot.isAbsolute())
+				snapshot = new File(file.getAbsoluteFile().getParentFile(), snapshot
+					.getPath());
+			return snapshot.exists() ? MemoryMappedIntType.snapshotFiles(snapshot)
+				: Collections.emptyList();
+		}
+	}
+
+	/**
+	 * Writes the label sets, labels that are not listed in the labels list are
+	 * ignored. Returns an array that maps the values of the index image to the
+	 * indices of the written label sets. Equal label sets are only written once,
+	 * if deduplicate is true.
+	 */
+	private static int[] writeLabelSets(DataOutputStream out,
+		List<Set<Label>> labelSets, List<Label> labels, boolean deduplicate)
+		throws IOException
+	{
+		Map<Label, Integer> labelIndices = new HashMap<>();
+		for (int i = 0; i < labels.size(); i++)
+			labelIndices.put(labels.get(i), i);
+		Map<List<Integer>, Integer> uniqueSets = new HashMap<>();
+		List<List<Integer>> sets = new ArrayList<>();
+		if (deduplicate) {
+			sets.add(new ArrayList<>());
+			uniqueSets.put(sets.get(0), 0);
+		}
+		int[] setIndices = new int[labelSets.size()];
+		for (int i = 0; i < labelSets.size(); i++) {
+			List<Integer> set = new ArrayList<>();
+			for (Label label : labelSets.get(i)) {
+				Integer labelIndex = labelIndices.get(label);
+				if (labelIndex != null)
+					set.add(labelIndex);
+			}
+			set.sort(Integer::compare);
+			if (!deduplicate) {
+				setIndices[i] = sets.size();
+				sets.add(set);
+				continue;
+			}
+			Integer setIndex = uniqueSets.get(set);
+			if (setIndex == null) {
+				setIndex = sets.size();
+				sets.add(set);
+				uniqueSets.put(set, setIndex);
+			}
+			setIndices[i] = setIndex;
+		}
+		out.writeInt(sets.size());
+		for (List<Integer> set : sets) {
+			out.writeInt(set.size());
+			for (int labelIndex : set)
+				out.writeInt(labelIndex);
+		}
+		return setIndices;
+	}
+
+	private static void writeRuns(DataOutputStream out, Labeling labeling,
+		int[] setIndices) throws IOException
+	{
+		IntervalIndexer2 indexer = new IntervalIndexer2(labeling);
+		long width = labeling.dimension(0);
+		Cursor<? extends IntegerType<?>> cursor = labeling.indexCursor();
+		long previousEnd = 0;
+		long runStart = -1;
+		int runLength = 0;
+		int runValue = 0;
+		while (cursor.hasNext()) {
+			int value = cursor.next().getInteger();
+			int setIndex = value < setIndices.length ? setIndices[value] : 0;
+			if (setIndex == 0)
+				continue;
+			long code = indexer.positionToIndex(cursor);
+			if (runLength > 0 && code == runStart + runLength &&
+				setIndex == runValue && code % width != 0)
+			{
+				runLength++;
+				continue;
+			}
+			if (runLength > 0) {
+				writeRun(out, runStart - previousEnd, runLength, runValue);
+				previousEnd = runStart + runLength;
+			}
+			runStart = code;
+			runLength = 1;
+			runValue = setIndex;
+		}
+		if (runLength > 0)
+			writeRun(out, runStart - previousEnd, runLength, runValue);
+		// NB: A run of length zero marks the end of the pixel data.
+		writeRun(out, 0, 0, 0);
+	}
+
+	private static void writeRun(DataOutputStream out, long offset, int length,
+		int value) throws IOException
+	{
+		// NB: The offset is negative, if the index image is not iterated in
+		// ascending order.
+		writeVarLong(out, (offset << 1) ^ (offset >> 63));
+		writeVarLong(out, length);
+		writeVarLong(out, value);
+	}
+
+	/**
+	 * Reads a labeling from the given stream. The directory is the directory of
+	 * the read file, it's used to locate a memory-mapped index image.
+	 */
+	static Labeling read(InputStream inputStream, File directory)
+		throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+			inputStream));
+		if (in.readInt() != MAGIC)
+			throw new IOException("Not a binary labeling file.");
+		int version = in.readInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported version of labeling file: " +
+				version);
+		Interval interval = readInterval(in);
+		List<CalibratedAxis> axes = readAxes(in, interval.numDimensions());
+		List<Label> labels = readLabels(in);
+		List<Set<Label>> labelSets = readLabelSets(in, labels);
+		int compression = in.readByte();
+		RandomAccessibleInterval<IntType> indexImg;
+		if (compression == COMPRESSION_DEFLATE) {
+			Inflater decompressor = new Inflater();
+			try {
+				indexImg = readRuns(new DataInputStream(new InflaterInputStream(in,
+					decompressor, 1 << 16)), interval);
+			}
+			finally {
+				decompressor.end();
+			}
+		}
+		else if (compression == COMPRESSION_NONE)
+			indexImg = readRuns(in, interval);
+		else if (compression == COMPRESSION_MAPPED)
+			indexImg = readMapped(in, interval, directory);
+		else
+			throw new IOException("Unsupported compression: " + compression);
+		Labeling labeling = Labeling.fromIndexImage(labels, indexImg, labelSets);
+		labeling.setAxes(axes);
+		return labeling;
+	}
+
+	static Interval readInterval(DataInputStream in) throws IOException {
+		int n = in.readInt();
+		long[] min = new long[n];
+		long[] max = new long[n];
+		for (int d = 0; d < n; d++) {
+			min[d] = in.readLong();
+			max[d] = in.readLong();
+		}
+		return new FinalInterval(min, max);
+	}
+
+	private static List<CalibratedAxis> readAxes(DataInputStream in, int n)
+		throws IOException
+	{
+		List<CalibratedAxis> axes = new ArrayList<>(n);
+		for (int d = 0; d < n; d++) {
+			double scale = in.readDouble();
+			String unit = in.readBoolean() ? in.readUTF() : null;
+			axes.add(new DefaultLinearAxis(Axes.unknown(), unit, scale));
+		}
+		return axes;
+	}
+
+	static List<Label> readLabels(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		List<Label> labels = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			String name = in.readUTF();
+			labels.add(new Label(name, new ARGBType(in.readInt())));
+		}
+		return labels;
+	}
+
+	private static List<Set<Label>> readLabelSets(DataInputStream in,
+		List<Label> labels) throws IOException
+	{
+		int size = in.readInt();
+		List<Set<Label>> sets = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			int setSize = in.readInt();
+			Set<Label> set = new HashSet<>();
+			for (int j = 0; j < setSize; j++)
+				set.add(labels.get(in.readInt()));
+			sets.add(set);
+		}
+		return sets;
+	}
+
+	private static RandomAccessibleInterval<IntType> readMapped(
+		DataInputStream in, Interval interval, File directory) throws IOException
+	{
+		File file = new File(in.readUTF());
+		if (!file.isAbsolute() && directory != null)
+			file = new File(directory, file.getPath());
+		MemoryMappedIntType indexImg = MemoryMappedIntType.openCopyOnWrite(file);
+		if (!Intervals.equals(indexImg, interval)) {
+			indexImg.close();
+			throw new IOException("The interval of the index image " + file +
+				" doesn't match the labeling.");
+		}
+		return indexImg;
+	}
+
+	/**
+	 * Reads the runs directly into a {@link ChunkedSparseRandomAccessIntType},
+	 * which works well for sparse and for dense labelings.
+	 */
+	private static RandomAccessibleInterval<IntType> readRuns(DataInputStream in,
+		Interval interval) throws IOException
+	{
+		ChunkedSparseRandomAccessIntType indexImg =
+			new ChunkedSparseRandomAccessIntType(interval);
+		IntervalIndexer2 indexer = new IntervalIndexer2(interval);
+		RandomAccess<IntType> ra = indexImg.randomAccess();
+		Point start = new Point(interval.numDimensions());
+		long end = 0;
+		while (true) {
+			long zigzag = readVarLong(in);
+			long offset = (zigzag >>> 1) ^ -(zigzag & 1);
+			int length = (int) readVarLong(in);
+			int value = (int) readVarLong(in);
+			if (length == 0)
+				break;
+			long startIndex = end + offset;
+			indexer.indexToPosition(startIndex, start);
+			ra.setPosition(start);
+			for (int i = 0; i < length; i++) {
+				ra.get().setInteger(value);
+				ra.fwd(0);
+			}
+			end = startIndex + length;
+		}
+		return indexImg;
+	}
+
+	static void writeVarLong(DataOutputStream out, long value)
+		throws IOException
+	{
+		while ((value & ~0x7fL) != 0) {
+			out.writeByte((int) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	static long readVarLong(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed variable length integer.");
+	}
+}
@@ -0,0 +1,574 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.labeling;
+
+import gnu.trove.map.hash.TIntIntHashMap;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * An append-only journal of the changes made to a {@link Labeling}. It allows
+ * to persist small changes of a large labeling quickly, without writing the
+ * entire labeling.
+ * <p>
+ * Changed intervals are collected with {@link #record(Interval)}. The content
+ * of the changed intervals is copied with {@link #takeChanges(Labeling)}, by
+ * the thread that modifies the labeling, and the copy is written to the
+ * journal file with {@link #write(Changes)}, possibly by another thread. Each
+ * entry stores the complete content of a changed interval, such that replaying
+ * the entries in order reproduces the labeling. The journal file starts with a
+ * header, that names the base file (the labeling file the journal applies to)
+ * and the list of labels. The entries therefore only stay valid as long as the
+ * list of labels isn't changed. {@link #write(Changes)} fails, if the labels
+ * differ from the header, the journal must be restarted after such a change.
+ * <p>
+ * Every entry is protected by a checksum. An entry that was only partially
+ * written, for example due to a crash, is ignored by
+ * {@link #open(File, LabelingSerializer)}.
+ * <p>
+ * The journal is only efficient for changes that cover a small part of the
+ * labeling. {@link #requiresCompaction(Interval)} tells when it's better to
+ * save the entire labeling instead. Recording changes is thread safe, and
+ * can be done while the journal is written by another thread.
+ *
+ * @author Matthias Arzt
+ */
+public class LabelingJournal {
+
+	private static final int MAGIC = 0x4c4b4a4e; // "LKJN"
+
+	private static final int VERSION = 1;
+
+	/**
+	 * If more intervals are pending, they are merged into their bounding box.
+	 */
+	private static final int MAX_PENDING_INTERVALS = 64;
+
+	/**
+	 * Compaction is recommended, if the pending intervals cover more than this
+	 * fraction of the labeling.
+	 */
+	private static final int COMPACTION_FRACTION = 8;
+
+	private final File file;
+
+	// NB: pending and everythingChanged are guarded by "this".
+	private final List<Interval> pending = new ArrayList<>();
+
+	private boolean everythingChanged = false;
+
+	/**
+	 * Names of the labels in the header of the journal file, null if unknown.
+	 */
+	private volatile List<String> headerLabels;
+
+	public LabelingJournal(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns true, if the journal file exists.
+	 */
+	public boolean exists() {
+		return file.exists();
+	}
+
+	/**
+	 * Returns the size of the journal file in bytes.
+	 */
+	public long size() {
+		return file.length();
+	}
+
+	/**
+	 * Remembers that the given interval of the labeling has changed. Null
+	 * indicates that the entire labeling changed.
+	 */
+	public synchronized void record(Interval interval) {
+		if (interval == null) {
+			everythingChanged = true;
+			pending.clear();
+		}
+		else if (!everythingChanged) {
+			pending.add(new FinalInterval(interval));
+			if (pending.size() > MAX_PENDING_INTERVALS) {
+				Interval union = pending.stream().reduce(Intervals::union).get();
+				pending.clear();
+				pending.add(union);
+			}
+		}
+	}
+
+	public synchronized boolean hasPendingChanges() {
+		return everythingChanged || !pending.isEmpty();
+	}
+
+	/**
+	 * Returns true, if the pending changes cover a large part of the labeling
+	 * with the given interval, or if the entire labeling changed. Saving the
+	 * entire labeling is then faster than writing the changes to the journal.
+	 */
+	public synchronized boolean requiresCompaction(Interval labelingInterval) {
+		if (everythingChanged)
+			return true;
+		long pendingSize = 0;
+		for (Interval interval : pending)
+			pendingSize += Intervals.numElements(Intervals.intersect(interval,
+				labelingInterval));
+		return pendingSize > Intervals.numElements(labelingInterval) /
+			COMPACTION_FRACTION;
+	}
+
+	/**
+	 * Returns the pending intervals, and forgets them. Returns null, if the
+	 * entire labeling changed.
+	 */
+	public synchronized List<Interval> takePendingChanges() {
+		List<Interval> result = everythingChanged ? null : new ArrayList<>(
+			pending);
+		pending.clear();
+		everythingChanged = false;
+		return result;
+	}
+
+	/**
+	 * Deletes the journal file, and forgets the pending changes.
+	 */
+	public void delete() throws IOException {
+		takePendingChanges();
+		deleteFile();
+	}
+
+	/**
+	 * Deletes the journal file, but keeps the pending changes.
+	 */
+	public void deleteFile() throws IOException {
+		headerLabels = null;
+		Files.deleteIfExists(file.toPath());
+	}
+
+	/**
+	 * Starts a new journal file, for the given base file. The base file is the
+	 * labeling file, that contains the given labeling, without the changes that
+	 * are recorded later on. It might be null, if the labeling is not stored
+	 * yet. In this case, the labeling must not contain any labeled pixels,
+	 * other than in the pending intervals.
+	 */
+	public void start(String baseFile, Labeling labeling) throws IOException {
+		start(baseFile, labeling.interval(), labeling.getLabels());
+	}
+
+	/**
+	 * Same as {@link #start(String, Labeling)}, but takes the interval and
+	 * labels of the labeling, for example from {@link Changes}.
+	 */
+	public void start(String baseFile, Interval interval, List<Label> labels)
+		throws IOException
+	{
+		headerLabels = null;
+		try (FileOutputStream output = new FileOutputStream(file)) {
+			DataOutputStream out = new DataOutputStream(output);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(baseFile == null ? "" : new File(baseFile)
+				.getAbsolutePath());
+			LabelingBinaryFormat.writeInterval(out, interval);
+			LabelingBinaryFormat.writeLabels(out, labels);
+			out.flush();
+			output.getFD().sync();
+		}
+		headerLabels = names(labels);
+	}
+
+	/**
+	 * Appends the content of all pending intervals to the journal file. The
+	 * journal must have been started for the given labeling.
+	 */
+	public void flush(Labeling labeling) throws IOException {
+		Changes changes = takeChanges(labeling);
+		if (changes != null)
+			write(changes);
+	}
+
+	/**
+	 * Takes the pending changes, and copies the content of the changed
+	 * intervals from the labeling. Returns null if there are no pending
+	 * changes.
+	 * <p>
+	 * This must be called by the thread that modifies the labeling, usually
+	 * the event dispatch thread, such that the copy is consistent. The copy is
+	 * run length encoded, and therefore small compared to the changed
+	 * intervals.
+	 */
+	public Changes takeChanges(Labeling labeling) {
+		if (!hasPendingChanges())
+			return null;
+		List<Interval> intervals = takePendingChanges();
+		if (intervals == null)
+			intervals = Collections.singletonList(labeling.interval());
+		List<Label> labels = new ArrayList<>(labeling.getLabels());
+		Map<Label, Integer> labelIndices = new IdentityHashMap<>();
+		for (int i = 0; i < labels.size(); i++)
+			labelIndices.put(labels.get(i), i);
+		List<byte[]> entries = new ArrayList<>(intervals.size());
+		for (Interval interval : intervals)
+			entries.add(encodeEntry(labeling, labelIndices, Intervals.intersect(
+				interval, labeling)));
+		return new Changes(new FinalInterval(labeling.interval()), labels,
+			entries);
+	}
+
+	/**
+	 * Appends the given changes to the journal file. Fails if the labels of the
+	 * changes differ from the labels in the header of the journal.
+	 */
+	public void write(Changes changes) throws IOException {
+		if (!names(changes.labels).equals(headerLabels()))
+			throw new IOException("The labels changed since the labeling journal " +
+				file + " was started.");
+		try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+			for (byte[] entry : changes.entries)
+				appendEntry(output, entry);
+			output.getFD().sync();
+		}
+	}
+
+	/**
+	 * Returns true, if the journal file exists, but the labels in its header
+	 * differ from the given labels. Entries for the given labels can't be
+	 * written to the journal then, it needs to be restarted.
+	 */
+	public boolean labelsChanged(List<Label> labels) {
+		if (!exists())
+			return false;
+		try {
+			return !names(labels).equals(headerLabels());
+		}
+		catch (IOException e) {
+			return true;
+		}
+	}
+
+	private List<String> headerLabels() throws IOException {
+		List<String> labels = headerLabels;
+		if (labels != null)
+			return labels;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+			new FileInputStream(file))))
+		{
+			labels = names(readHeader(in, file).labels);
+		}
+		headerLabels = labels;
+		return labels;
+	}
+
+	/**
+	 * Appends an entry and its checksum to the journal file.
+	 */
+	private static void appendEntry(RandomAccessFile file, byte[] entry)
+		throws IOException
+	{
+		CRC32 crc = new CRC32();
+		crc.update(entry);
+		file.seek(file.length());
+		file.writeInt(entry.length);
+		file.write(entry);
+		file.writeLong(crc.getValue());
+	}
+
+	/**
+	 * Encodes the label sets of the given interval, as runs of pixels with the
+	 * same label set, in flat iteration order. The label sets are numbered in
+	 * the order of their first occurrence. The pixels are read in a single
+	 * pass.
+	 */
+	private static byte[] encodeEntry(Labeling labeling,
+		Map<Label, Integer> labelIndices, Interval interval)
+	{
+		try {
+			ByteArrayOutputStream runBytes = new ByteArrayOutputStream();
+			DataOutputStream runs = new DataOutputStream(runBytes);
+			TIntIntHashMap localIndices = new TIntIntHashMap(16, 0.5f, -1, -1);
+			List<Set<Label>> localSets = new ArrayList<>();
+			if (!Intervals.isEmpty(interval)) {
+				List<Set<Label>> labelSets = labeling.getLabelSets();
+				int runValue = -1;
+				long runLength = 0;
+				for (IntegerType<?> pixel : flatIterable(labeling, interval)) {
+					int value = pixel.getInteger();
+					int localIndex = localIndices.get(value);
+					if (localIndex < 0) {
+						localIndex = localSets.size();
+						localIndices.put(value, localIndex);
+						localSets.add(labelSets.get(value));
+					}
+					if (localIndex != runValue && runLength > 0) {
+						LabelingBinaryFormat.writeVarLong(runs, runLength);
+						LabelingBinaryFormat.writeVarLong(runs, runValue);
+						runLength = 0;
+					}
+					runValue = localIndex;
+					runLength++;
+				}
+				LabelingBinaryFormat.writeVarLong(runs, runLength);
+				LabelingBinaryFormat.writeVarLong(runs, runValue);
+			}
+			ByteArrayOutputStream entryBytes = new ByteArrayOutputStream(runs
+				.size() + 64);
+			DataOutputStream out = new DataOutputStream(entryBytes);
+			LabelingBinaryFormat.writeInterval(out, interval);
+			out.writeInt(localSets.size());
+			for (Set<Label> set : localSets) {
+				List<Integer> indices = set.stream().map(labelIndices::get).filter(
+					i -> i != null).collect(Collectors.toList());
+				out.writeInt(indices.size());
+				for (int index : indices)
+					out.writeInt(index);
+			}
+			runBytes.writeTo(out);
+			out.flush();
+			return entryBytes.toByteArray();
+		}
+		catch (IOException e) {
+			// NB: Writing to a byte array doesn't throw IOExceptions.
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static IterableInterval<? extends IntegerType<?>> flatIterable(
+		Labeling labeling, Interval interval)
+	{
+		RandomAccessibleInterval<? extends IntegerType<?>> indexImg = labeling
+			.getIndexImg();
+		return Views.flatIterable(Views.interval(indexImg, interval));
+	}
+
+	/**
+	 * A consistent copy of changed intervals of a labeling, taken by
+	 * {@link #takeChanges(Labeling)}.
+	 */
+	public static class Changes {
+
+		private final Interval interval;
+
+		private final List<Label> labels;
+
+		private final List<byte[]> entries;
+
+		private Changes(Interval interval, List<Label> labels,
+			List<byte[]> entries)
+		{
+			this.interval = interval;
+			this.labels = Collections.unmodifiableList(labels);
+			this.entries = entries;
+		}
+
+		/**
+		 * Returns the interval of the labeling.
+		 */
+		public Interval interval() {
+			return interval;
+		}
+
+		/**
+		 * Returns the labels of the labeling, at the time the changes were taken.
+		 */
+		public List<Label> labels() {
+			return labels;
+		}
+	}
+
+	/**
+	 * Opens the base file of the journal, and applies all complete entries of
+	 * the journal.
+	 */
+	public static Labeling open(File file, LabelingSerializer serializer)
+		throws IOException
+	{
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+			new FileInputStream(file))))
+		{
+			Header header = readHeader(in, file);
+			Labeling labeling = openBase(header.baseFile, header.interval,
+				header.labels, serializer);
+			List<Label> actualLabels = labeling.getLabels();
+			if (!Intervals.equals(header.interval, labeling) || !names(
+				header.labels).equals(names(actualLabels)))
+				throw new IOException("The labeling journal " + file +
+					" doesn't match its base file: " + header.baseFile);
+			byte[] entry;
+			while ((entry = readEntry(in)) != null)
+				applyEntry(labeling, actualLabels, entry);
+			return labeling;
+		}
+	}
+
+	private static Header readHeader(DataInputStream in, File file)
+		throws IOException
+	{
+		if (in.readInt() != MAGIC)
+			throw new IOException("Not a labeling journal: " + file);
+		int version = in.readInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported version of labeling journal: " +
+				version);
+		String baseFile = in.readUTF();
+		Interval interval = LabelingBinaryFormat.readInterval(in);
+		List<Label> labels = LabelingBinaryFormat.readLabels(in);
+		return new Header(baseFile, interval, labels);
+	}
+
+	private static class Header {
+
+		private final String baseFile;
+
+		private final Interval interval;
+
+		private final List<Label> labels;
+
+		private Header(String baseFile, Interval interval, List<Label> labels) {
+			this.baseFile = baseFile;
+			this.interval = interval;
+			this.labels = labels;
+		}
+	}
+
+	private static Labeling openBase(String baseFile, Interval interval,
+		List<Label> labels, LabelingSerializer serializer) throws IOException
+	{
+		if (baseFile.isEmpty())
+			return Labeling.createEmptyLabels(labels, interval);
+		return serializer.open(baseFile);
+	}
+
+	private static List<String> names(List<Label> labels) {
+		return labels.stream().map(Label::name).collect(Collectors.toList());
+	}
+
+	/**
+	 * Returns the next entry, or null if there is no further complete entry.
+	 */
+	private static byte[] readEntry(DataInputStream in) throws IOException {
+		try {
+			int length = in.readInt();
+			if (length < 0)
+				return null;
+			byte[] entry = new byte[length];
+			in.readFully(entry);
+			long checksum = in.readLong();
+			CRC32 crc = new CRC32();
+			crc.update(entry);
+			return crc.getValue() == checksum ? entry : null;
+		}
+		catch (EOFException e) {
+			return null;
+		}
+	}
+
+	private static void applyEntry(Labeling labeling, List<Label> labels,
+		byte[] entry) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry));
+		Interval interval = LabelingBinaryFormat.readInterval(in);
+		int numSets = in.readInt();
+		if (numSets == 0)
+			return;
+		if (numSets < 0)
+			throw new IOException("Invalid number of label sets in journal entry.");
+		List<List<Label>> sets = new ArrayList<>(numSets);
+		for (int i = 0; i < numSets; i++) {
+			int size = in.readInt();
+			List<Label> set = new ArrayList<>(size);
+			for (int j = 0; j < size; j++)
+				set.add(labels.get(checkIndex(in.readInt(), labels.size())));
+			sets.add(set);
+		}
+		if (!Intervals.contains(labeling, interval))
+			throw new IOException("Journal entry exceeds the labeling.");
+		Cursor<LabelingType<Label>> cursor = Views.flatIterable(Views.interval(
+			labeling, interval)).cursor();
+		long remaining = Intervals.numElements(interval);
+		while (cursor.hasNext()) {
+			long length = LabelingBinaryFormat.readVarLong(in);
+			List<Label> set = sets.get(checkIndex(LabelingBinaryFormat.readVarLong(
+				in), numSets));
+			if (length <= 0 || length > remaining)
+				throw new IOException("Invalid run length in journal entry.");
+			remaining -= length;
+			for (long i = 0; i < length; i++) {
+				LabelingType<Label> value = cursor.next();
+				value.clear();
+				value.addAll(set);
+			}
+		}
+	}
+
+	private static int checkIndex(long index, int size) throws IOException {
+		if (index < 0 || index >= size)
+			throw new IOException("Invalid index in journal entry: " + index);
+		return (int) index;
+	}
+}
@@ -30,7 +30,6 @@
 package sc.fiji.labkit.ui.labeling;
 
 import com.google.gson.*;
-import com.google.gson.internal.LinkedTreeMap;
 import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
@@ -44,15 +43,18 @@ import net.imagej.axis.LinearAxis;
 import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
-import net.imglib2.Point;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.converter.RealTypeConverters;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
+import sc.fiji.labkit.ui.Preferences;
+import sc.fiji.labkit.ui.utils.MemoryMappedIntType;
 import sc.fiji.labkit.ui.utils.NumberAwareStringComparator;
+import sc.fiji.labkit.ui.utils.sparse.RunLengthRegion;
 import net.imglib2.roi.IterableRegion;
 import net.imglib2.roi.labeling.ImgLabeling;
-import sc.fiji.labkit.ui.utils.sparse.SparseIterableRegion;
+import net.imglib2.roi.labeling.LabelingType;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.IntegerType;
@@ -64,11 +66,14 @@ import org.apache.commons.io.FilenameUtils;
 import org.scijava.Context;
 
 import java.awt.*;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.lang.reflect.Type;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
@@ -94,7 +99,12 @@ import java.util.stream.Stream;
  * serializer.save(labeling, filename);
  * </pre>
  * 
- * This allows to use JSON and TIF as formats.
+ * This allows to use JSON, TIF and a compact binary format. Files with the
+ * extension *.labeling are saved as JSON by default. The binary format, see
+ * {@link LabelingBinaryFormat}, is used if it's enabled in the
+ * {@link Preferences} or by {@link #setBinaryFormat(boolean)}, and always for
+ * labelings with a memory-mapped index image. When opening a *.labeling file
+ * the format is detected automatically.
  *
  * @author Matthias Arzt
  */
@@ -102,14 +112,27 @@ public class LabelingSerializer {
 
 	private final Context context;
 
+	private boolean binaryFormat;
+
 	public LabelingSerializer(Context context) {
 		this.context = context;
+		this.binaryFormat = new Preferences(context).isBinaryLabelingFormat();
+	}
+
+	/**
+	 * Sets whether *.labeling files are saved in the binary format instead of
+	 * JSON. The default is taken from the {@link Preferences}.
+	 */
+	public void setBinaryFormat(boolean binaryFormat) {
+		this.binaryFormat = binaryFormat;
 	}
 
 	public Labeling open(String filename) throws IOException {
 		if (FilenameUtils.isExtension(filename, "tif", "tiff"))
 			return openFromTiff(filename);
-		if (FilenameUtils.isExtension(filename, "labeling", "json"))
+		if (FilenameUtils.isExtension(filename, "labeling"))
+			return openFromBinaryOrJson(filename);
+		if (FilenameUtils.isExtension(filename, "json"))
 			return openFromJson(filename);
 		throw new IllegalArgumentException(
 			"Filename must have supported extension (*.labeling, *.tif, *.tiff)");
@@ -124,6 +147,17 @@ public class LabelingSerializer {
 		}
 	}
 
+	private Labeling openFromBinaryOrJson(String filename) throws IOException {
+		try (BufferedInputStream input = new BufferedInputStream(
+			new FileInputStream(filename)))
+		{
+			if (LabelingBinaryFormat.isBinaryFormat(input))
+				return LabelingBinaryFormat.read(input, new File(filename)
+					.getAbsoluteFile().getParentFile());
+		}
+		return openFromJson(filename);
+	}
+
 	private Labeling openFromTiff(String filename) throws IOException {
 		Img<? extends IntegerType<?>> img = openImageFromTiff(filename);
 		if (new File(filename + ".labels").exists()) {
@@ -167,12 +201,58 @@ public class LabelingSerializer {
 	public void save(Labeling labeling, String filename) throws IOException {
 		if (FilenameUtils.isExtension(filename, "tif", "tiff"))
 			saveAsTiff(labeling, filename);
-		else if (FilenameUtils.isExtension(filename, "labeling",
-			"json")) saveAsJson(labeling, filename);
+		else if (FilenameUtils.isExtension(filename, "labeling")) {
+			List<File> oldSnapshots = LabelingBinaryFormat.indexFiles(new File(
+				filename));
+			if (binaryFormat || labeling.getIndexImg() instanceof MemoryMappedIntType)
+				saveAsBinary(labeling, filename);
+			else
+				saveAsJson(labeling, filename);
+			deleteSnapshots(oldSnapshots, filename);
+		}
+		else if (FilenameUtils.isExtension(filename, "json"))
+			saveAsJson(labeling, filename);
 		else throw new IllegalArgumentException(
 			"Filename must have supported extension (*.labeling, *.tif, *.tiff)");
 	}
 
+	/**
+	 * Moves a *.labeling file, and deletes the index image snapshots of the
+	 * replaced file, that are no longer used. The snapshots of the moved file
+	 * stay where they are, the moved file must stay in the same directory.
+	 */
+	public static void move(String source, String target) throws IOException {
+		List<File> oldSnapshots = LabelingBinaryFormat.indexFiles(new File(
+			target));
+		Files.move(Paths.get(source), Paths.get(target),
+			StandardCopyOption.REPLACE_EXISTING);
+		deleteSnapshots(oldSnapshots, target);
+	}
+
+	/**
+	 * Deletes a *.labeling file, and the index image snapshots it refers to.
+	 * Snapshots that are also used by the labeling file "keep" are not deleted.
+	 */
+	public static void delete(String filename, String keep) throws IOException {
+		List<File> snapshots = LabelingBinaryFormat.indexFiles(new File(filename));
+		Files.deleteIfExists(Paths.get(filename));
+		deleteSnapshots(snapshots, keep);
+	}
+
+	/**
+	 * Deletes the given snapshots, except for those used by the labeling file
+	 * "keep". A snapshot that is still mapped by an opened labeling might not
+	 * be deletable on some operating systems, it is deleted on exit instead.
+	 */
+	private static void deleteSnapshots(List<File> snapshots, String keep)
+		throws IOException
+	{
+		List<File> used = LabelingBinaryFormat.indexFiles(new File(keep));
+		for (File snapshot : snapshots)
+			if (!used.contains(snapshot) && !snapshot.delete() && snapshot.exists())
+				snapshot.deleteOnExit();
+	}
+
 	private void saveAsJson(Labeling labeling, String filename)
 		throws IOException
 	{
@@ -186,6 +266,19 @@ public class LabelingSerializer {
 			StandardCopyOption.REPLACE_EXISTING);
 	}
 
+	private void saveAsBinary(Labeling labeling, String filename)
+		throws IOException
+	{
+		final String tmpFilename = filename + ".tmp";
+		try (OutputStream output = new FileOutputStream(tmpFilename)) {
+			LabelingBinaryFormat.write(labeling, output, new File(filename));
+		}
+		// Rename the file at the end, ensures to not corrupt an existing file,
+		// it the saving is interrupted by an exception.
+		Files.move(Paths.get(tmpFilename), Paths.get(filename),
+			StandardCopyOption.REPLACE_EXISTING);
+	}
+
 	private <I extends IntegerType<I>> void saveAsTiff(Labeling labeling,
 		String filename) throws IOException
 	{
@@ -213,6 +306,12 @@ public class LabelingSerializer {
 		}
 	}
 
+	/**
+	 * Gson {@link TypeAdapter} for {@link Labeling}. The coordinates of the
+	 * labeled pixels are streamed directly from the labeling to the
+	 * {@link JsonWriter}, and from the {@link JsonReader} into the labeling,
+	 * without building a tree of JSON elements.
+	 */
 	public static class Adapter extends TypeAdapter<Labeling> {
 
 		@Override
@@ -220,23 +319,27 @@ public class LabelingSerializer {
 			throws IOException
 		{
 			Gson gson = new Gson();
-			JsonObject jsonLabeling = new JsonObject();
-			jsonLabeling.add("interval", gson.toJsonTree(new FinalInterval(labeling),
-				FinalInterval.class));
-			jsonLabeling.add("pixelSizes", gson.toJsonTree(getPixelSize(labeling),
-				PixelSize[].class));
-			jsonLabeling.add("labels", regionsToJson(labeling, gson));
-			jsonLabeling.add("colors", colorsToJson(labeling.getLabels()));
-			gson.toJson(jsonLabeling, jsonWriter);
+			jsonWriter.beginObject();
+			jsonWriter.name("interval");
+			gson.toJson(new FinalInterval(labeling), FinalInterval.class, jsonWriter);
+			jsonWriter.name("pixelSizes");
+			gson.toJson(getPixelSize(labeling), PixelSize[].class, jsonWriter);
+			jsonWriter.name("labels");
+			writeRegions(jsonWriter, labeling);
+			jsonWriter.name("colors");
+			writeColors(jsonWriter, labeling.getLabels());
+			jsonWriter.endObject();
 		}
 
-		private JsonElement colorsToJson(List<Label> labels) {
-			JsonObject map = new JsonObject();
+		private void writeColors(JsonWriter jsonWriter, List<Label> labels)
+			throws IOException
+		{
+			jsonWriter.beginObject();
 			for (Label label : labels) {
 				String format = String.format("#%06X", label.color().get() & 0xffffff);
-				map.add(label.name(), new JsonPrimitive(format));
+				jsonWriter.name(label.name()).value(format);
 			}
-			return map;
+			jsonWriter.endObject();
 		}
 
 		private PixelSize[] getPixelSize(Labeling labeling) {
@@ -251,99 +354,143 @@ public class LabelingSerializer {
 			return new PixelSize(linear.scale(), linear.unit());
 		}
 
-		private JsonObject regionsToJson(
-			Labeling labeling, Gson gson)
+		private void writeRegions(JsonWriter jsonWriter, Labeling labeling)
+			throws IOException
 		{
-			JsonObject map = new JsonObject();
-			Map<Label, IterableRegion<BitType>> iterableRegions = labeling.iterableRegions();
+			// NB: The runs of all labels are collected in a single pass over the
+			// index image. They are much smaller than the list of coordinates.
+			Map<Label, RunLengthRegion> regions = labeling.runLengthRegions();
+			jsonWriter.beginObject();
 			// Add the label in the same order as returned by labeling.getLabels().
-			for (Label label : labeling.getLabels())
-				map.add(label.name(), regionToJson(gson, iterableRegions.get(label)));
-			return map;
+			for (Label label : labeling.getLabels()) {
+				jsonWriter.name(label.name());
+				writeRegion(jsonWriter, regions.get(label));
+			}
+			jsonWriter.endObject();
 		}
 
-		private JsonElement regionToJson(Gson gson,
-			IterableRegion<BitType> region)
+		private void writeRegion(JsonWriter jsonWriter,
+			IterableRegion<BitType> region) throws IOException
 		{
-			JsonArray result = new JsonArray();
+			jsonWriter.beginArray();
 			Cursor<Void> cursor = region.cursor();
-			long[] coords = new long[cursor.numDimensions()];
+			int n = cursor.numDimensions();
 			while (cursor.hasNext()) {
 				cursor.fwd();
-				cursor.localize(coords);
-				result.add(gson.toJsonTree(coords, long[].class));
+				jsonWriter.beginArray();
+				for (int d = 0; d < n; d++)
+					jsonWriter.value(cursor.getLongPosition(d));
+				jsonWriter.endArray();
 			}
-			return result;
+			jsonWriter.endArray();
 		}
 
 		@Override
 		public Labeling read(JsonReader jsonReader) throws IOException {
-			Gson gson = new GsonBuilder().registerTypeAdapter(Labeling.class,
-				new MyDeserializer()).create();
-			return gson.fromJson(jsonReader, Labeling.class);
+			Gson gson = new Gson();
+			Interval interval = null;
+			PixelSize[] pixelSizes = null;
+			JsonElement bufferedLabels = null;
+			Labeling labeling = null;
+			Map<String, String> colors = null;
+			jsonReader.beginObject();
+			while (jsonReader.hasNext()) {
+				switch (jsonReader.nextName()) {
+					case "interval":
+						interval = gson.fromJson(jsonReader, FinalInterval.class);
+						break;
+					case "pixelSizes":
+						pixelSizes = gson.fromJson(jsonReader, PixelSize[].class);
+						break;
+					case "labels":
+						// NB: The labels can only be streamed, if the interval is known.
+						if (interval == null)
+							bufferedLabels = gson.fromJson(jsonReader, JsonElement.class);
+						else
+							labeling = readRegions(jsonReader, interval);
+						break;
+					case "colors":
+						colors = gson.fromJson(jsonReader, new TypeToken<Map<String, String>>()
+						{}.getType());
+						break;
+					default:
+						jsonReader.skipValue();
+				}
+			}
+			jsonReader.endObject();
+			if (interval == null)
+				throw new JsonParseException("Labeling is missing the interval.");
+			if (bufferedLabels != null)
+				labeling = readRegions(bufferedLabels.getAsJsonObject(), interval);
+			if (labeling == null)
+				labeling = Labeling.createEmptyLabels(Collections.emptyList(),
+					interval);
+			if (pixelSizes != null)
+				labeling.setAxes(pixelSizesToAxes(pixelSizes));
+			if (colors != null)
+				setColors(labeling, colors);
+			return labeling;
 		}
 
-		private static class MyDeserializer implements JsonDeserializer<Labeling> {
-
-			@Override
-			public Labeling deserialize(JsonElement json, Type typeOfT,
-				JsonDeserializationContext context) throws JsonParseException
-			{
-				JsonObject object = json.getAsJsonObject();
-				Interval interval = context.deserialize(object.get("interval"),
-					FinalInterval.class);
-				PixelSize[] axes = context.deserialize(object.get("pixelSizes"),
-					PixelSize[].class);
-				Map<String, IterableRegion<BitType>> regions = new LinkedTreeMap<>();
-				for (Map.Entry<String, JsonElement> entry : object.getAsJsonObject("labels").entrySet()) {
-					regions.put(entry.getKey(), regionFromJson(context, interval, entry.getValue()));
+		private Labeling readRegions(JsonReader jsonReader, Interval interval)
+			throws IOException
+		{
+			Labeling labeling = Labeling.createEmptyLabels(Collections.emptyList(),
+				interval);
+			RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+			long[] coords = new long[interval.numDimensions()];
+			jsonReader.beginObject();
+			while (jsonReader.hasNext()) {
+				Label label = labeling.addLabel(jsonReader.nextName());
+				jsonReader.beginArray();
+				while (jsonReader.hasNext()) {
+					jsonReader.beginArray();
+					for (int d = 0; d < coords.length; d++)
+						coords[d] = jsonReader.nextLong();
+					jsonReader.endArray();
+					ra.setPosition(coords);
+					ra.get().add(label);
 				}
-				Labeling labeling = regions.isEmpty() ? Labeling.createEmptyLabels(
-					Collections.emptyList(), interval) : Labeling.fromMap(regions);
-				labeling.setAxes(pixelSizesToAxes(axes));
-				deserializeColors(context, object, labeling);
-				return labeling;
+				jsonReader.endArray();
 			}
+			jsonReader.endObject();
+			return labeling;
+		}
 
-			private void deserializeColors(JsonDeserializationContext context, JsonObject object,
-				Labeling labeling)
-			{
-				if (!object.has("colors"))
-					return;
-				Map<String, String> map = context.deserialize(object.get("colors"),
-					new TypeToken<Map<String, String>>()
-					{}.getType());
-				for (Label label : labeling.getLabels()) {
-					String color = map.get(label.name());
-					if (color != null)
-						label.setColor(new ARGBType(Color.decode(color).getRGB()));
+		private Labeling readRegions(JsonObject labels, Interval interval) {
+			Labeling labeling = Labeling.createEmptyLabels(Collections.emptyList(),
+				interval);
+			RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+			long[] coords = new long[interval.numDimensions()];
+			for (Map.Entry<String, JsonElement> entry : labels.entrySet()) {
+				Label label = labeling.addLabel(entry.getKey());
+				for (JsonElement pixel : entry.getValue().getAsJsonArray()) {
+					JsonArray position = pixel.getAsJsonArray();
+					for (int d = 0; d < coords.length; d++)
+						coords[d] = position.get(d).getAsLong();
+					ra.setPosition(coords);
+					ra.get().add(label);
 				}
 			}
+			return labeling;
+		}
 
-			private List<CalibratedAxis> pixelSizesToAxes(PixelSize[] axes) {
-				return Stream.of(axes).map(this::pixelSizeToAxis).collect(Collectors
-					.toList());
+		private void setColors(Labeling labeling, Map<String, String> colors) {
+			for (Label label : labeling.getLabels()) {
+				String color = colors.get(label.name());
+				if (color != null)
+					label.setColor(new ARGBType(Color.decode(color).getRGB()));
 			}
+		}
 
-			private LinearAxis pixelSizeToAxis(PixelSize pixelSize) {
-				return new DefaultLinearAxis(Axes.unknown(), pixelSize.unit,
-					pixelSize.size);
-			}
+		private List<CalibratedAxis> pixelSizesToAxes(PixelSize[] axes) {
+			return Stream.of(axes).map(this::pixelSizeToAxis).collect(Collectors
+				.toList());
+		}
 
-			private SparseIterableRegion regionFromJson(
-				JsonDeserializationContext context, Interval interval,
-				JsonElement jsonCoords)
-			{
-				SparseIterableRegion result = new SparseIterableRegion(interval);
-				JsonArray array = jsonCoords.getAsJsonArray();
-				Point point = new Point(interval.numDimensions());
-				for (JsonElement item : array) {
-					long[] coords = context.deserialize(item, long[].class);
-					point.setPosition(coords);
-					result.add(point);
-				}
-				return result;
-			}
+		private LinearAxis pixelSizeToAxis(PixelSize pixelSize) {
+			return new DefaultLinearAxis(Axes.unknown(), pixelSize.unit,
+				pixelSize.size);
 		}
 
 		private static class PixelSize {
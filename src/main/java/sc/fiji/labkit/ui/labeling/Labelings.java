@@ -29,7 +29,6 @@
 
 package sc.fiji.labkit.ui.labeling;
 
-import net.imglib2.Cursor;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
@@ -61,29 +60,12 @@ public class Labelings {
 		List<Labeling> slices = IntStream.range(0, Math.toIntExact(labeling
 			.dimension(sliceDimension))).mapToObj(ignore -> Labeling
 				.createEmptyLabels(labels, sliceInterval)).collect(Collectors.toList());
-		sparseCopy(labeling, Views.stack(slices));
+		RandomAccessibleInterval<LabelingType<Label>> stack = Views.stack(slices);
+		labeling.runLengthRegions().forEach((label, region) -> region.forEachPixel(
+			stack, set -> set.add(label)));
 		return slices;
 	}
 
-	private static void sparseCopy(Labeling labeling,
-		RandomAccessibleInterval<LabelingType<Label>> target)
-	{
-		Cursor<?> cursor = labeling.sparsityCursor();
-		RandomAccess<LabelingType<Label>> out = target.randomAccess();
-		RandomAccess<LabelingType<Label>> in = labeling.randomAccess();
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			in.setPosition(cursor);
-			out.setPosition(cursor);
-			copy(in.get(), out.get());
-		}
-	}
-
-	private static <T> void copy(Set<T> in, Set<T> out) {
-		out.clear();
-		out.addAll(in);
-	}
-
 	public static Labeling singleton(Interval interval, String labelName,
 		long... coordinates)
 	{
@@ -0,0 +1,99 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.models;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how often the cells of the cached segmentation and probability map
+ * images are computed, evicted from memory to disk, and loaded back from disk.
+ * Cells are evicted when they are garbage collected.
+ * The numbers help to choose a good cache size, see
+ * {@link DefaultCachedImageFactory#setMaxCacheSizeInBytes(long)}.
+ *
+ * @author Matthias Arzt
+ */
+public class CacheStatistics {
+
+	private final AtomicLong computed = new AtomicLong();
+
+	private final AtomicLong evicted = new AtomicLong();
+
+	private final AtomicLong loaded = new AtomicLong();
+
+	void cellComputed() {
+		computed.incrementAndGet();
+	}
+
+	void cellEvicted() {
+		evicted.incrementAndGet();
+	}
+
+	/**
+	 * Called whenever a cell is missing in memory, and is either computed or
+	 * loaded from disk.
+	 */
+	void cellLoaded() {
+		loaded.incrementAndGet();
+	}
+
+	/**
+	 * Number of cells, that were not in the cache and needed to be computed.
+	 */
+	public long getComputed() {
+		return computed.get();
+	}
+
+	/**
+	 * Number of cells, that were removed from memory and written to disk.
+	 */
+	public long getEvicted() {
+		return evicted.get();
+	}
+
+	/**
+	 * Number of cells, that were not in memory but could be loaded from disk.
+	 */
+	public long getLoadedFromDisk() {
+		return Math.max(0, loaded.get() - computed.get());
+	}
+
+	public void reset() {
+		computed.set(0);
+		evicted.set(0);
+		loaded.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "computed: " + getComputed() + ", evicted: " + getEvicted() +
+			", loaded from disk: " + getLoadedFromDisk();
+	}
+}
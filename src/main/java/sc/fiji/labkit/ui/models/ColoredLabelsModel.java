@@ -29,16 +29,12 @@
 
 package sc.fiji.labkit.ui.models;
 
-import net.imglib2.Cursor;
-import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.util.Intervals;
 import sc.fiji.labkit.ui.labeling.Label;
 import sc.fiji.labkit.ui.labeling.Labeling;
 import sc.fiji.labkit.ui.panel.LabelPanel;
 import sc.fiji.labkit.ui.utils.Notifier;
-import net.imglib2.roi.IterableRegion;
-import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.ARGBType;
 
 import java.util.ArrayList;
@@ -125,8 +121,7 @@ public class ColoredLabelsModel {
 	}
 
 	public void localizeLabel(final Label label) {
-		Interval interval = getBoundingBox(model.labeling().get().iterableRegions()
-			.get(label));
+		Interval interval = model.labeling().get().getBoundingBox(label);
 		if (interval == null) return;
 		interval = Intervals.expand(interval, Math.max(interval.dimension(0), 20), 0);
 		interval = Intervals.expand(interval, Math.max(interval.dimension(1), 20), 1);
@@ -134,24 +129,8 @@ public class ColoredLabelsModel {
 			.labelTransformation());
 	}
 
-	private static Interval getBoundingBox(IterableRegion<BitType> region) {
-		int numDimensions = region.numDimensions();
-		Cursor<?> cursor = region.cursor();
-		if (!cursor.hasNext()) return null;
-		long[] min = new long[numDimensions];
-		long[] max = new long[numDimensions];
-		cursor.fwd();
-		cursor.localize(min);
-		cursor.localize(max);
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			for (int i = 0; i < numDimensions; i++) {
-				int pos = cursor.getIntPosition(i);
-				min[i] = Math.min(min[i], pos);
-				max[i] = Math.max(max[i], pos);
-			}
-		}
-		return new FinalInterval(min, max);
+	public long getPixelCount(Label label) {
+		return model.labeling().get().getPixelCount(label);
 	}
 
 	public void clearLabel(Label selected) {
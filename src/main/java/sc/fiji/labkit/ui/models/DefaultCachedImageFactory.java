@@ -30,28 +30,103 @@
 package sc.fiji.labkit.ui.models;
 
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.cache.img.CellLoader;
-import net.imglib2.cache.img.DiskCachedCellImgFactory;
-import net.imglib2.cache.img.DiskCachedCellImgOptions;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.CacheLoader;
+import net.imglib2.cache.IoSync;
+import net.imglib2.cache.img.AccessIo;
+import net.imglib2.cache.img.DiskCachedCellImg;
+import net.imglib2.cache.img.DiskCellCache;
+import net.imglib2.cache.img.LoadedCellCacheLoader;
+import net.imglib2.cache.ref.SoftRefLoaderRemoverCache;
 import net.imglib2.img.Img;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.ArrayDataAccessFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.Cell;
 import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.Fraction;
 import sc.fiji.labkit.ui.segmentation.Segmenter;
 import net.imglib2.type.NativeType;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.function.Consumer;
 
+import static net.imglib2.img.basictypeaccess.AccessFlags.DIRTY;
+import static net.imglib2.img.basictypeaccess.AccessFlags.VOLATILE;
+
+/**
+ * {@link CachedImageFactory} that creates disk cached images. The cells of all
+ * images are softly referenced, and written to a temporary directory when
+ * they are garbage collected, which avoids recomputing them. Additionally, the
+ * most recently loaded cells of all images are strongly referenced, such that
+ * they survive garbage collection. The memory used by these strong references
+ * is limited by {@link #setMaxCacheSizeInBytes(long)}, the cells that were
+ * loaded first are released first.
+ */
 public class DefaultCachedImageFactory implements CachedImageFactory {
 
+	private static final Set<AccessFlags> FLAGS = AccessFlags.setOf(VOLATILE,
+		DIRTY);
+
+	private static final CacheStatistics statistics = new CacheStatistics();
+
+	private static volatile long maxCacheSizeInBytes = defaultMaxCacheSize();
+
+	private static final LoadedCellsFifo loadedCells = new LoadedCellsFifo();
+
 	public static CachedImageFactory getInstance() {
 		return new DefaultCachedImageFactory();
 	}
 
+	/**
+	 * Sets the amount of memory, that is used to keep the most recently loaded
+	 * cells of all cached images in memory. A value of zero or less restores
+	 * the default, a quarter of the maximum heap size.
+	 */
+	public static void setMaxCacheSizeInBytes(long bytes) {
+		maxCacheSizeInBytes = bytes > 0 ? bytes : defaultMaxCacheSize();
+		loadedCells.shrink();
+	}
+
+	public static long getMaxCacheSizeInBytes() {
+		return maxCacheSizeInBytes;
+	}
+
+	/**
+	 * Returns the counters for the cells of all images created by this factory.
+	 */
+	public static CacheStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Returns the memory used by the strongly referenced cells.
+	 */
+	static long getStronglyReferencedBytes() {
+		return loadedCells.sizeInBytes();
+	}
+
+	static long defaultMaxCacheSize() {
+		return Runtime.getRuntime().maxMemory() / 4;
+	}
+
 	private DefaultCachedImageFactory() {
 
 	}
 
 	@Override
+	@SuppressWarnings({ "unchecked", "rawtypes" })
 	public <T extends NativeType<T>> Img<T> setupCachedImage(Segmenter segmenter,
 		Consumer<RandomAccessibleInterval<T>> loader, CellGrid grid, T type)
 	{
@@ -59,14 +134,69 @@ public class DefaultCachedImageFactory implements CachedImageFactory {
 		final long[] imgDimensions = grid.getImgDimensions();
 		Arrays.setAll(cellDimensions,
 			i -> (int) Math.min(cellDimensions[i], imgDimensions[i]));
-		DiskCachedCellImgOptions optional = DiskCachedCellImgOptions.options()
-			// .cacheType( CacheType.BOUNDED )
-			// .maxCacheSize( 1000 )
-			.cellDimensions(cellDimensions).initializeCellsAsDirty(true);
-		final DiskCachedCellImgFactory<T> factory =
-			new DiskCachedCellImgFactory<>(type, optional);
-		return factory.create(imgDimensions, loader::accept,
-			DiskCachedCellImgOptions.options().initializeCellsAsDirty(true));
+		CellGrid cellGrid = new CellGrid(imgDimensions, cellDimensions);
+		ArrayDataAccess accessType = ArrayDataAccessFactory.get(type, FLAGS);
+		return setupCachedImage(loader, cellGrid, type, accessType);
+	}
+
+	private <T extends NativeType<T>, A extends ArrayDataAccess<A>> Img<T>
+		setupCachedImage(Consumer<RandomAccessibleInterval<T>> loader,
+			CellGrid grid, T type, A accessType)
+	{
+		final CacheLoader<Long, Cell<A>> cellLoader = LoadedCellCacheLoader.get(
+			grid, loader::accept, type, FLAGS);
+		final CacheLoader<Long, Cell<A>> countingLoader = key -> {
+			statistics.cellComputed();
+			return cellLoader.get(key);
+		};
+		final DiskCellCache<A> diskCache = new CountingDiskCellCache<>(
+			createTempDirectory(), grid, countingLoader, AccessIo.get(type, FLAGS),
+			type.getEntitiesPerPixel());
+		int numIoThreads = 1;
+		int maxIoQueueSize = Runtime.getRuntime().availableProcessors() * 2;
+		final IoSync<Long, Cell<A>, A> iosync = new IoSync<>(diskCache,
+			numIoThreads, maxIoQueueSize);
+		final long bytesPerCell = bytesPerCell(grid, type, accessType);
+		// NB: The owner identifies the cells of the image. It must not reference
+		// the image, otherwise the image is never garbage collected.
+		final Object owner = new Object();
+		final Cache<Long, Cell<A>> cache =
+			new SoftRefLoaderRemoverCache<Long, Cell<A>, A>().withRemover(iosync)
+				.withLoader(key -> loadedCells.add(owner, iosync.get(key),
+					bytesPerCell));
+		final DiskCachedCellImg<T, A> img = new DiskCachedCellImg<>(null, grid,
+			type.getEntitiesPerPixel(), cache, iosync, accessType);
+		img.setLinkedType(type.getNativeTypeFactory().createLinkedType(img));
+		loadedCells.register(img, owner);
+		return img;
+	}
+
+	private static Path createTempDirectory() {
+		try {
+			return DiskCellCache.createTempDirectory("labkit-cache", true);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static long bytesPerCell(CellGrid grid, NativeType<?> type,
+		ArrayDataAccess<?> accessType)
+	{
+		long cellVolume = 1;
+		for (int d = 0; d < grid.numDimensions(); d++)
+			cellVolume *= grid.cellDimension(d);
+		return type.getEntitiesPerPixel().mulCeil(cellVolume) * bytesPerEntity(
+			accessType);
+	}
+
+	private static int bytesPerEntity(ArrayDataAccess<?> accessType) {
+		Class<?> entity = accessType.getCurrentStorageArray().getClass()
+			.getComponentType();
+		if (entity == byte.class || entity == boolean.class) return 1;
+		if (entity == short.class || entity == char.class) return 2;
+		if (entity == long.class || entity == double.class) return 8;
+		return 4;
 	}
 
 	private static int[] getCellDimensions(CellGrid grid) {
@@ -75,4 +205,122 @@ public class DefaultCachedImageFactory implements CachedImageFactory {
 		return cellDimensions;
 	}
 
+	/**
+	 * {@link DiskCellCache} that updates the {@link CacheStatistics}.
+	 */
+	private static class CountingDiskCellCache<A> extends DiskCellCache<A> {
+
+		private CountingDiskCellCache(Path blockcache, CellGrid grid,
+			CacheLoader<Long, ? extends Cell<?>> backingLoader, AccessIo<A> accessIo,
+			Fraction entitiesPerPixel)
+		{
+			super(blockcache, grid, backingLoader, accessIo, entitiesPerPixel);
+		}
+
+		@Override
+		public Cell<A> get(Long key) throws Exception {
+			statistics.cellLoaded();
+			return super.get(key);
+		}
+
+		@Override
+		public void onRemoval(Long key, A valueData) {
+			statistics.cellEvicted();
+			super.onRemoval(key, valueData);
+		}
+	}
+
+	/**
+	 * Strong references to the most recently loaded cells of all images. The
+	 * total size of the cells is limited by {@link #maxCacheSizeInBytes}. The
+	 * cells are released in first-in-first-out order: a cell that is used
+	 * again doesn't move to the end of the queue, because the cache doesn't
+	 * report cache hits. The cells of an image are released, once the image
+	 * is garbage collected.
+	 */
+	private static class LoadedCellsFifo {
+
+		// NB: Cells don't override equals, they are compared by identity.
+		private final LinkedHashMap<Object, CellEntry> cells =
+			new LinkedHashMap<>();
+
+		private final ReferenceQueue<Object> releasedImages =
+			new ReferenceQueue<>();
+
+		// NB: Keeps the references to the images from being garbage collected.
+		private final Set<ImageReference> images = new HashSet<>();
+
+		private long sizeInBytes = 0;
+
+		/**
+		 * Releases the cells of the given owner, once the image is garbage
+		 * collected.
+		 */
+		private synchronized void register(Img<?> image, Object owner) {
+			images.add(new ImageReference(image, owner, releasedImages));
+		}
+
+		private synchronized <V> V add(Object owner, V cell, long bytes) {
+			removeReleasedImages();
+			if (cells.put(cell, new CellEntry(owner, bytes)) == null)
+				sizeInBytes += bytes;
+			shrink();
+			return cell;
+		}
+
+		private synchronized void shrink() {
+			Iterator<CellEntry> iterator = cells.values().iterator();
+			while (sizeInBytes > maxCacheSizeInBytes && iterator.hasNext()) {
+				sizeInBytes -= iterator.next().bytes;
+				iterator.remove();
+			}
+		}
+
+		private synchronized long sizeInBytes() {
+			removeReleasedImages();
+			return sizeInBytes;
+		}
+
+		private void removeReleasedImages() {
+			Set<Object> owners = new HashSet<>();
+			for (Reference<?> r; (r = releasedImages.poll()) != null;) {
+				images.remove(r);
+				owners.add(((ImageReference) r).owner);
+			}
+			if (owners.isEmpty())
+				return;
+			Iterator<CellEntry> iterator = cells.values().iterator();
+			while (iterator.hasNext()) {
+				CellEntry entry = iterator.next();
+				if (owners.contains(entry.owner)) {
+					sizeInBytes -= entry.bytes;
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	private static class CellEntry {
+
+		private final Object owner;
+
+		private final long bytes;
+
+		private CellEntry(Object owner, long bytes) {
+			this.owner = owner;
+			this.bytes = bytes;
+		}
+	}
+
+	private static class ImageReference extends WeakReference<Object> {
+
+		private final Object owner;
+
+		private ImageReference(Object image, Object owner,
+			ReferenceQueue<Object> queue)
+		{
+			super(image, queue);
+			this.owner = owner;
+		}
+	}
 }
@@ -59,6 +59,8 @@ public class SegmentationItem extends ForwardingSegmenter {
 
 	private boolean modified;
 
+	private boolean keepPreviousResults = false;
+
 	private final Map<ImageLabelingModel, SegmentationResultsModel> results;
 
 	private final ExtensionPoints extensionPoints;
@@ -105,10 +107,27 @@ public class SegmentationItem extends ForwardingSegmenter {
 
 	@Override
 	public void train(List<Pair<ImgPlus<?>, Labeling>> data) {
-		results.forEach((i, r) -> r.clear());
+		if (!keepPreviousResults)
+			results.forEach((i, r) -> r.clear());
 		modified = true;
 		super.train(data);
-		results.forEach((i, r) -> r.update());
+		if (keepPreviousResults)
+			results.forEach((i, r) -> r.updateKeepingPreviousResults());
+		else
+			results.forEach((i, r) -> r.update());
+	}
+
+	/**
+	 * If set to true, the segmentation is not cleared when the classifier is
+	 * retrained. Instead the previous segmentation is shown, until the cells are
+	 * recomputed with the new classifier.
+	 */
+	public void setKeepPreviousResults(boolean keepPreviousResults) {
+		this.keepPreviousResults = keepPreviousResults;
+	}
+
+	public boolean isKeepPreviousResults() {
+		return keepPreviousResults;
 	}
 
 	public boolean isModified() {
@@ -33,6 +33,10 @@ import net.imagej.ImgPlus;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import sc.fiji.labkit.ui.inputimage.ImgPlusViewsOld;
 import sc.fiji.labkit.ui.labeling.Label;
 import sc.fiji.labkit.ui.labeling.Labeling;
 import sc.fiji.labkit.ui.segmentation.SegmentationUtils;
@@ -42,11 +46,16 @@ import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.ConstantUtils;
+import net.imglib2.util.IntervalIndexer;
 import net.imglib2.util.Intervals;
 
+import javax.swing.SwingUtilities;
 import java.util.Collections;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
@@ -56,15 +65,32 @@ import java.util.stream.Collectors;
  */
 public class SegmentationResultsModel {
 
+	/**
+	 * Subsampling factor of the spatial axes used for
+	 * {@link #previewSegmentation()}.
+	 */
+	public static final int PREVIEW_FACTOR = 4;
+
 	private final ExtensionPoints extensionPoints;
 	private final ImageLabelingModel model;
 	private final Segmenter segmenter;
 	private boolean hasResults = false;
 	private RandomAccessibleInterval<UnsignedByteType> segmentation;
 	private RandomAccessibleInterval<FloatType> prediction;
+	private RandomAccessibleInterval<UnsignedByteType> previewSegmentation;
+	private RandomAccessibleInterval<UnsignedByteType> previousSegmentation;
 	private List<String> labels = Collections.emptyList();
 	private List<ARGBType> colors = Collections.emptyList();
 
+	/**
+	 * True, once the probability map was requested by {@link #prediction()}.
+	 * Only then the segmentation is derived from the probability map, such that
+	 * both share the evaluation of the classifier. Otherwise the segmentation is
+	 * computed directly, which avoids caching a probability map, that nobody
+	 * looks at.
+	 */
+	private volatile boolean predictionUsed = false;
+
 	private final Notifier listeners = new Notifier();
 
 	public SegmentationResultsModel(ImageLabelingModel model, ExtensionPoints extensionPoints,
@@ -84,17 +110,49 @@ public class SegmentationResultsModel {
 	}
 
 	public void update() {
+		update(null);
+	}
+
+	/**
+	 * Same as {@link #update()}, but the current segmentation is kept as
+	 * {@link #previousSegmentation()}, such that it can be shown until the cells
+	 * of the new segmentation are computed. The previous segmentation is
+	 * released, once every cell of the new segmentation was computed.
+	 */
+	public void updateKeepingPreviousResults() {
+		update(hasResults ? segmentation : null);
+	}
+
+	private void update(RandomAccessibleInterval<UnsignedByteType> previous) {
 		if (segmenter.isTrained()) {
-			updateSegmentation(segmenter);
-			updatePrediction(segmenter);
+			List<String> previousLabels = labels;
+			boolean shared = predictionUsed && segmenter
+				.isSegmentationArgMaxOfPrediction();
+			updateSegmentation(segmenter, shared, previous == null ? null
+				: () -> SwingUtilities.invokeLater(() -> releasePreviousSegmentation(
+					previous)));
+			updatePrediction(segmenter, shared);
 			this.labels = segmenter.classNames();
 			this.colors = this.labels.stream().map(this::getLabelColor).collect(
 				Collectors.toList());
+			// NB: The pixel values of the previous segmentation are only meaningful
+			// if the classes are still the same.
+			this.previousSegmentation = labels.equals(previousLabels) ? previous
+				: null;
 			hasResults = true;
 			listeners.notifyListeners();
 		}
 	}
 
+	private void releasePreviousSegmentation(
+		RandomAccessibleInterval<UnsignedByteType> previous)
+	{
+		if (previousSegmentation != previous)
+			return;
+		previousSegmentation = null;
+		listeners.notifyListeners();
+	}
+
 	private ARGBType getLabelColor(String name) {
 		Labeling labeling = model.labeling().get();
 		try {
@@ -112,6 +170,8 @@ public class SegmentationResultsModel {
 	public void clear() {
 		segmentation = dummy(new UnsignedByteType());
 		prediction = dummy(new FloatType());
+		previewSegmentation = null;
+		previousSegmentation = null;
 		hasResults = false;
 		listeners.notifyListeners();
 	}
@@ -120,25 +180,117 @@ public class SegmentationResultsModel {
 		return segmentation;
 	}
 
+	/**
+	 * Returns a segmentation of the image, subsampled by {@link #PREVIEW_FACTOR}
+	 * along the spatial axes. It's much faster to calculate and can be shown
+	 * while the full resolution segmentation is computed. Returns null for time
+	 * series, or if there are no results.
+	 */
+	public RandomAccessibleInterval<UnsignedByteType> previewSegmentation() {
+		return previewSegmentation;
+	}
+
+	/**
+	 * Returns the segmentation, that was shown before the last call of
+	 * {@link #updateKeepingPreviousResults()}, or null. Only the cells, that
+	 * are already computed, should be read from it.
+	 */
+	public RandomAccessibleInterval<UnsignedByteType> previousSegmentation() {
+		return previousSegmentation;
+	}
+
 	private <T> RandomAccessibleInterval<T> dummy(T value) {
 		FinalInterval interval = new FinalInterval(model.imageForSegmentation().get());
 		return ConstantUtils.constantRandomAccessibleInterval(value, interval);
 	}
 
+	/**
+	 * Returns the probability map. Once this was called, the segmentation of
+	 * later updates is derived from the probability map, if the segmenter
+	 * supports it.
+	 */
 	public RandomAccessibleInterval<FloatType> prediction() {
+		predictionUsed = true;
 		return prediction;
 	}
 
-	private void updatePrediction(Segmenter segmenter) {
+	private void updatePrediction(Segmenter segmenter, boolean shared) {
+		// NB: If the segmentation is derived from the prediction, the prediction
+		// was already updated together with the segmentation.
+		if (!shared)
+			this.prediction = createPrediction(segmenter);
+	}
+
+	private RandomAccessibleInterval<FloatType> createPrediction(
+		Segmenter segmenter)
+	{
 		ImgPlus<?> image = model.imageForSegmentation().get();
-		this.prediction = SegmentationUtils.createCachedProbabilityMap(segmenter, image,
+		return SegmentationUtils.createCachedProbabilityMap(segmenter, image,
 			extensionPoints.getCachedPredictionImageFactory());
 	}
 
-	private void updateSegmentation(Segmenter segmenter) {
+	/**
+	 * Updates the segmentation. If shared is true, the segmentation is derived
+	 * from a new probability map. The onComplete action, if not null, is run
+	 * once every cell of the new segmentation was computed.
+	 */
+	private void updateSegmentation(Segmenter segmenter, boolean shared,
+		Runnable onComplete)
+	{
 		ImgPlus<?> image = model.imageForSegmentation().get();
-		this.segmentation = SegmentationUtils.createCachedSegmentation(segmenter, image,
-			extensionPoints.getCachedSegmentationImageFactory());
+		CachedImageFactory factory = extensionPoints.getCachedSegmentationImageFactory();
+		if (onComplete != null)
+			factory = runWhenComplete(factory, onComplete);
+		if (shared) {
+			// NB: Derive the segmentation from the probability map, such that the
+			// classifier is only evaluated once per cell.
+			this.prediction = createPrediction(segmenter);
+			this.segmentation = SegmentationUtils.createCachedSegmentationFromProbabilityMap(
+				segmenter, image, prediction, factory, new UnsignedByteType());
+		}
+		else
+			this.segmentation = SegmentationUtils.createCachedSegmentation(segmenter, image,
+				factory);
+		this.previewSegmentation = supportsPreview(image) ? SegmentationUtils
+			.createCachedSegmentation(segmenter, ImgPlusViewsOld.subsampleSpatialAxes(
+				image, PREVIEW_FACTOR), DefaultCachedImageFactory.getInstance()) : null;
+	}
+
+	/**
+	 * Wraps the {@link CachedImageFactory}, such that the given action is run,
+	 * once every cell of the created image was computed at least once.
+	 */
+	private static CachedImageFactory runWhenComplete(CachedImageFactory factory,
+		Runnable onComplete)
+	{
+		CachedImageFactory f = factory != null ? factory : DefaultCachedImageFactory
+			.getInstance();
+		return new CachedImageFactory() {
+
+			@Override
+			public <T extends NativeType<T>> Img<T> setupCachedImage(
+				Segmenter segmenter, Consumer<RandomAccessibleInterval<T>> loader,
+				CellGrid grid, T type)
+			{
+				long[] gridDimensions = grid.getGridDimensions();
+				long numCells = Intervals.numElements(gridDimensions);
+				Set<Long> computed = ConcurrentHashMap.newKeySet();
+				return f.setupCachedImage(segmenter, target -> {
+					loader.accept(target);
+					long[] cellPosition = new long[gridDimensions.length];
+					for (int d = 0; d < cellPosition.length; d++)
+						cellPosition[d] = target.min(d) / grid.cellDimension(d);
+					if (computed.add(IntervalIndexer.positionToIndex(cellPosition,
+						gridDimensions)) && computed.size() == numCells)
+						onComplete.run();
+				}, grid, type);
+			}
+		};
+	}
+
+	private boolean supportsPreview(ImgPlus<?> image) {
+		return !model.isTimeSeries() && SegmentationUtils.intervalNoChannels(image)
+			.numDimensions() <= 3;
 	}
 
 	public List<String> labels() {
@@ -30,6 +30,7 @@
 package sc.fiji.labkit.ui.models;
 
 import net.imagej.ImgPlus;
+import sc.fiji.labkit.ui.Preferences;
 import sc.fiji.labkit.ui.labeling.Labeling;
 import sc.fiji.labkit.ui.segmentation.SegmentationPlugin;
 import net.imglib2.util.Pair;
@@ -50,13 +51,24 @@ public class SegmenterListModel {
 	private final Holder<SegmentationItem> selectedSegmenter = new DefaultHolder<>(null);
 	private final Holder<Boolean> segmentationVisibility = new DefaultHolder<>(true);
 	private final Holder<List<Pair<ImgPlus<?>, Labeling>>> trainingData = new DefaultHolder<>(null);
+	private final Holder<Boolean> keepPreviousSegmentation;
 
 	public SegmenterListModel(Context context, ExtensionPoints extensionPoints) {
 		this.context = context;
 		this.extensionPoints = extensionPoints;
+		this.keepPreviousSegmentation = new DefaultHolder<>(new Preferences(context)
+			.isKeepPreviousSegmentation());
 		this.segmenters.notifier().addListener(() -> {
 			if (!segmenters.get().contains(selectedSegmenter.get())) selectedSegmenter.set(null);
 		});
+		this.keepPreviousSegmentation.notifier().addListener(
+			this::onKeepPreviousSegmentationChanged);
+	}
+
+	private void onKeepPreviousSegmentationChanged() {
+		boolean keep = keepPreviousSegmentation.get();
+		new Preferences(context).setKeepPreviousSegmentation(keep);
+		segmenters.get().forEach(item -> item.setKeepPreviousResults(keep));
 	}
 
 	public Holder<List<SegmentationItem>> segmenters() {
@@ -69,6 +81,7 @@ public class SegmenterListModel {
 
 	public SegmentationItem addSegmenter(SegmentationPlugin plugin) {
 		SegmentationItem segmentationItem = new SegmentationItem(plugin, extensionPoints);
+		segmentationItem.setKeepPreviousResults(keepPreviousSegmentation.get());
 		segmenters.get().add(segmentationItem);
 		segmenters.notifier().notifyListeners();
 		return segmentationItem;
@@ -83,6 +96,15 @@ public class SegmenterListModel {
 		return segmentationVisibility;
 	}
 
+	/**
+	 * Whether the previous segmentation stays visible while a classifier is
+	 * retrained. Changes are applied to all segmenters and stored in the
+	 * {@link Preferences}.
+	 */
+	public Holder<Boolean> keepPreviousSegmentation() {
+		return keepPreviousSegmentation;
+	}
+
 	public Context context() {
 		return context;
 	}
@@ -30,12 +30,18 @@
 package sc.fiji.labkit.ui.models;
 
 import bdv.viewer.ViewerPanel;
+import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.util.Intervals;
 import sc.fiji.labkit.pixel_classification.RevampUtils;
 import sc.fiji.labkit.ui.utils.BdvUtils;
 
+import javax.swing.SwingUtilities;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.util.Arrays;
+
 /**
  * Needs to be refactored, this is a strange way to enable the "reset view" and
  * "focus label" functionality.
@@ -46,12 +52,33 @@ public class TransformationModel {
 
 	private ViewerPanel viewerPanel;
 
+	/**
+	 * Snapshot of the viewer transformation, display size and time point. It's
+	 * updated on the event dispatch thread, and read by
+	 * {@link #visibleInterval}, which is called from worker threads.
+	 */
+	private volatile View view;
+
 	public TransformationModel(boolean isTimeSeries) {
 		this.isTimeSeries = isTimeSeries;
 	}
 
 	public void initialize(ViewerPanel viewerPanel) {
 		this.viewerPanel = viewerPanel;
+		viewerPanel.addTransformListener(ignore -> updateViewLater());
+		viewerPanel.addTimePointListener(ignore -> updateViewLater());
+		viewerPanel.getDisplay().addComponentListener(new ComponentAdapter() {
+
+			@Override
+			public void componentResized(ComponentEvent e) {
+				updateViewLater();
+			}
+		});
+		updateViewLater();
+	}
+
+	private void updateViewLater() {
+		SwingUtilities.invokeLater(() -> view = new View(viewerPanel));
 	}
 
 	public void transformToShowInterval(Interval interval,
@@ -67,4 +94,72 @@ public class TransformationModel {
 		}
 		BdvUtils.resetView(viewerPanel, interval, transformation);
 	}
+
+	/**
+	 * Returns the bounding box of the region, that is currently visible in
+	 * BigDataViewer. The bounding box is given in the pixel coordinates of an
+	 * image with the given interval and transformation. Returns null if there
+	 * is no viewer or the visible region doesn't intersect the interval. This
+	 * method can be called from any thread.
+	 */
+	public Interval visibleInterval(Interval interval,
+		AffineTransform3D transformation)
+	{
+		View view = this.view;
+		if (view == null)
+			return null;
+		AffineTransform3D screenToImage = view.viewerTransform.copy();
+		screenToImage.concatenate(transformation);
+		screenToImage = screenToImage.inverse();
+		int n = interval.numDimensions();
+		int spatialDims = Math.min(3, isTimeSeries ? n - 1 : n);
+		long[] min = Intervals.minAsLongArray(interval);
+		long[] max = Intervals.maxAsLongArray(interval);
+		double[] bboxMin = new double[3];
+		double[] bboxMax = new double[3];
+		Arrays.fill(bboxMin, Double.POSITIVE_INFINITY);
+		Arrays.fill(bboxMax, Double.NEGATIVE_INFINITY);
+		int width = view.width;
+		int height = view.height;
+		double[] position = new double[3];
+		for (int corner = 0; corner < 4; corner++) {
+			position[0] = (corner & 1) == 0 ? 0 : width;
+			position[1] = (corner & 2) == 0 ? 0 : height;
+			position[2] = 0;
+			screenToImage.apply(position, position);
+			for (int d = 0; d < 3; d++) {
+				bboxMin[d] = Math.min(bboxMin[d], position[d]);
+				bboxMax[d] = Math.max(bboxMax[d], position[d]);
+			}
+		}
+		for (int d = 0; d < spatialDims; d++) {
+			min[d] = Math.max(min[d], (long) Math.floor(bboxMin[d]));
+			max[d] = Math.min(max[d], (long) Math.ceil(bboxMax[d]));
+		}
+		if (isTimeSeries) {
+			long timepoint = view.timepoint;
+			min[n - 1] = Math.max(min[n - 1], timepoint);
+			max[n - 1] = Math.min(max[n - 1], timepoint);
+		}
+		FinalInterval visible = new FinalInterval(min, max);
+		return Intervals.isEmpty(visible) ? null : visible;
+	}
+
+	private static class View {
+
+		private final AffineTransform3D viewerTransform;
+
+		private final int width;
+
+		private final int height;
+
+		private final int timepoint;
+
+		private View(ViewerPanel viewerPanel) {
+			this.viewerTransform = viewerPanel.state().getViewerTransform();
+			this.width = viewerPanel.getDisplay().getWidth();
+			this.height = viewerPanel.getDisplay().getHeight();
+			this.timepoint = viewerPanel.state().getCurrentTimepoint();
+		}
+	}
 }
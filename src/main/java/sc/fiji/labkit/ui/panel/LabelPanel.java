@@ -172,7 +172,7 @@ public class LabelPanel {
 			setOpaque(true);
 			setLayout(new MigLayout("insets 4pt, gap 4pt, fillx"));
 			add(initColorButton());
-			add(new JLabel(label.name()), "grow, push, width 0:0:pref");
+			add(initNameLabel(), "grow, push, width 0:0:pref");
 			JPopupMenu menu = menuFactory.apply(() -> this.label);
 			add(initPopupMenuButton(menu));
 			setComponentPopupMenu(menu);
@@ -181,6 +181,18 @@ public class LabelPanel {
 			initRenameOnDoubleClick();
 		}
 
+		private JLabel initNameLabel() {
+			JLabel nameLabel = new JLabel(label.name()) {
+
+				@Override
+				public String getToolTipText() {
+					return model.getPixelCount(label) + " pixels";
+				}
+			};
+			ToolTipManager.sharedInstance().registerComponent(nameLabel);
+			return nameLabel;
+		}
+
 		private JCheckBox initVisibilityCheckbox() {
 			JCheckBox checkBox = GuiUtils.styleCheckboxUsingEye(new JCheckBox());
 			checkBox.setSelected(label.isVisible());
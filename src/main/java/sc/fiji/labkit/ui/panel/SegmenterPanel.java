@@ -30,6 +30,7 @@
 package sc.fiji.labkit.ui.panel;
 
 import sc.fiji.labkit.ui.DefaultExtensible;
+import sc.fiji.labkit.ui.models.Holder;
 import sc.fiji.labkit.ui.models.SegmentationItem;
 import sc.fiji.labkit.ui.models.SegmenterListModel;
 import sc.fiji.labkit.ui.segmentation.SegmentationPlugin;
@@ -95,9 +96,21 @@ public class SegmenterPanel extends JPanel {
 		result.setBackground(UIManager.getColor("List.background"));
 		result.setLayout(new MigLayout("insets 4pt, gap 4pt"));
 		result.add(initAddButton());
+		result.add(initKeepPreviousCheckBox(), "gapleft push");
 		return result;
 	}
 
+	private JCheckBox initKeepPreviousCheckBox() {
+		Holder<Boolean> keep = segmentationModel.keepPreviousSegmentation();
+		JCheckBox checkBox = new JCheckBox("keep previous results while training");
+		checkBox.setToolTipText("Show the previous segmentation, until the " +
+			"segmentation of the retrained classifier is computed.");
+		checkBox.setOpaque(false);
+		checkBox.setSelected(keep.get());
+		checkBox.addItemListener(event -> keep.set(checkBox.isSelected()));
+		return checkBox;
+	}
+
 	private JButton initAddButton() {
 		addSegmenterButton = GuiUtils.createActionIconButton("Add classifier", new RunnableAction(
 			"Add classifier", this::showAddSegmenterPopupMenu), "add.png");
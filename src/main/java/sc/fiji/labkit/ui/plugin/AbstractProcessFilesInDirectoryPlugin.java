@@ -43,12 +43,17 @@ import org.scijava.command.Command;
 import org.scijava.log.Logger;
 import org.scijava.plugin.Parameter;
 import sc.fiji.labkit.ui.segmentation.SegmentationTool;
+import sc.fiji.labkit.ui.utils.CommandCancellation;
+import sc.fiji.labkit.ui.utils.progress.CombinedProgressWriter;
 import sc.fiji.labkit.ui.utils.progress.StatusServiceProgressWriter;
 
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
+import java.util.List;
 
 abstract class AbstractProcessFilesInDirectoryPlugin implements Command, Cancelable {
 
@@ -82,43 +87,97 @@ abstract class AbstractProcessFilesInDirectoryPlugin implements Command, Cancela
 	@Parameter
 	private Boolean use_gpu = false;
 
+	@Parameter(min = "1")
+	private Integer number_of_parallel_files = 1;
+
+	private final CommandCancellation cancellation = new CommandCancellation();
+
 	@Override
 	public void run() {
+		cancellation.run(this::processFiles);
+	}
+
+	private void processFiles() {
 		SegmentationTool segmenter = new SegmentationTool();
 		segmenter.setUseGpu(use_gpu);
 		segmenter.openModel(segmenter_file.getAbsolutePath());
-		segmenter.setProgressWriter(new StatusServiceProgressWriter(statusService));
 		FileFilter wildcardFileFilter = new WildcardFileFilter(file_filter);
 		File[] files = input_directory.listFiles(wildcardFileFilter);
 		Arrays.sort(files);
-		for (int i = 0; i < files.length; i++) {
-			try {
-				processFile(segmenter, files, i);
-			}
-			catch (Exception e) {
-				logger.error(e);
-			}
+		List<File> fileList = Arrays.asList(files);
+		// NB: Each file reports its progress separately, such that concurrently
+		// processed files don't overwrite each other's progress.
+		CombinedProgressWriter progress = new CombinedProgressWriter(cancellation
+			.wrap(new StatusServiceProgressWriter(statusService)), Math.max(1,
+				files.length));
+		// NB: The next image is read, while the current image is processed, and
+		// the previous result is written.
+		BatchPipeline<File, ImgPlus<?>, ImgPlus<?>> pipeline = new BatchPipeline<>(
+			this::readImage,
+			(file, image) -> {
+				statusService.showStatus("Labkit " + getDescription() + " " + (fileList
+					.indexOf(file) + 1) + "/" + files.length + ": " + file.getName());
+				return processImage(segmenter.withProgressWriter(progress.subTask(
+					fileList.indexOf(file))), image);
+			},
+			this::writeImage,
+			(file, e) -> {
+				if (!isCanceled())
+					logger.error(e);
+			},
+			1);
+		if (number_of_parallel_files > 1) {
+			// NB: All workers share the same classifier.
+			int numProcessors = Runtime.getRuntime().availableProcessors();
+			segmenter.setNumThreads(numProcessors / number_of_parallel_files);
+			pipeline.setParallelism(number_of_parallel_files,
+				segmenter::estimateMemoryUsage, Runtime.getRuntime().maxMemory() / 2);
+		}
+		try {
+			pipeline.run(fileList);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 
-	private <T extends Type<T>> void processFile(SegmentationTool segmenter, File[] files, int i)
-		throws IOException
-	{
-		File inputFile = files[i];
-		String inputFileName = inputFile.getName();
-		String outputFileName = FilenameUtils.getBaseName(inputFileName) + output_file_suffix;
-		File outputFile = new File(output_directory, outputFileName);
+	private ImgPlus<?> readImage(File inputFile) throws IOException {
+		File outputFile = outputFile(inputFile);
 		if (outputFile.exists()) {
 			logger.warn("Labkit: Skipping " + inputFile + " because output file exists already: " +
 				outputFile);
+			return null;
+		}
+		return io.open(inputFile.getAbsolutePath()).getImgPlus();
+	}
+
+	private <T extends Type<T>> void writeImage(File inputFile, ImgPlus<?> result)
+		throws IOException
+	{
+		if (isCanceled())
 			return;
+		ImgPlus<T> image = Cast.unchecked(result);
+		Dataset dataset = datasetService.create(image);
+		// NB: Write to a temporary file first, such that a canceled or failed
+		// run doesn't leave a partially written output file behind.
+		File outputFile = outputFile(inputFile);
+		File tmpFile = new File(outputFile.getParentFile(), "~" + outputFile.getName());
+		try {
+			io.save(dataset, tmpFile.getAbsolutePath());
+			if (isCanceled())
+				return;
+			Files.move(tmpFile.toPath(), outputFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
 		}
-		ImgPlus<?> inputImage = io.open(inputFile.getAbsolutePath()).getImgPlus();
-		statusService.showStatus("Labkit " + getDescription() + " " + (i + 1) + "/" + files.length +
-			": " + inputFileName);
-		ImgPlus<T> restult = Cast.unchecked(processImage(segmenter, inputImage));
-		Dataset dataset = datasetService.create(restult);
-		io.save(dataset, outputFile.getAbsolutePath());
+		finally {
+			tmpFile.delete();
+		}
+	}
+
+	private File outputFile(File inputFile) {
+		String outputFileName = FilenameUtils.getBaseName(inputFile.getName()) +
+			output_file_suffix;
+		return new File(output_directory, outputFileName);
 	}
 
 	protected abstract ImgPlus<?> processImage(SegmentationTool segmenter, ImgPlus<?> inputImage);
@@ -129,16 +188,16 @@ abstract class AbstractProcessFilesInDirectoryPlugin implements Command, Cancela
 
 	@Override
 	public boolean isCanceled() {
-		return false;
+		return cancellation.isCanceled();
 	}
 
 	@Override
 	public void cancel(String reason) {
-
+		cancellation.cancel(reason);
 	}
 
 	@Override
 	public String getCancelReason() {
-		return null;
+		return cancellation.getCancelReason();
 	}
 }
@@ -0,0 +1,266 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.plugin;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Reads, processes and writes a list of items, such that the next items are
+ * read, while the current item is processed and the previous items are
+ * written. Reading and writing happen on two background threads. At most
+ * {@code capacity} items are read ahead or wait to be written, which bounds
+ * the memory usage.
+ * <p>
+ * By default one item is processed at a time. {@link #setParallelism} allows
+ * to process several items concurrently. A new item is then only admitted,
+ * if the estimated memory usage of all items in progress stays within the
+ * memory budget.
+ * <p>
+ * Exceptions and errors, that are thrown while reading, processing or writing
+ * an item, are passed to the error handler, and the pipeline continues with
+ * the next item.
+ * <p>
+ * If the thread that calls {@link #run} is interrupted, the background threads
+ * are interrupted too, and {@link #run} returns once they are finished.
+ *
+ * @author Matthias Arzt
+ */
+class BatchPipeline<K, I, O> {
+
+	interface Reader<K, I> {
+
+		/** Returns null, if the item should be skipped. */
+		I read(K key) throws Exception;
+	}
+
+	interface Processor<K, I, O> {
+
+		O process(K key, I input) throws Exception;
+	}
+
+	interface Writer<K, O> {
+
+		void write(K key, O output) throws Exception;
+	}
+
+	private final Reader<K, I> reader;
+
+	private final Processor<K, I, O> processor;
+
+	private final Writer<K, O> writer;
+
+	private final BiConsumer<K, Throwable> errorHandler;
+
+	private final int capacity;
+
+	private int numWorkers = 1;
+
+	private ToLongFunction<I> memoryEstimate = input -> 0;
+
+	private long memoryBudget = Long.MAX_VALUE;
+
+	BatchPipeline(Reader<K, I> reader, Processor<K, I, O> processor,
+		Writer<K, O> writer, BiConsumer<K, Throwable> errorHandler, int capacity)
+	{
+		this.reader = reader;
+		this.processor = processor;
+		this.writer = writer;
+		this.errorHandler = errorHandler;
+		this.capacity = Math.max(1, capacity);
+	}
+
+	/**
+	 * Process up to numWorkers items concurrently, as long as the sum of their
+	 * estimated memory usage, in bytes, stays below the memory budget. A single
+	 * item is always admitted, even if its estimate exceeds the budget.
+	 */
+	void setParallelism(int numWorkers, ToLongFunction<I> memoryEstimate,
+		long memoryBudget)
+	{
+		this.numWorkers = Math.max(1, numWorkers);
+		this.memoryEstimate = memoryEstimate;
+		this.memoryBudget = memoryBudget;
+	}
+
+	void run(List<K> keys) throws InterruptedException {
+		ExecutorService readExecutor = Executors.newSingleThreadExecutor();
+		ExecutorService processExecutor = Executors.newFixedThreadPool(numWorkers);
+		ExecutorService writeExecutor = Executors.newSingleThreadExecutor();
+		Semaphore processing = new Semaphore(numWorkers);
+		Semaphore writing = new Semaphore(capacity);
+		MemoryAdmission admission = new MemoryAdmission(memoryBudget);
+		try {
+			Deque<Future<I>> reads = new ArrayDeque<>();
+			int nextRead = 0;
+			for (K key : keys) {
+				while (nextRead < keys.size() && reads.size() <= capacity) {
+					K readKey = keys.get(nextRead++);
+					reads.add(readExecutor.submit(() -> reader.read(readKey)));
+				}
+				I input = await(key, reads.remove());
+				if (input == null)
+					continue;
+				long bytes = memoryEstimate.applyAsLong(input);
+				processing.acquire();
+				admission.acquire(bytes);
+				processExecutor.execute(() -> processAndWrite(key, input, bytes,
+					processing, writing, admission, writeExecutor));
+			}
+			processExecutor.shutdown();
+			processExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			writeExecutor.shutdown();
+			writeExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		finally {
+			readExecutor.shutdownNow();
+			processExecutor.shutdownNow();
+			writeExecutor.shutdownNow();
+			// NB: If the pipeline is canceled, the items in progress must finish,
+			// before run returns. Otherwise they might still write output files.
+			awaitTerminationUninterruptibly(readExecutor);
+			awaitTerminationUninterruptibly(processExecutor);
+			awaitTerminationUninterruptibly(writeExecutor);
+		}
+	}
+
+	private static void awaitTerminationUninterruptibly(
+		ExecutorService executor)
+	{
+		boolean interrupted = false;
+		while (true) {
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				break;
+			}
+			catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Processes the item, and submits the result to the write executor. Every
+	 * {@link Throwable} is passed to the error handler, and the semaphores and
+	 * the memory admission are released in any case.
+	 */
+	private void processAndWrite(K key, I input, long bytes,
+		Semaphore processing, Semaphore writing, MemoryAdmission admission,
+		ExecutorService writeExecutor)
+	{
+		boolean writeSubmitted = false;
+		try {
+			O output;
+			try {
+				output = processor.process(key, input);
+			}
+			finally {
+				processing.release();
+			}
+			if (output == null)
+				return;
+			writing.acquire();
+			try {
+				writeExecutor.execute(() -> write(key, output, bytes, writing,
+					admission));
+				writeSubmitted = true;
+			}
+			finally {
+				if (!writeSubmitted)
+					writing.release();
+			}
+		}
+		catch (Throwable e) {
+			errorHandler.accept(key, e);
+		}
+		finally {
+			if (!writeSubmitted)
+				admission.release(bytes);
+		}
+	}
+
+	private void write(K key, O output, long bytes, Semaphore writing,
+		MemoryAdmission admission)
+	{
+		try {
+			writer.write(key, output);
+		}
+		catch (Throwable e) {
+			errorHandler.accept(key, e);
+		}
+		finally {
+			writing.release();
+			admission.release(bytes);
+		}
+	}
+
+	private I await(K key, Future<I> future) throws InterruptedException {
+		try {
+			return future.get();
+		}
+		catch (ExecutionException e) {
+			errorHandler.accept(key, e.getCause());
+			return null;
+		}
+	}
+
+	private static class MemoryAdmission {
+
+		private final long budget;
+
+		private long used = 0;
+
+		private MemoryAdmission(long budget) {
+			this.budget = budget;
+		}
+
+		synchronized void acquire(long bytes) throws InterruptedException {
+			while (used > 0 && used + bytes > budget)
+				wait();
+			used += bytes;
+		}
+
+		synchronized void release(long bytes) {
+			used -= bytes;
+			notifyAll();
+		}
+	}
+}
@@ -48,6 +48,7 @@ import sc.fiji.labkit.ui.segmentation.SegmentationTool;
 import sc.fiji.labkit.ui.segmentation.SegmentationUtils;
 import sc.fiji.labkit.ui.segmentation.Segmenter;
 import sc.fiji.labkit.ui.segmentation.weka.TrainableSegmentationSegmenter;
+import sc.fiji.labkit.ui.utils.CommandCancellation;
 import sc.fiji.labkit.ui.utils.ParallelUtils;
 import sc.fiji.labkit.ui.utils.progress.StatusServiceProgressWriter;
 
@@ -82,28 +83,35 @@ public class CalculateProbabilityMapWithLabkitPlugin implements Command, Cancela
 	@Parameter(required = false)
 	private Boolean use_gpu = false;
 
+	private final CommandCancellation cancellation = new CommandCancellation();
+
 	@Override
 	public void run() {
-		SegmentationTool segmenter = new SegmentationTool();
-		segmenter.setContext(context);
-		segmenter.openModel(segmenter_file.getAbsolutePath());
-		segmenter.setUseGpu(use_gpu);
-		segmenter.setProgressWriter(new StatusServiceProgressWriter(statusService));
-		output = datasetService.create(segmenter.probabilityMap(input.getImgPlus()));
+		cancellation.run(() -> {
+			SegmentationTool segmenter = new SegmentationTool();
+			segmenter.setContext(context);
+			segmenter.openModel(segmenter_file.getAbsolutePath());
+			segmenter.setUseGpu(use_gpu);
+			segmenter.setProgressWriter(cancellation.wrap(new StatusServiceProgressWriter(
+				statusService)));
+			output = datasetService.create(segmenter.probabilityMap(input.getImgPlus()));
+		});
+		if (isCanceled())
+			output = null;
 	}
 
 	@Override
 	public boolean isCanceled() {
-		return false;
+		return cancellation.isCanceled();
 	}
 
 	@Override
 	public void cancel(String reason) {
-
+		cancellation.cancel(reason);
 	}
 
 	@Override
 	public String getCancelReason() {
-		return null;
+		return cancellation.getCancelReason();
 	}
 }
@@ -0,0 +1,283 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.plugin;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.parallel.Parallelization;
+import net.imglib2.parallel.TaskExecutor;
+import net.imglib2.roi.IterableRegion;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.util.Intervals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the connected components of a region, and measures their size,
+ * bounding box and centroid. Pixels are connected to their direct neighbors,
+ * diagonal neighbors are not connected.
+ * <p>
+ * The pixels of the region are sorted and split into chunks. The chunks are
+ * labeled in parallel using union-find. Components that touch multiple chunks
+ * are merged afterwards. The components are returned in the order of their
+ * first pixel, when iterating the image line by line.
+ *
+ * @author Matthias Arzt
+ */
+public class ConnectedComponents {
+
+	private static final int MIN_CHUNK_SIZE = 4096;
+
+	/**
+	 * Maximal number of pixels in a region, pixel indices are stored in arrays.
+	 */
+	private static final int MAX_PIXELS = Integer.MAX_VALUE - 8;
+
+	private ConnectedComponents() {
+		// prevent from instantiation
+	}
+
+	public static List<Component> analyze(IterableRegion<BitType> region) {
+		long[] dimensions = Intervals.dimensionsAsLongArray(region);
+		long[] positions = sortedPixelIndices(region, dimensions);
+		int[] parent = new int[positions.length];
+		for (int i = 0; i < parent.length; i++)
+			parent[i] = i;
+		List<Chunk> chunks = chunks(positions.length);
+		Parallelization.getTaskExecutor().forEach(chunks, chunk -> chunk.label(
+			positions, dimensions, parent));
+		for (Chunk chunk : chunks) {
+			TIntArrayList pairs = chunk.crossings;
+			for (int i = 0; i < pairs.size(); i += 2)
+				union(parent, pairs.get(i), pairs.get(i + 1));
+		}
+		int numComponents = replaceParentsByComponentIndices(parent);
+		return measure(region, dimensions, positions, parent, numComponents);
+	}
+
+	private static long[] sortedPixelIndices(IterableRegion<BitType> region,
+		long[] dimensions)
+	{
+		int n = region.numDimensions();
+		long[] min = Intervals.minAsLongArray(region);
+		long[] position = new long[n];
+		TLongArrayList indices = new TLongArrayList();
+		Cursor<Void> cursor = region.cursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			if (indices.size() == MAX_PIXELS)
+				throw new IllegalArgumentException(
+					"Region is too big, it must not have more than " + MAX_PIXELS +
+						" pixels.");
+			cursor.localize(position);
+			long index = 0;
+			for (int d = n - 1; d >= 0; d--)
+				index = index * dimensions[d] + position[d] - min[d];
+			indices.add(index);
+		}
+		long[] array = indices.toArray();
+		Arrays.parallelSort(array);
+		return array;
+	}
+
+	private static List<Chunk> chunks(int size) {
+		TaskExecutor taskExecutor = Parallelization.getTaskExecutor();
+		int numChunks = Math.max(1, Math.min(taskExecutor.suggestNumberOfTasks(),
+			size / MIN_CHUNK_SIZE));
+		List<Chunk> chunks = new ArrayList<>(numChunks);
+		for (int i = 0; i < numChunks; i++)
+			chunks.add(new Chunk((int) ((long) size * i / numChunks),
+				(int) ((long) size * (i + 1) / numChunks)));
+		return chunks;
+	}
+
+	/**
+	 * Merges the trees of a and b. The root of a tree is always its pixel with
+	 * the smallest index.
+	 */
+	private static void union(int[] parent, int a, int b) {
+		int rootA = find(parent, a);
+		int rootB = find(parent, b);
+		if (rootA < rootB) parent[rootB] = rootA;
+		else if (rootB < rootA) parent[rootA] = rootB;
+	}
+
+	private static int find(int[] parent, int x) {
+		while (parent[x] != x) {
+			parent[x] = parent[parent[x]];
+			x = parent[x];
+		}
+		return x;
+	}
+
+	/**
+	 * Replaces each entry of the parent array by the index of the component it
+	 * belongs to. Returns the number of components.
+	 */
+	private static int replaceParentsByComponentIndices(int[] parent) {
+		// NB: parent[i] <= i holds for every pixel. So when pixel i is visited,
+		// its parent is already replaced by the component index.
+		int count = 0;
+		for (int i = 0; i < parent.length; i++)
+			parent[i] = parent[i] == i ? count++ : parent[parent[i]];
+		return count;
+	}
+
+	private static List<Component> measure(Interval region, long[] dimensions,
+		long[] positions, int[] componentIndices, int numComponents)
+	{
+		int n = dimensions.length;
+		long[] offset = Intervals.minAsLongArray(region);
+		long[] sizes = new long[numComponents];
+		long[] mins = new long[numComponents * n];
+		long[] maxs = new long[numComponents * n];
+		double[] sums = new double[numComponents * n];
+		Arrays.fill(mins, Long.MAX_VALUE);
+		Arrays.fill(maxs, Long.MIN_VALUE);
+		for (int i = 0; i < positions.length; i++) {
+			int component = componentIndices[i];
+			sizes[component]++;
+			long remainder = positions[i];
+			for (int d = 0; d < n; d++) {
+				long x = remainder % dimensions[d] + offset[d];
+				remainder /= dimensions[d];
+				int k = component * n + d;
+				mins[k] = Math.min(mins[k], x);
+				maxs[k] = Math.max(maxs[k], x);
+				sums[k] += x;
+			}
+		}
+		List<Component> components = new ArrayList<>(numComponents);
+		for (int c = 0; c < numComponents; c++) {
+			double[] centroid = new double[n];
+			for (int d = 0; d < n; d++)
+				centroid[d] = sums[c * n + d] / sizes[c];
+			components.add(new Component(sizes[c], Arrays.copyOfRange(mins, c * n,
+				(c + 1) * n), Arrays.copyOfRange(maxs, c * n, (c + 1) * n),
+				centroid));
+		}
+		return components;
+	}
+
+	/**
+	 * A range of pixels, that is labeled by one task.
+	 */
+	private static class Chunk {
+
+		private final int from;
+
+		private final int to;
+
+		/** Pairs of connected pixels, that belong to different chunks. */
+		private final TIntArrayList crossings = new TIntArrayList();
+
+		private Chunk(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		/**
+		 * Connects each pixel of the chunk to its direct neighbors with smaller
+		 * index. Neighbors within the chunk are merged immediately, all other
+		 * pairs are remembered in {@link #crossings}.
+		 */
+		private void label(long[] positions, long[] dimensions, int[] parent) {
+			int n = dimensions.length;
+			long[] position = new long[n];
+			for (int i = from; i < to; i++) {
+				long index = positions[i];
+				long remainder = index;
+				for (int d = 0; d < n; d++) {
+					position[d] = remainder % dimensions[d];
+					remainder /= dimensions[d];
+				}
+				long stride = 1;
+				for (int d = 0; d < n; d++) {
+					if (position[d] > 0) {
+						int j = Arrays.binarySearch(positions, 0, i, index - stride);
+						if (j >= from) union(parent, i, j);
+						else if (j >= 0) {
+							crossings.add(i);
+							crossings.add(j);
+						}
+					}
+					stride *= dimensions[d];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Size, bounding box and centroid of a connected component, in pixel
+	 * coordinates.
+	 */
+	public static class Component {
+
+		private final long size;
+
+		private final long[] min;
+
+		private final long[] max;
+
+		private final double[] centroid;
+
+		private Component(long size, long[] min, long[] max, double[] centroid) {
+			this.size = size;
+			this.min = min;
+			this.max = max;
+			this.centroid = centroid;
+		}
+
+		public int numDimensions() {
+			return min.length;
+		}
+
+		/** Number of pixels in the component. */
+		public long size() {
+			return size;
+		}
+
+		public long min(int d) {
+			return min[d];
+		}
+
+		public long max(int d) {
+			return max[d];
+		}
+
+		public double centroid(int d) {
+			return centroid[d];
+		}
+	}
+}
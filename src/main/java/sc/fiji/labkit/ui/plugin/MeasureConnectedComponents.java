@@ -37,21 +37,13 @@ import org.scijava.table.DefaultGenericTable;
 import org.scijava.table.DoubleColumn;
 import org.scijava.table.GenericTable;
 import org.scijava.table.Table;
-import net.imglib2.Cursor;
-import net.imglib2.RandomAccess;
-import net.imglib2.algorithm.fill.Filter;
-import net.imglib2.algorithm.fill.FloodFill;
-import net.imglib2.algorithm.neighborhood.DiamondShape;
 import sc.fiji.labkit.ui.Extensible;
 import sc.fiji.labkit.ui.MenuBar;
 import sc.fiji.labkit.ui.labeling.Labeling;
 import sc.fiji.labkit.ui.labeling.LabelingSerializer;
 import sc.fiji.labkit.ui.models.LabelingModel;
 import net.imglib2.roi.IterableRegion;
-import sc.fiji.labkit.ui.utils.sparse.SparseRandomAccessIntType;
 import net.imglib2.type.logic.BitType;
-import net.imglib2.type.numeric.integer.IntType;
-import net.imglib2.util.Pair;
 import org.scijava.Context;
 import org.scijava.ItemIO;
 import org.scijava.command.Command;
@@ -64,6 +56,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.StringJoiner;
+import java.util.stream.Collectors;
 
 @Plugin(type = Command.class,
 	menuPath = "Plugins > Segmentation > Measure Connected Components")
@@ -102,38 +95,25 @@ public class MeasureConnectedComponents implements Command {
 			"Measure Connected Components ...", 3, ignore -> action.run(), null, "");
 	}
 
-	private static Table<?, ?> createTable(Labeling labeling,
+	/**
+	 * Returns a table, that lists the connected components of all labels, with
+	 * their size, centroid and bounding box. If calibratedSize is true, the
+	 * size, centroid and bounding box are given in the calibrated units of the
+	 * axes. This can be used headless.
+	 */
+	public static Table<?, ?> createTable(Labeling labeling,
 		boolean calibratedSize)
 	{
 		TableBuilder builder = new TableBuilder();
-		builder.setPixelSize(labeling.axes());
+		builder.setAxes(labeling.axes());
 		labeling.iterableRegions().forEach((label, mask) -> builder.add(label
-			.name(), connectedComponetsSizes(mask)));
+			.name(), ConnectedComponents.analyze(mask)));
 		return builder.getTable(calibratedSize);
 	}
 
 	static List<Long> connectedComponetsSizes(IterableRegion<BitType> region) {
-		List<Long> sizes = new ArrayList<>();
-		Cursor<Void> cursor = region.cursor();
-		SparseRandomAccessIntType visitedImage = new SparseRandomAccessIntType(
-			region);
-		RandomAccess<IntType> visited = visitedImage.randomAccess();
-		int currentIndex = 0;
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			visited.setPosition(cursor);
-			if (visited.get().get() == 0) {
-				currentIndex++;
-				long countBefore = visitedImage.sparsityPattern().size();
-				Filter<Pair<BitType, IntType>, Pair<BitType, IntType>> filter = (
-					current, seed) -> current.getA().get() && current.getB().get() == 0;
-				FloodFill.fill(region, visitedImage, cursor, new IntType(currentIndex),
-					new DiamondShape(1), filter);
-				long countAfter = visitedImage.sparsityPattern().size();
-				sizes.add(countAfter - countBefore);
-			}
-		}
-		return sizes;
+		return ConnectedComponents.analyze(region).stream().map(
+			ConnectedComponents.Component::size).collect(Collectors.toList());
 	}
 
 	private static class TableBuilder {
@@ -143,10 +123,32 @@ public class MeasureConnectedComponents implements Command {
 			"connect component");
 		Column<Long> number = new DefaultColumn<>(Long.class, "size in pixels");
 		Column<Double> sizes = new DoubleColumn("size");
-
+		List<Column<Double>> centroids = new ArrayList<>();
+		List<Column<Long>> mins = new ArrayList<>();
+		List<Column<Long>> maxs = new ArrayList<>();
+		List<Column<Double>> calibratedCentroids = new ArrayList<>();
+		List<Column<Double>> calibratedMins = new ArrayList<>();
+		List<Column<Double>> calibratedMaxs = new ArrayList<>();
+
+		private List<CalibratedAxis> axes;
 		private double pixelSize = 1;
 		private String unit = "unknown";
 
+		private void setAxes(List<CalibratedAxis> axes) {
+			this.axes = axes;
+			for (CalibratedAxis axis : axes) {
+				String name = axis.type().getLabel();
+				centroids.add(new DoubleColumn("centroid " + name));
+				mins.add(new DefaultColumn<>(Long.class, "min " + name));
+				maxs.add(new DefaultColumn<>(Long.class, "max " + name));
+				String unit = " in " + (axis.unit() == null ? "unknown" : axis.unit());
+				calibratedCentroids.add(new DoubleColumn("centroid " + name + unit));
+				calibratedMins.add(new DoubleColumn("min " + name + unit));
+				calibratedMaxs.add(new DoubleColumn("max " + name + unit));
+			}
+			setPixelSize(axes);
+		}
+
 		private void setPixelSize(List<CalibratedAxis> axes) {
 			double pixelSize = 1;
 			StringJoiner units = new StringJoiner("*");
@@ -161,14 +163,27 @@ public class MeasureConnectedComponents implements Command {
 			this.unit = units.toString();
 		}
 
-		private void add(String label, List<Long> sizesInPixels) {
+		private void add(String label,
+			List<ConnectedComponents.Component> components)
+		{
 			int index = 0;
-			for (Long size : sizesInPixels) {
+			for (ConnectedComponents.Component component : components) {
 				index++;
 				labels.add(label);
 				indices.add(index);
-				number.add(size);
-				sizes.add(size * pixelSize);
+				number.add(component.size());
+				sizes.add(component.size() * pixelSize);
+				int n = Math.min(centroids.size(), component.numDimensions());
+				for (int d = 0; d < n; d++) {
+					CalibratedAxis axis = axes.get(d);
+					centroids.get(d).add(component.centroid(d));
+					mins.get(d).add(component.min(d));
+					maxs.get(d).add(component.max(d));
+					calibratedCentroids.get(d).add(axis.calibratedValue(component
+						.centroid(d)));
+					calibratedMins.get(d).add(axis.calibratedValue(component.min(d)));
+					calibratedMaxs.get(d).add(axis.calibratedValue(component.max(d)));
+				}
 			}
 		}
 
@@ -180,6 +195,14 @@ public class MeasureConnectedComponents implements Command {
 			if (calibratedSize) {
 				sizes.setHeader("size in " + unit);
 				table.add(sizes);
+				table.addAll(calibratedCentroids);
+				table.addAll(calibratedMins);
+				table.addAll(calibratedMaxs);
+			}
+			else {
+				table.addAll(centroids);
+				table.addAll(mins);
+				table.addAll(maxs);
 			}
 			return table;
 		}
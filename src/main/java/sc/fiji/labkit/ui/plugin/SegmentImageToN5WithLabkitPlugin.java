@@ -0,0 +1,113 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.plugin;
+
+import net.imagej.Dataset;
+import org.scijava.Cancelable;
+import org.scijava.Context;
+import org.scijava.app.StatusService;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import sc.fiji.labkit.ui.segmentation.SegmentationTool;
+import sc.fiji.labkit.ui.utils.CommandCancellation;
+import sc.fiji.labkit.ui.utils.progress.StatusServiceProgressWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Segments an image with Labkit, and writes the segmentation block by block
+ * into an N5 directory. Unlike {@link SegmentImageWithLabkitPlugin}, the
+ * segmentation is never held in memory completely, which allows to process
+ * very large images.
+ *
+ * @author Matthias Arzt
+ */
+@Plugin(type = Command.class,
+	menuPath = "Plugins > Labkit > Macro Recordable > Segment Large Image to N5 With Labkit")
+public class SegmentImageToN5WithLabkitPlugin implements Command, Cancelable {
+
+	@Parameter
+	private Context context;
+
+	@Parameter
+	private StatusService statusService;
+
+	@Parameter
+	private Dataset input;
+
+	@Parameter(style = "open")
+	private File segmenter_file;
+
+	@Parameter(style = "directory")
+	private File output_directory;
+
+	@Parameter(required = false)
+	private Boolean use_gpu = false;
+
+	private final CommandCancellation cancellation = new CommandCancellation();
+
+	@Override
+	public void run() {
+		cancellation.run(this::segment);
+	}
+
+	private void segment() {
+		SegmentationTool segmenter = new SegmentationTool();
+		segmenter.setContext(context);
+		segmenter.setUseGpu(use_gpu);
+		segmenter.openModel(segmenter_file.getAbsolutePath());
+		segmenter.setProgressWriter(cancellation.wrap(new StatusServiceProgressWriter(
+			statusService)));
+		try {
+			segmenter.segmentToN5(input.getImgPlus(), output_directory);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public boolean isCanceled() {
+		return cancellation.isCanceled();
+	}
+
+	@Override
+	public void cancel(String reason) {
+		cancellation.cancel(reason);
+	}
+
+	@Override
+	public String getCancelReason() {
+		return cancellation.getCancelReason();
+	}
+}
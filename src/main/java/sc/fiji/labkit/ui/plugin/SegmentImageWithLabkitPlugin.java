@@ -51,6 +51,7 @@ import sc.fiji.labkit.ui.inputimage.DatasetInputImage;
 import sc.fiji.labkit.ui.inputimage.ImgPlusViewsOld;
 import sc.fiji.labkit.ui.segmentation.SegmentationUtils;
 import sc.fiji.labkit.ui.segmentation.weka.TrainableSegmentationSegmenter;
+import sc.fiji.labkit.ui.utils.CommandCancellation;
 import sc.fiji.labkit.ui.utils.ParallelUtils;
 
 /**
@@ -79,8 +80,16 @@ public class SegmentImageWithLabkitPlugin implements Command, Cancelable {
 	@Parameter(required = false)
 	private Boolean use_gpu = false;
 
+	private final CommandCancellation cancellation = new CommandCancellation();
+
 	@Override
 	public void run() {
+		cancellation.run(this::segment);
+		if (isCanceled())
+			output = null;
+	}
+
+	private void segment() {
 		TrainableSegmentationSegmenter segmenter = new TrainableSegmentationSegmenter(context);
 		segmenter.setUseGpu(use_gpu);
 		segmenter.openModel(segmenter_file.getAbsolutePath());
@@ -106,7 +115,7 @@ public class SegmentImageWithLabkitPlugin implements Command, Cancelable {
 		ImgPlus<?> imgPlus)
 	{
 		Img<UnsignedByteType> outputImg = SegmentationUtils.createCachedSegmentation(segmenter, imgPlus, null);
-		ParallelUtils.populateCachedImg(outputImg, new ProgressWriterConsole());
+		ParallelUtils.populateCachedImg(outputImg, cancellation.wrap(new ProgressWriterConsole()));
 		return outputImg;
 	}
 
@@ -117,22 +126,22 @@ public class SegmentImageWithLabkitPlugin implements Command, Cancelable {
 		int[] cellSize = segmenter.suggestCellSize(imgPlus);
 		Img<UnsignedByteType> outputImg = ArrayImgs.unsignedBytes(Intervals.dimensionsAsLongArray(outputInterval));
 		ParallelUtils.applyOperationOnCells(outputImg, cellSize,
-			outputCell -> segmenter.segment(imgPlus, outputCell), new ProgressWriterConsole());
+			outputCell -> segmenter.segment(imgPlus, outputCell), cancellation.wrap(new ProgressWriterConsole()));
 		return outputImg;
 	}
 
 	@Override
 	public boolean isCanceled() {
-		return false;
+		return cancellation.isCanceled();
 	}
 
 	@Override
 	public void cancel(String reason) {
-
+		cancellation.cancel(reason);
 	}
 
 	@Override
 	public String getCancelReason() {
-		return null;
+		return cancellation.getCancelReason();
 	}
 }
@@ -63,6 +63,7 @@ import sc.fiji.labkit.ui.inputimage.ImgPlusViewsOld;
 import sc.fiji.labkit.ui.labeling.Labeling;
 import sc.fiji.labkit.ui.segmentation.SegmentationUtils;
 import sc.fiji.labkit.ui.segmentation.weka.TrainableSegmentationSegmenter;
+import sc.fiji.labkit.ui.utils.CommandCancellation;
 import sc.fiji.labkit.ui.utils.DimensionUtils;
 import sc.fiji.labkit.ui.utils.ParallelUtils;
 
@@ -95,8 +96,16 @@ public class ComputeProbabilityMapWithLabkitPlugin implements Command, Cancelabl
 	@Parameter(required = false)
 	private Boolean use_gpu = false;
 
+	private final CommandCancellation cancellation = new CommandCancellation();
+
 	@Override
 	public void run() {
+		cancellation.run(this::computeProbabilityMap);
+		if (isCanceled())
+			output = null;
+	}
+
+	private void computeProbabilityMap() {
 		DatasetInputImage inputImage = new DatasetInputImage(input);
 
 		TrainableSegmentationSegmenter segmenter = new TrainableSegmentationSegmenter(context);
@@ -143,7 +152,7 @@ public class ComputeProbabilityMapWithLabkitPlugin implements Command, Cancelabl
 		System.out.println( "ComputeProbabilityMapWithLabkitPlugin.calculateProbabilityMapOnCachedImg" );
 		final ByteProbabilityMapFactory factory = new ByteProbabilityMapFactory();
 		Img<FloatType> outputImg = SegmentationUtils.createCachedProbabilityMap(segmenter, imgPlus, factory);
-		ParallelUtils.populateCachedImg(outputImg, new ProgressWriterConsole());
+		ParallelUtils.populateCachedImg(outputImg, cancellation.wrap(new ProgressWriterConsole()));
 		factory.getImg().getCache().persistAll();
 		return factory.getBackingImg();
 	}
@@ -160,7 +169,7 @@ public class ComputeProbabilityMapWithLabkitPlugin implements Command, Cancelabl
 		long[] outputSizeWithChannel = DimensionUtils.extend(outputSize, count);
 		Img<FloatType> outputImg = ArrayImgs.floats(outputSizeWithChannel);
 		ParallelUtils.applyOperationOnCells(outputImg, cellSizeWithChannel,
-				outputCell -> segmenter.predict(imgPlus, outputCell), new ProgressWriterConsole());
+				outputCell -> segmenter.predict(imgPlus, outputCell), cancellation.wrap(new ProgressWriterConsole()));
 
 		final int nDims = outputImg.numDimensions();
 		long[] channelOffset = new long[ nDims ];
@@ -175,16 +184,16 @@ public class ComputeProbabilityMapWithLabkitPlugin implements Command, Cancelabl
 
 	@Override
 	public boolean isCanceled() {
-		return false;
+		return cancellation.isCanceled();
 	}
 
 	@Override
 	public void cancel(String reason) {
-
+		cancellation.cancel(reason);
 	}
 
 	@Override
 	public String getCancelReason() {
-		return null;
+		return cancellation.getCancelReason();
 	}
 }
@@ -32,29 +32,78 @@ package sc.fiji.labkit.ui.project;
 import io.scif.services.DatasetIOService;
 import net.imagej.Dataset;
 import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.util.Intervals;
 import sc.fiji.labkit.ui.inputimage.DatasetInputImage;
 import sc.fiji.labkit.ui.labeling.Labeling;
+import sc.fiji.labkit.ui.labeling.LabelingJournal;
 import sc.fiji.labkit.ui.labeling.LabelingSerializer;
 import sc.fiji.labkit.ui.models.DefaultHolder;
 import sc.fiji.labkit.ui.models.Holder;
 import sc.fiji.labkit.ui.models.ImageLabelingModel;
 import sc.fiji.labkit.ui.models.MappedHolder;
+import sc.fiji.labkit.ui.utils.MemoryMappedIntType;
 import org.apache.commons.io.FilenameUtils;
 import org.scijava.Context;
 
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
 
 /**
  * Represents an {@link ImageLabelingModel} that stored on disk.
+ * <p>
+ * Changes to the pixels of an opened labeling are written to a
+ * {@link LabelingJournal} periodically and when the labeling is closed. This is
+ * fast even for large labelings. Only if the labels are changed, large parts of
+ * the labeling changed, or the journal grows too large, the entire labeling is
+ * written to a temporary file. The journal also allows to recover the changes
+ * after a crash.
+ * <p>
+ * Labelings of very large images, are created with a memory-mapped index
+ * image, that is stored in a scratch file next to the labeling file. This
+ * keeps them off the Java heap. The scratch file is deleted when the labeling
+ * is closed.
+ * <p>
+ * The files are written by a background thread, such that the user interface
+ * stays responsive. The changes are copied from the labeling by the thread
+ * that uses the {@link ImageLabelingModel}, usually the event dispatch
+ * thread, which is also the only thread that changes the fields of this class.
+ * {@link #close()} doesn't wait for the background thread, the labeling is
+ * released once the remaining changes are written.
  */
 public class LabeledImage {
 
+	private static final int JOURNAL_FLUSH_INTERVAL_MILLIS = 10_000;
+
+	/**
+	 * The journal is compacted into the temporary labeling file, if it gets
+	 * larger than this.
+	 */
+	private static final long MAX_JOURNAL_SIZE = 64 << 20;
+
+	/**
+	 * New labelings with more pixels than this, use a memory-mapped index image.
+	 */
+	private static final long MEMORY_MAPPED_PIXELS = 1L << 31;
+
+	private static final String SCRATCH_SUFFIX = ".scratch";
+
+	private static final ExecutorService JOURNAL_EXECUTOR = Executors
+		.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "Labkit labeling journal");
+			thread.setDaemon(true);
+			return thread;
+		});
+
 	private final Context context;
 
 	private String name;
@@ -65,6 +114,34 @@ public class LabeledImage {
 
 	private final String modifiedLabelingFile;
 
+	private final LabelingJournal journal;
+
+	private String journalBaseFile;
+
+	private boolean compactionRequired = false;
+
+	private final Timer journalTimer = new Timer(JOURNAL_FLUSH_INTERVAL_MILLIS,
+		ignore -> flushJournal());
+
+	/**
+	 * The journal or temporary file that is currently written in the
+	 * background. The result of the task updates the state of this class, once
+	 * the task is finished.
+	 */
+	private Future<Runnable> journalTask = null;
+
+	/**
+	 * True, if {@link #close()} was called, but the labeling is not yet
+	 * released.
+	 */
+	private boolean closing = false;
+
+	/**
+	 * True, if the remaining changes still need to be written, before the
+	 * labeling is released.
+	 */
+	private boolean finalFlushRequired = false;
+
 	private ImageLabelingModel imageLabelingModel;
 
 	private final Holder<String> storedIn;
@@ -73,7 +150,7 @@ public class LabeledImage {
 
 	private final Runnable onLabelingChanged = this::onLabelingChanged;
 
-	private final Consumer<Interval> onLabelingChangedConsumer = interval -> onLabelingChanged();
+	private final Consumer<Interval> onLabelingChangedConsumer = this::onPixelsChanged;
 
 	public LabeledImage(Context context, String imageFile) {
 		this(context, FilenameUtils.getName(imageFile), imageFile, imageFile + ".labeling");
@@ -85,7 +162,12 @@ public class LabeledImage {
 		this.imageFile = imageFile;
 		this.labelingFile = labelingFile;
 		this.modifiedLabelingFile = initModifiedLabelingFile();
-		this.storedIn = new DefaultHolder<>(labelingFile);
+		this.journal = new LabelingJournal(new File(modifiedLabelingFile +
+			".journal"));
+		// NB: An existing journal contains changes that were not saved, for
+		// example because Labkit crashed. Recover them.
+		this.storedIn = new DefaultHolder<>(journal.exists() ? journalFile()
+			: labelingFile);
 		this.modified = new MappedHolder<>(storedIn, value -> !labelingFile.equals(value));
 	}
 
@@ -112,6 +194,10 @@ public class LabeledImage {
 		return new File(parent, "~" + name).getAbsolutePath();
 	}
 
+	private String journalFile() {
+		return journal.getFile().getAbsolutePath();
+	}
+
 	public Holder<Boolean> modified() {
 		return modified;
 	}
@@ -122,34 +208,156 @@ public class LabeledImage {
 	 * @return The opened {@link ImageLabelingModel}.
 	 */
 	public ImageLabelingModel open() {
-		this.imageLabelingModel = snapshot();
+		if (imageLabelingModel == null)
+			imageLabelingModel = createImageLabelingModel(true);
+		if (closing) {
+			// NB: Reopened before the close finished, keep using the labeling.
+			closing = false;
+			finalFlushRequired = false;
+		}
+		else
+			this.journalBaseFile = storedIn.get();
 		imageLabelingModel.dataChangedNotifier().addListener(onLabelingChangedConsumer);
 		imageLabelingModel.labeling().notifier().addListener(onLabelingChanged);
+		journalTimer.start();
 		return imageLabelingModel;
 	}
 
 	/**
 	 * Closes the opened {@link ImageLabelingModel}. Changes to the labeling are
-	 * saved to a temporary file.
+	 * saved to the journal or a temporary file. This doesn't block, the
+	 * remaining changes are written after a running flush, and the labeling is
+	 * released once they are written.
 	 */
 	public void close() {
-		if (imageLabelingModel == null)
+		if (imageLabelingModel == null || closing)
 			return;
+		journalTimer.stop();
 		imageLabelingModel.dataChangedNotifier().removeListener(onLabelingChangedConsumer);
 		imageLabelingModel.labeling().notifier().removeListener(onLabelingChanged);
-		if (storedIn.get() == null) {
+		closing = true;
+		finalFlushRequired = true;
+		continueClose();
+	}
+
+	/**
+	 * Writes the remaining changes, and releases the labeling, as soon as no
+	 * background task is running. Called again when a background task
+	 * finishes.
+	 */
+	private void continueClose() {
+		if (journalTask != null)
+			return;
+		if (finalFlushRequired) {
+			finalFlushRequired = false;
+			flushJournal();
+			if (journalTask != null)
+				return;
+		}
+		closing = false;
+		if (storedIn.get() != null) {
+			dispose(imageLabelingModel.labeling().get());
+			imageLabelingModel = null;
+		}
+	}
+
+	/**
+	 * Starts writing the pending changes of the opened labeling to the journal,
+	 * in a background thread. The entire labeling is written to the temporary
+	 * file instead, if the labels changed, if the changes cover a large part of
+	 * the labeling, or if the journal got too large.
+	 */
+	private synchronized void flushJournal() {
+		if (imageLabelingModel == null || storedIn.get() != null ||
+			journalTask != null)
+			return;
+		Labeling labeling = imageLabelingModel.labeling().get();
+		// NB: The journal entries refer to the labels in the journal's header.
+		// If the labels changed, the entire labeling is written instead.
+		if (compactionRequired || journal.labelsChanged(labeling.getLabels()) ||
+			journal.requiresCompaction(labeling.interval()) ||
+			journal.size() > MAX_JOURNAL_SIZE)
+		{
+			compactionRequired = false;
+			journal.takePendingChanges();
+			submitJournalTask(() -> {
+				new LabelingSerializer(context).save(labeling, modifiedLabelingFile);
+				journal.deleteFile();
+			}, () -> {
+				journalBaseFile = modifiedLabelingFile;
+				markStoredIfUnchanged(modifiedLabelingFile);
+			});
+		}
+		else {
+			// NB: The changes are copied here, because the labeling might be
+			// modified while the journal is written.
+			LabelingJournal.Changes changes = journal.takeChanges(labeling);
+			if (changes == null)
+				return;
+			boolean start = !journal.exists();
+			String baseFile = existingFile(journalBaseFile);
+			submitJournalTask(() -> {
+				if (start)
+					journal.start(baseFile, changes.interval(), changes.labels());
+				journal.write(changes);
+			}, () -> markStoredIfUnchanged(journalFile()));
+		}
+	}
+
+	private void submitJournalTask(IoTask task, Runnable onSuccess) {
+		journalTask = JOURNAL_EXECUTOR.submit(() -> {
+			Runnable result;
 			try {
-				new LabelingSerializer(context).save(imageLabelingModel.labeling().get(),
-					modifiedLabelingFile);
-				storedIn.set(modifiedLabelingFile);
-				imageLabelingModel = null;
+				task.run();
+				result = onSuccess;
 			}
-			catch (IOException e) {
+			catch (Throwable e) {
 				e.printStackTrace();
+				// NB: The changes are not in the journal. Save everything next time.
+				result = () -> compactionRequired = true;
 			}
+			SwingUtilities.invokeLater(this::applyFinishedJournalTask);
+			return result;
+		});
+	}
+
+	private synchronized void applyFinishedJournalTask() {
+		if (journalTask != null && journalTask.isDone())
+			awaitJournal();
+		if (closing)
+			continueClose();
+	}
+
+	/**
+	 * Waits for the background task to finish, and applies its result.
+	 */
+	private synchronized void awaitJournal() {
+		if (journalTask == null)
+			return;
+		try {
+			Runnable result = journalTask.get();
+			journalTask = null;
+			result.run();
 		}
-		else
-			imageLabelingModel = null;
+		catch (InterruptedException | ExecutionException e) {
+			journalTask = null;
+			compactionRequired = true;
+			e.printStackTrace();
+		}
+	}
+
+	private void markStoredIfUnchanged(String file) {
+		if (!compactionRequired && !journal.hasPendingChanges())
+			storedIn.set(file);
+	}
+
+	private interface IoTask {
+
+		void run() throws IOException;
+	}
+
+	private static String existingFile(String filename) {
+		return filename != null && new File(filename).exists() ? filename : null;
 	}
 
 	/**
@@ -159,16 +367,22 @@ public class LabeledImage {
 	public void discardChanges() {
 		if (modified.get())
 			return;
+		awaitJournal();
 		if (imageLabelingModel != null) {
-			imageLabelingModel.labeling().set(openOrEmptyLabeling(labelingFile, imageLabelingModel
-				.imageForSegmentation().get()));
+			Labeling old = imageLabelingModel.labeling().get();
+			imageLabelingModel.labeling().set(openOrEmptyLabeling(labelingFile,
+				imageLabelingModel.imageForSegmentation().get(), true));
+			dispose(old);
 		}
 		try {
-			Files.deleteIfExists(Paths.get(modifiedLabelingFile));
+			deleteModifiedLabelingFile();
+			journal.delete();
 		}
 		catch (IOException e) {
 			e.printStackTrace();
 		}
+		journalBaseFile = labelingFile;
+		compactionRequired = false;
 		storedIn.set(labelingFile);
 	}
 
@@ -178,10 +392,16 @@ public class LabeledImage {
 	public void save() {
 		if (!modified.get())
 			return;
+		awaitJournal();
 		if (imageLabelingModel == null) {
 			try {
-				Files.move(Paths.get(modifiedLabelingFile), Paths.get(labelingFile),
-					StandardCopyOption.REPLACE_EXISTING);
+				if (journalFile().equals(storedIn.get())) {
+					saveAndDispose(openJournal());
+					journal.delete();
+					deleteModifiedLabelingFile();
+				}
+				else
+					LabelingSerializer.move(modifiedLabelingFile, labelingFile);
 				storedIn.set(labelingFile);
 			}
 			catch (IOException e) {
@@ -192,7 +412,10 @@ public class LabeledImage {
 			try {
 				new LabelingSerializer(context).save(imageLabelingModel.labeling().get(),
 					labelingFile);
-				Files.deleteIfExists(Paths.get(modifiedLabelingFile));
+				deleteModifiedLabelingFile();
+				journal.delete();
+				journalBaseFile = labelingFile;
+				compactionRequired = false;
 				storedIn.set(labelingFile);
 			}
 			catch (IOException e) {
@@ -201,7 +424,61 @@ public class LabeledImage {
 		}
 	}
 
+	private void saveAndDispose(Labeling labeling) throws IOException {
+		try {
+			new LabelingSerializer(context).save(labeling, labelingFile);
+		}
+		finally {
+			dispose(labeling);
+		}
+	}
+
+	private void deleteModifiedLabelingFile() throws IOException {
+		// NB: Index image snapshots, that the labeling file still uses, are kept.
+		LabelingSerializer.delete(modifiedLabelingFile, labelingFile);
+	}
+
+	/**
+	 * Releases the memory-mapped index image of the labeling, and deletes its
+	 * scratch file.
+	 */
+	private static void dispose(Labeling labeling) {
+		try {
+			labeling.dispose();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		RandomAccessibleInterval<?> indexImg = labeling.getIndexImg();
+		if (indexImg instanceof MemoryMappedIntType) {
+			File file = ((MemoryMappedIntType) indexImg).getFile();
+			// NB: The file stays mapped, until the garbage collector releases the
+			// mapping. Some operating systems don't allow to delete it before.
+			if (isScratchFile(file) && !file.delete())
+				file.deleteOnExit();
+		}
+	}
+
+	private static boolean isScratchFile(File file) {
+		return file.getName().endsWith(SCRATCH_SUFFIX);
+	}
+
+	private void onPixelsChanged(Interval interval) {
+		// NB: Null means that the entire labeling changed, this is handled by
+		// saving the entire labeling.
+		if (interval == null)
+			compactionRequired = true;
+		else
+			journal.record(interval);
+		storedIn.set(null);
+	}
+
+	/**
+	 * Called if the labels or the entire labeling changed. The journal can't
+	 * record this, so the labeling is written entirely at the next flush.
+	 */
 	private void onLabelingChanged() {
+		compactionRequired = true;
 		storedIn.set(null);
 	}
 
@@ -212,9 +489,14 @@ public class LabeledImage {
 	public ImageLabelingModel snapshot() {
 		if (imageLabelingModel != null)
 			return imageLabelingModel;
+		return createImageLabelingModel(false);
+	}
+
+	private ImageLabelingModel createImageLabelingModel(boolean editable) {
 		DatasetInputImage inputImage = openInputImage();
 		inputImage.setDefaultLabelingFilename(modifiedLabelingFile);
-		Labeling labeling = openOrEmptyLabeling(storedIn.get(), inputImage.imageForSegmentation());
+		Labeling labeling = openOrEmptyLabeling(storedIn.get(), inputImage
+			.imageForSegmentation(), editable);
 		ImageLabelingModel imageLabelingModel = new ImageLabelingModel(inputImage);
 		imageLabelingModel.labeling().set(labeling);
 		return imageLabelingModel;
@@ -231,16 +513,46 @@ public class LabeledImage {
 		}
 	}
 
-	private Labeling openOrEmptyLabeling(String filename, Interval interval) {
+	private Labeling openJournal() throws IOException {
+		return LabelingJournal.open(journal.getFile(), new LabelingSerializer(
+			context));
+	}
+
+	private Labeling openOrEmptyLabeling(String filename, Interval interval,
+		boolean editable)
+	{
 		if (new File(filename).exists()) {
 			try {
+				if (filename.equals(journalFile()))
+					return openJournal();
 				return new LabelingSerializer(context).open(filename);
 			}
 			catch (IOException e) {
 				e.printStackTrace();
 			}
 		}
-		return Labeling.createEmpty(Arrays.asList("background", "foreground"), interval);
+		List<String> labels = Arrays.asList("background", "foreground");
+		if (editable && Intervals.numElements(interval) > MEMORY_MAPPED_PIXELS) {
+			try {
+				return Labeling.createEmptyMemoryMapped(labels, interval,
+					createScratchFile());
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return Labeling.createEmpty(labels, interval);
+	}
+
+	/**
+	 * Creates a new scratch file for a memory-mapped index image, next to the
+	 * labeling file. Each labeling gets its own file, as a replaced labeling
+	 * might still be mapped.
+	 */
+	private File createScratchFile() throws IOException {
+		File file = new File(modifiedLabelingFile);
+		return File.createTempFile(file.getName() + "-", SCRATCH_SUFFIX, file
+			.getParentFile());
 	}
 
 	@Override
@@ -84,6 +84,11 @@ public class ForwardingSegmenter implements Segmenter {
 		source.setUseGpu(useGpu);
 	}
 
+	@Override
+	public boolean isSegmentationArgMaxOfPrediction() {
+		return source.isSegmentationArgMaxOfPrediction();
+	}
+
 	@Override
 	public boolean isTrained() {
 		return source.isTrained();
@@ -29,13 +29,19 @@
 
 package sc.fiji.labkit.ui.segmentation;
 
+import bdv.util.RandomAccessibleIntervalMipmapSource;
 import bdv.util.volatiles.SharedQueue;
 import bdv.util.volatiles.VolatileViews;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.cache.volatiles.LoadingStrategy;
 import net.imglib2.converter.Converter;
 import net.imglib2.converter.Converters;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Cast;
+import net.imglib2.view.Views;
 import sc.fiji.labkit.ui.bdv.BdvLayer;
 import sc.fiji.labkit.ui.bdv.BdvShowable;
 import sc.fiji.labkit.ui.models.DefaultHolder;
@@ -57,6 +63,10 @@ public class PredictionLayer implements BdvLayer {
 
 	private final Holder<SegmentationResultsModel> model;
 	private final AffineTransform3D transformation;
+	private static final CacheHints LOAD = new CacheHints(LoadingStrategy.VOLATILE,
+		0, false);
+	private static final CacheHints DONT_LOAD = new CacheHints(
+		LoadingStrategy.DONTLOAD, 0, false);
 	private final SharedQueue queue = new SharedQueue(Runtime.getRuntime()
 		.availableProcessors());
 	private final Holder<Boolean> visibility;
@@ -117,24 +127,67 @@ public class PredictionLayer implements BdvLayer {
 		registerListener(results);
 		boolean hasResult = results != null && results.hasResults();
 		if (hasResult)
-			showable.set(BdvShowable.wrap(coloredVolatileView(results), transformation));
+			showable.set(createShowable(results));
 		else
 			showable.set(null);
 		listeners.notifyListeners(null);
 	}
 
-	private RandomAccessibleInterval<VolatileARGBType> coloredVolatileView(
-		SegmentationResultsModel selected)
+	/**
+	 * If a preview segmentation is available, a multi resolution source is
+	 * shown. BigDataViewer then shows the preview, until the cells of the full
+	 * resolution segmentation are computed.
+	 */
+	private BdvShowable createShowable(SegmentationResultsModel results) {
+		ARGBType[] colors = results.colors().toArray(new ARGBType[0]);
+		RandomAccessibleInterval<VolatileARGBType> segmentation = mapColors(colors,
+			volatileSegmentation(results));
+		RandomAccessibleInterval<UnsignedByteType> preview = results
+			.previewSegmentation();
+		if (preview == null)
+			return BdvShowable.wrap(segmentation, transformation);
+		int n = segmentation.numDimensions();
+		double factor = SegmentationResultsModel.PREVIEW_FACTOR;
+		RandomAccessibleInterval<VolatileARGBType>[] levels = Cast.unchecked(
+			new RandomAccessibleInterval[] { as3D(segmentation), as3D(mapColors(
+				colors, wrapAsVolatile(preview, LOAD))) });
+		double[][] scales = { { 1, 1, 1 }, { factor, factor, n < 3 ? 1 : factor } };
+		return BdvShowable.wrap(new RandomAccessibleIntervalMipmapSource<>(levels,
+			new VolatileARGBType(), scales, new FinalVoxelDimensions("pixel", 1, 1,
+				1), transformation, title()));
+	}
+
+	/**
+	 * Returns the volatile segmentation. Pixels of cells that are not yet
+	 * computed are taken from the previous segmentation if available. Cells of
+	 * the previous segmentation are never computed, only those already in the
+	 * cache are shown.
+	 */
+	private RandomAccessibleInterval<VolatileUnsignedByteType> volatileSegmentation(
+		SegmentationResultsModel results)
+	{
+		RandomAccessibleInterval<VolatileUnsignedByteType> segmentation =
+			wrapAsVolatile(results.segmentation(), LOAD);
+		RandomAccessibleInterval<UnsignedByteType> previous = results
+			.previousSegmentation();
+		if (previous == null)
+			return segmentation;
+		return Converters.convert(segmentation, wrapAsVolatile(previous,
+			DONT_LOAD), (current, old, output) -> output.set(current.isValid()
+				? current : old), new VolatileUnsignedByteType());
+	}
+
+	private static <T> RandomAccessibleInterval<T> as3D(
+		RandomAccessibleInterval<T> image)
 	{
-		ARGBType[] colors = selected.colors().toArray(new ARGBType[0]);
-		return mapColors(colors, wrapAsVolatile(selected.segmentation()));
+		return image.numDimensions() < 3 ? Views.addDimension(image, 0, 0) : image;
 	}
 
 	private RandomAccessibleInterval<VolatileUnsignedByteType> wrapAsVolatile(
-		RandomAccessibleInterval<UnsignedByteType> image)
+		RandomAccessibleInterval<UnsignedByteType> image, CacheHints hints)
 	{
 		try {
-			return VolatileViews.wrapAsVolatile(image, queue);
+			return VolatileViews.wrapAsVolatile(image, queue, hints);
 		}
 		catch (IllegalArgumentException e) {
 			// This happens when image isn't some sort of CachedCellImg.
@@ -36,6 +36,7 @@ import net.imagej.axis.Axes;
 import net.imagej.axis.CalibratedAxis;
 import net.imagej.axis.IdentityAxis;
 import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.array.ArrayImgs;
@@ -44,7 +45,9 @@ import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Cast;
+import net.imglib2.util.ConstantUtils;
 import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
 import org.apache.commons.lang3.ArrayUtils;
 import org.scijava.Context;
 import sc.fiji.labkit.pixel_classification.utils.SingletonContext;
@@ -53,8 +56,12 @@ import sc.fiji.labkit.ui.inputimage.ImgPlusViewsOld;
 import sc.fiji.labkit.ui.models.CachedImageFactory;
 import sc.fiji.labkit.ui.models.DefaultCachedImageFactory;
 import sc.fiji.labkit.ui.segmentation.weka.TrainableSegmentationSegmenter;
+import sc.fiji.labkit.ui.utils.N5DatasetWriter;
 import sc.fiji.labkit.ui.utils.ParallelUtils;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
@@ -69,6 +76,8 @@ public class SegmentationTool {
 
 	private Boolean useGpu = null;
 
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
 	private final CachedImageFactory cachedImageFactory = DefaultCachedImageFactory.getInstance();
 
 	public SegmentationTool() {
@@ -79,6 +88,20 @@ public class SegmentationTool {
 		this.segmenter = segmenter;
 	}
 
+	/**
+	 * Returns a {@link SegmentationTool} that uses the same segmenter and
+	 * settings, but reports its progress to the given {@link ProgressWriter}.
+	 * This is useful if multiple images are segmented concurrently.
+	 */
+	public SegmentationTool withProgressWriter(ProgressWriter progressWriter) {
+		SegmentationTool copy = new SegmentationTool(segmenter);
+		copy.context = context;
+		copy.useGpu = useGpu;
+		copy.numThreads = numThreads;
+		copy.setProgressWriter(progressWriter);
+		return copy;
+	}
+
 	public void openModel(String classifierFile) {
 		Context context = this.context != null ? this.context : SingletonContext.getInstance();
 		Segmenter segmenter = new TrainableSegmentationSegmenter(context);
@@ -108,6 +131,36 @@ public class SegmentationTool {
 			this.segmenter.setUseGpu(useGpu);
 	}
 
+	/**
+	 * Sets the number of threads used to segment an image. This is useful if
+	 * multiple images are segmented concurrently.
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	/**
+	 * Returns a rough estimate of the memory, in bytes, needed to calculate the
+	 * probability map of the given image. This includes the input image, the
+	 * output and the feature images of the cells processed in parallel. The
+	 * segmentation requires less memory.
+	 */
+	public long estimateMemoryUsage(ImgPlus<?> image) {
+		ImgPlus<?> imgPlus = new DatasetInputImage(image).imageForSegmentation();
+		long numPixels = Intervals.numElements(SegmentationUtils.intervalNoChannels(
+			imgPlus));
+		long numChannels = Intervals.numElements(imgPlus) / Math.max(1, numPixels);
+		long numClasses = segmenter.classNames().size();
+		long numFeatures = segmenter instanceof TrainableSegmentationSegmenter
+			? ((TrainableSegmentationSegmenter) segmenter).numberOfFeatures() *
+				numChannels : numChannels;
+		long cellSize = 1;
+		for (int size : segmenter.suggestCellSize(imgPlus))
+			cellSize *= size;
+		return Float.BYTES * (numPixels * (numChannels + numClasses) +
+			numThreads * cellSize * (numFeatures + numClasses));
+	}
+
 	public ImgPlus<UnsignedByteType> segment(ImgPlus<?> image) {
 		return segment(image, new UnsignedByteType());
 	}
@@ -124,6 +177,46 @@ public class SegmentationTool {
 			axes.toArray(new CalibratedAxis[0]));
 	}
 
+	/**
+	 * Segments the given image cell by cell, and writes each cell as soon as
+	 * it's finished into the given directory, using the N5 format. Only the
+	 * cells that are currently processed are held in memory, which allows to
+	 * segment images that are larger than the available memory.
+	 */
+	public void segmentToN5(ImgPlus<?> image, File directory) throws IOException {
+		ImgPlus<?> imgPlus = new DatasetInputImage(image).imageForSegmentation();
+		Interval outputInterval = SegmentationUtils.intervalNoChannels(imgPlus);
+		int[] cellSize = segmenter.suggestCellSize(imgPlus);
+		N5DatasetWriter<UnsignedByteType> writer = new N5DatasetWriter<>(directory,
+			Intervals.dimensionsAsLongArray(outputInterval), cellSize,
+			new UnsignedByteType());
+		RandomAccessibleInterval<UnsignedByteType> cells = ConstantUtils
+			.constantRandomAccessibleInterval(new UnsignedByteType(), outputInterval);
+		try {
+			ParallelUtils.applyOperationOnCells(cells, cellSize,
+				cell -> segmentAndWriteCell(imgPlus, cell, writer), progressWriter,
+				numThreads);
+		}
+		catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private void segmentAndWriteCell(ImgPlus<?> imgPlus, Interval cell,
+		N5DatasetWriter<UnsignedByteType> writer)
+	{
+		RandomAccessibleInterval<UnsignedByteType> outputCell = Views.translate(
+			ArrayImgs.unsignedBytes(Intervals.dimensionsAsLongArray(cell)),
+			Intervals.minAsLongArray(cell));
+		segmenter.segment(imgPlus, outputCell);
+		try {
+			writer.writeBlock(outputCell);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
 	private boolean useCacheForSegmentation(ImgPlus<?> imgPlus) {
 		return Intervals.numElements(imgPlus) > 100_000_000;
 	}
@@ -137,7 +230,8 @@ public class SegmentationTool {
 		Img<T> outputImg = new ArrayImgFactory((NativeType) type).create(Intervals
 			.dimensionsAsLongArray(outputInterval));
 		ParallelUtils.applyOperationOnCells(outputImg, cellSize,
-			outputCell -> segmenter.segment(imgPlus, outputCell), progressWriter);
+			outputCell -> segmenter.segment(imgPlus, outputCell), progressWriter,
+			numThreads);
 		return outputImg;
 	}
 
@@ -146,7 +240,7 @@ public class SegmentationTool {
 	{
 		Img<T> outputImg = Cast.unchecked(SegmentationUtils.createCachedSegmentation(
 			segmenter, imgPlus, cachedImageFactory, Cast.unchecked(type)));
-		ParallelUtils.populateCachedImg(outputImg, progressWriter);
+		ParallelUtils.populateCachedImg(outputImg, progressWriter, numThreads);
 		return outputImg;
 	}
 
@@ -171,7 +265,7 @@ public class SegmentationTool {
 	private Img<FloatType> calculateOnCachedImg(ImgPlus<?> image) {
 		Img<FloatType> outputImg = SegmentationUtils.createCachedProbabilityMap(segmenter, image,
 			cachedImageFactory);
-		ParallelUtils.populateCachedImg(outputImg, progressWriter);
+		ParallelUtils.populateCachedImg(outputImg, progressWriter, numThreads);
 		return outputImg;
 	}
 
@@ -183,7 +277,8 @@ public class SegmentationTool {
 		int[] cellSize = ArrayUtils.add(segmenter.suggestCellSize(imgPlus), numberOfChannels);
 		Img<FloatType> outputImg = ArrayImgs.floats(imageSize);
 		ParallelUtils.applyOperationOnCells(outputImg, cellSize,
-			outputCell -> segmenter.predict(imgPlus, outputCell), progressWriter);
+			outputCell -> segmenter.predict(imgPlus, outputCell), progressWriter,
+			numThreads);
 		return outputImg;
 	}
 }
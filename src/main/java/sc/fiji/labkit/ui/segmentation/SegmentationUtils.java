@@ -38,6 +38,7 @@ import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.cell.CellGrid;
+import net.imglib2.loops.LoopBuilder;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import org.apache.commons.lang3.ArrayUtils;
@@ -46,9 +47,11 @@ import sc.fiji.labkit.ui.models.CachedImageFactory;
 import sc.fiji.labkit.ui.models.DefaultCachedImageFactory;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
+import net.imglib2.view.composite.Composite;
 
 import java.util.Arrays;
 
@@ -95,6 +98,57 @@ public class SegmentationUtils {
 			grid, type);
 	}
 
+	/**
+	 * Returns a cached segmentation, that is derived from the given probability
+	 * map. The class with the highest probability is chosen for each pixel. The
+	 * classifier is therefore only evaluated once, when the probability map is
+	 * calculated. This requires
+	 * {@link Segmenter#isSegmentationArgMaxOfPrediction()} to be true.
+	 */
+	public static <T extends IntegerType<T> & NativeType<T>> Img<T>
+		createCachedSegmentationFromProbabilityMap(Segmenter segmenter,
+			ImgPlus<?> image, RandomAccessibleInterval<? extends RealType<?>> probabilityMap,
+			CachedImageFactory cachedImageFactory, T type)
+	{
+		if (cachedImageFactory == null)
+			cachedImageFactory = DefaultCachedImageFactory.getInstance();
+		int[] cellSize = segmenter.suggestCellSize(image);
+		Interval interval = intervalNoChannels(image);
+		CellGrid grid = new CellGrid(Intervals.dimensionsAsLongArray(interval), cellSize);
+		return cachedImageFactory.setupCachedImage(segmenter,
+			target -> argMax(probabilityMap, target), grid, type);
+	}
+
+	/**
+	 * Writes the index of the highest value along the last axis of the
+	 * probability map into the target.
+	 */
+	private static void argMax(
+		RandomAccessibleInterval<? extends RealType<?>> probabilityMap,
+		RandomAccessibleInterval<? extends IntegerType<?>> target)
+	{
+		int classAxis = probabilityMap.numDimensions() - 1;
+		long numClasses = probabilityMap.dimension(classAxis);
+		long[] min = ArrayUtils.add(Intervals.minAsLongArray(target),
+			probabilityMap.min(classAxis));
+		long[] max = ArrayUtils.add(Intervals.maxAsLongArray(target),
+			probabilityMap.max(classAxis));
+		RandomAccessibleInterval<? extends Composite<? extends RealType<?>>> probabilities =
+			Views.collapse(Views.interval(probabilityMap, min, max));
+		LoopBuilder.setImages(probabilities, target).forEachPixel((p, t) -> {
+			int best = 0;
+			double bestValue = p.get(0).getRealDouble();
+			for (int i = 1; i < numClasses; i++) {
+				double value = p.get(i).getRealDouble();
+				if (value > bestValue) {
+					best = i;
+					bestValue = value;
+				}
+			}
+			t.setInteger(best);
+		});
+	}
+
 	private static CellGrid addDimensionToGrid(int size, CellGrid grid) {
 		long[] dimensions = ArrayUtils.add(grid.getImgDimensions(), size);
 		int[] cellDimensions = ArrayUtils.add(getCellDimensions(grid), size);
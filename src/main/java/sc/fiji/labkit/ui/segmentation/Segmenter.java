@@ -92,6 +92,16 @@ public interface Segmenter {
 
 	default void setUseGpu(boolean useGpu) {}
 
+	/**
+	 * Return true if the segmentation always equals the index of the class
+	 * with the highest probability in the probability map. This allows to
+	 * derive the segmentation from the probability map, instead of running the
+	 * classifier twice.
+	 */
+	default boolean isSegmentationArgMaxOfPrediction() {
+		return false;
+	}
+
 	/**
 	 * Return true if the model is trained.
 	 */
@@ -0,0 +1,273 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.segmentation.weka;
+
+import net.imagej.ImgPlus;
+import net.imglib2.cache.img.DiskCachedCellImg;
+import net.imglib2.type.numeric.real.FloatType;
+import sc.fiji.labkit.pixel_classification.pixel_feature.settings.FeatureSettings;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+
+/**
+ * Keeps the feature images, that are calculated for training, such that
+ * repeated training runs on the same image, and the segmentation and
+ * prediction of that image, don't need to recalculate the features.
+ * <p>
+ * A feature image is identified by the image (by identity), the indices of the
+ * slice (if the features are calculated per time point or z-slice), the
+ * {@link FeatureSettings} and whether the GPU is used. The total size of the
+ * computed cells of all cached feature images is limited. If it is exceeded
+ * the least recently used feature images are removed. Removed feature images
+ * are shut down, which frees their memory and disk space.
+ * <p>
+ * A feature image is pinned while it's used by {@link #use}. Pinned feature
+ * images are never evicted. If they are removed by {@link #removeAll} or
+ * {@link #clear()}, they are shut down once the last user is finished.
+ * <p>
+ * {@link #getInstance()} returns the cache that is shared by all
+ * {@link TrainableSegmentationSegmenter}s, such that the features of an image
+ * are calculated only once per session, even if multiple segmenters with the
+ * same settings are trained on it. Each feature image remembers the
+ * segmenters, that used it. {@link #removeAll} only removes a feature image,
+ * once no other segmenter uses it anymore.
+ *
+ * @author Matthias Arzt
+ */
+class FeatureCache {
+
+	private static final FeatureCache INSTANCE = new FeatureCache(0);
+
+	static FeatureCache getInstance() {
+		return INSTANCE;
+	}
+
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16,
+		0.75f, true);
+
+	private long maxSizeInBytes;
+
+	FeatureCache(long maxSizeInBytes) {
+		this.maxSizeInBytes = maxSizeInBytes;
+	}
+
+	synchronized void setMaxSizeInBytes(long maxSizeInBytes) {
+		this.maxSizeInBytes = maxSizeInBytes;
+		evict();
+	}
+
+	/**
+	 * Calls the action with the cached feature image, and records the owner as
+	 * a user of the feature image. If there is no cached
+	 * feature image, it's created by the given factory. The factory gets a
+	 * callback, that must be called with the size in bytes of every computed
+	 * cell. If the computed cells exceed the size limit, the feature image is
+	 * shut down after the action returns.
+	 */
+	void use(Object owner, ImgPlus<?> image, List<Integer> sliceIndices,
+		FeatureSettings settings, boolean useGpu,
+		Function<LongConsumer, DiskCachedCellImg<FloatType, ?>> factory,
+		Consumer<DiskCachedCellImg<FloatType, ?>> action)
+	{
+		Entry entry = pin(owner, new Key(image, sliceIndices, settings, useGpu),
+			factory);
+		try {
+			action.accept(entry.features);
+		}
+		finally {
+			unpin(entry);
+		}
+	}
+
+	private synchronized Entry pin(Object owner, Key key,
+		Function<LongConsumer, DiskCachedCellImg<FloatType, ?>> factory)
+	{
+		removeCollectedImages();
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			entry = new Entry();
+			entry.features = factory.apply(entry.computedBytes::addAndGet);
+			entries.put(key, entry);
+		}
+		entry.users++;
+		entry.owners.add(owner);
+		return entry;
+	}
+
+	private synchronized void unpin(Entry entry) {
+		entry.users--;
+		if (entry.removed)
+			shutdownIfUnused(entry);
+		else
+			evict();
+	}
+
+	/**
+	 * Removes the given owner from all feature images, that were calculated with
+	 * the given settings. Feature images that are left without owner are
+	 * removed.
+	 */
+	synchronized void removeAll(Object owner, FeatureSettings settings) {
+		Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Key, Entry> entry = iterator.next();
+			if (!entry.getKey().settings.equals(settings))
+				continue;
+			Set<Object> owners = entry.getValue().owners;
+			owners.remove(owner);
+			if (owners.isEmpty()) {
+				iterator.remove();
+				remove(entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Removes all cached feature images.
+	 */
+	synchronized void clear() {
+		entries.values().forEach(FeatureCache::remove);
+		entries.clear();
+	}
+
+	private void removeCollectedImages() {
+		Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Key, Entry> entry = iterator.next();
+			if (entry.getKey().image.get() == null) {
+				iterator.remove();
+				remove(entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Removes the least recently used feature images, that are not pinned,
+	 * until the total size of the computed cells is below the limit.
+	 */
+	private void evict() {
+		long total = 0;
+		for (Entry entry : entries.values())
+			total += entry.computedBytes.get();
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext() && (total > maxSizeInBytes ||
+			maxSizeInBytes <= 0))
+		{
+			Entry entry = iterator.next();
+			if (entry.users > 0)
+				continue;
+			iterator.remove();
+			total -= entry.computedBytes.get();
+			remove(entry);
+		}
+	}
+
+	private static void remove(Entry entry) {
+		entry.removed = true;
+		shutdownIfUnused(entry);
+	}
+
+	private static void shutdownIfUnused(Entry entry) {
+		if (entry.users == 0)
+			entry.features.shutdown();
+	}
+
+	/**
+	 * A cached feature image, the size of its computed cells, the number of
+	 * {@link #use} calls, that currently use it, and the segmenters that used it.
+	 */
+	private static class Entry {
+
+		private DiskCachedCellImg<FloatType, ?> features;
+
+		// NB: Weak references, a segmenter that is garbage collected, doesn't
+		// keep its feature images.
+		private final Set<Object> owners = Collections.newSetFromMap(
+			new WeakHashMap<>());
+
+		private final AtomicLong computedBytes = new AtomicLong();
+
+		private int users = 0;
+
+		private boolean removed = false;
+	}
+
+	private static class Key {
+
+		private final WeakReference<ImgPlus<?>> image;
+
+		private final int imageHashCode;
+
+		private final List<Integer> sliceIndices;
+
+		private final FeatureSettings settings;
+
+		private final boolean useGpu;
+
+		private Key(ImgPlus<?> image, List<Integer> sliceIndices,
+			FeatureSettings settings, boolean useGpu)
+		{
+			this.image = new WeakReference<>(image);
+			this.imageHashCode = System.identityHashCode(image);
+			this.sliceIndices = new ArrayList<>(sliceIndices);
+			this.settings = settings;
+			this.useGpu = useGpu;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			ImgPlus<?> image = this.image.get();
+			return image != null && image == other.image.get() &&
+				sliceIndices.equals(other.sliceIndices) && settings.equals(
+					other.settings) && useGpu == other.useGpu;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(imageHashCode, sliceIndices, settings, useGpu);
+		}
+	}
+}
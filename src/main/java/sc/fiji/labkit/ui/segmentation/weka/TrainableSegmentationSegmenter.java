@@ -29,12 +29,15 @@
 
 package sc.fiji.labkit.ui.segmentation.weka;
 
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongObjectHashMap;
 import hr.irb.fastRandomForest.FastRandomForest;
 import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
 import net.imagej.axis.AxisType;
 import net.imglib2.Cursor;
+import net.imglib2.Localizable;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
@@ -42,7 +45,9 @@ import net.imglib2.cache.img.CellLoader;
 import net.imglib2.cache.img.DiskCachedCellImg;
 import net.imglib2.cache.img.DiskCachedCellImgFactory;
 import net.imglib2.cache.img.DiskCachedCellImgOptions;
+import net.imglib2.img.cell.CellGrid;
 import net.imglib2.img.display.imagej.ImgPlusViews;
+import net.imglib2.parallel.Parallelization;
 import org.scijava.prefs.PrefService;
 import sc.fiji.labkit.ui.inputimage.ImgPlusViewsOld;
 import sc.fiji.labkit.ui.labeling.Label;
@@ -66,29 +71,39 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Cast;
+import net.imglib2.util.IntervalIndexer;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.view.Views;
 import net.imglib2.view.composite.Composite;
 import org.scijava.Context;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
 import weka.core.WekaException;
 
 import javax.swing.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.CancellationException;
-import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.LongConsumer;
 import java.util.stream.Collectors;
 
 // TODO: rename to PixelClassification
 public class TrainableSegmentationSegmenter implements Segmenter {
 
+	private static final long DEFAULT_FEATURE_CACHE_SIZE_MB = 4096;
+
 	private final Context context;
 
 	private boolean useGpu;
@@ -97,10 +112,19 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 
 	private sc.fiji.labkit.pixel_classification.classification.Segmenter segmenter;
 
+	/**
+	 * The classifier of {@link #segmenter}, if it was trained by this object.
+	 * It's null if the model was loaded from a file.
+	 */
+	private FastRandomForest classifier;
+
+	private final FeatureCache featureCache = FeatureCache.getInstance();
+
 	public TrainableSegmentationSegmenter(Context context) {
 		this.context = Objects.requireNonNull(context);
 		this.useGpu = getUseGpuPreference();
 		this.segmenter = null;
+		this.classifier = null;
 		this.featureSettings = null;
 	}
 
@@ -117,6 +141,7 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 				useGpu, featureSettings);
 		dialog.show();
 		if (dialog.okClicked()) {
+			removeCachedFeatures();
 			featureSettings = dialog.featureSettings();
 			boolean newUseGpu = dialog.useGpu();
 			if (this.useGpu != newUseGpu)
@@ -128,13 +153,25 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 	@Override
 	public void segment(ImgPlus<?> image,
 		RandomAccessibleInterval<? extends IntegerType<?>> labels)
+	{
+		segmentStack(image, labels, image, Collections.emptyList());
+	}
+
+	private void segmentStack(ImgPlus<?> image,
+		RandomAccessibleInterval<? extends IntegerType<?>> labels,
+		ImgPlus<?> source, List<Integer> sliceIndices)
 	{
 		if (ImgPlusViewsOld.hasAxis(image, Axes.TIME))
-			applyOnSlices(this::segment, image, labels, image.dimensionIndex(Axes.TIME), labels
-				.numDimensions() - 1);
+			applyOnSlices((slice, i, target) -> segmentStack(slice, target, source,
+				append(sliceIndices, i)), image, labels, image.dimensionIndex(Axes.TIME),
+				labels.numDimensions() - 1);
 		else if (ImgPlusViewsOld.hasAxis(image, Axes.Z) && is2D())
-			applyOnSlices(this::segment, image, labels, image.dimensionIndex(Axes.Z), labels
-				.numDimensions() - 1);
+			applyOnSlices((slice, i, target) -> segmentStack(slice, target, source,
+				append(sliceIndices, i)), image, labels, image.dimensionIndex(Axes.Z),
+				labels.numDimensions() - 1);
+		else if (useCachedFeatures())
+			withCachedFeatures(image, source, sliceIndices,
+				features -> segmentFromFeatures(features, labels));
 		else
 			segmenter.segment(labels, Views.extendBorder(image));
 	}
@@ -142,17 +179,34 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 	@Override
 	public void predict(ImgPlus<?> image,
 		RandomAccessibleInterval<? extends RealType<?>> prediction)
+	{
+		predictStack(image, prediction, image, Collections.emptyList());
+	}
+
+	private void predictStack(ImgPlus<?> image,
+		RandomAccessibleInterval<? extends RealType<?>> prediction,
+		ImgPlus<?> source, List<Integer> sliceIndices)
 	{
 		if (ImgPlusViewsOld.hasAxis(image, Axes.TIME))
-			applyOnSlices(this::predict, image, prediction, image.dimensionIndex(Axes.TIME), prediction
-				.numDimensions() - 2);
+			applyOnSlices((slice, i, target) -> predictStack(slice, target, source,
+				append(sliceIndices, i)), image, prediction, image.dimensionIndex(Axes.TIME),
+				prediction.numDimensions() - 2);
 		else if (ImgPlusViewsOld.hasAxis(image, Axes.Z) && is2D())
-			applyOnSlices(this::predict, image, prediction, image.dimensionIndex(Axes.Z), prediction
-				.numDimensions() - 2);
+			applyOnSlices((slice, i, target) -> predictStack(slice, target, source,
+				append(sliceIndices, i)), image, prediction, image.dimensionIndex(Axes.Z),
+				prediction.numDimensions() - 2);
+		else if (useCachedFeatures())
+			withCachedFeatures(image, source, sliceIndices,
+				features -> predictFromFeatures(features, prediction));
 		else
 			segmenter.predict(prediction, Views.extendBorder(image));
 	}
 
+	@Override
+	public boolean isSegmentationArgMaxOfPrediction() {
+		return true;
+	}
+
 	private boolean is2D() {
 		return segmenter.features().settings().globals().numDimensions() == 2;
 	}
@@ -163,15 +217,17 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 			initFeatureSettings(trainingData);
 			List<String> classes = collectLabels(trainingData.stream().map(Pair::getB)
 				.collect(Collectors.toList()));
+			FastRandomForest classifier = new FastRandomForest();
 			sc.fiji.labkit.pixel_classification.classification.Segmenter segmenter =
 				new sc.fiji.labkit.pixel_classification.classification.Segmenter(context,
-					classes, featureSettings, new FastRandomForest());
+					classes, featureSettings, classifier);
 			segmenter.setUseGpu(useGpu);
 			Training training = segmenter.training();
 			for (Pair<ImgPlus<?>, Labeling> pair : trainingData)
 				trainPair(training, classes, pair, segmenter);
 			training.train();
 			this.segmenter = segmenter;
+			this.classifier = classifier;
 		}
 		catch (RuntimeException e) {
 			Throwable cause = e.getCause();
@@ -188,7 +244,8 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 		ImgPlus<?> image = pair.getA();
 		Labeling labeling = pair.getB();
 		checkMatchingSize(image, labeling);
-		trainStack(training, classes, labeling, image, segmenter.features());
+		trainStack(training, classes, labeling, image, segmenter.features(), image,
+			Collections.emptyList());
 	}
 
 	private void checkMatchingSize(ImgPlus<?> image, Labeling labeling) {
@@ -232,14 +289,20 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 			.collect(Collectors.toList());
 	}
 
+	/**
+	 * Trains on the given image and labeling. The source image and the slice
+	 * indices identify the image in the {@link FeatureCache}.
+	 */
 	private void trainStack(Training training, List<String> classes, Labeling labeling,
-		ImgPlus<?> image, FeatureCalculator featuresCalculator)
+		ImgPlus<?> image, FeatureCalculator featuresCalculator, ImgPlus<?> source,
+		List<Integer> sliceIndices)
 	{
 		if (ImgPlusViewsOld.hasAxis(image, Axes.TIME)) {
 			List<ImgPlus<?>> imageSlices = ImgPlusViewsOld.hyperSlices(image, Axes.TIME);
 			List<Labeling> labelSlices = Labelings.slices(labeling);
 			for (int i = 0; i < imageSlices.size(); i++) {
-				trainStack(training, classes, labelSlices.get(i), imageSlices.get(i), featuresCalculator);
+				trainStack(training, classes, labelSlices.get(i), imageSlices.get(i), featuresCalculator,
+					source, append(sliceIndices, i));
 			}
 		}
 		else if (ImgPlusViewsOld.hasAxis(image, Axes.Z) && featureSettings.globals()
@@ -248,34 +311,41 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 			List<ImgPlus<?>> imageSlices = ImgPlusViewsOld.hyperSlices(image, Axes.Z);
 			List<Labeling> labelSlices = Labelings.slices(labeling);
 			for (int i = 0; i < imageSlices.size(); i++) {
-				trainStack(training, classes, labelSlices.get(i), imageSlices.get(i), featuresCalculator);
+				trainStack(training, classes, labelSlices.get(i), imageSlices.get(i), featuresCalculator,
+					source, append(sliceIndices, i));
 			}
 		}
 		else {
-			trainFrame(training, classes, labeling, image, featuresCalculator);
+			trainFrame(training, classes, labeling, image, featuresCalculator, source, sliceIndices);
 		}
 	}
 
+	private static List<Integer> append(List<Integer> list, int value) {
+		List<Integer> result = new ArrayList<>(list);
+		result.add(value);
+		return result;
+	}
+
 	private void trainFrame(Training training, List<String> classes, Labeling labeling,
-		ImgPlus<?> image, FeatureCalculator featuresCalculator)
+		ImgPlus<?> image, FeatureCalculator featuresCalculator, ImgPlus<?> source,
+		List<Integer> sliceIndices)
 	{
 		SparseRandomAccessIntType classIndices = getClassIndices(labeling, classes);
 		if (classIndices.sparsityPattern().size() == 0)
 			return;
-		DiskCachedCellImg<FloatType, ?> cachedFeatureBlock = cachedFeatureBlock(featuresCalculator,
-			image);
-		try {
-			RandomAccessible<? extends Composite<FloatType>> features = Views.collapse(
-				cachedFeatureBlock);
-			addSamples(training, classIndices, features);
-		}
-		finally {
-			cachedFeatureBlock.shutdown();
-		}
+		featureCache.setMaxSizeInBytes(getFeatureCacheSizePreference() << 20);
+		featureCache.use(this, source, sliceIndices, featureSettings, useGpu,
+			computedBytes -> cachedFeatureBlock(featuresCalculator, image,
+				computedBytes),
+			cachedFeatureBlock -> addSamples(training, classIndices, cachedFeatureBlock));
 	}
 
+	/**
+	 * Creates a cached feature image. The size in bytes of every computed cell is
+	 * passed to the given consumer.
+	 */
 	private DiskCachedCellImg<FloatType, ?> cachedFeatureBlock(FeatureCalculator feature,
-		ImgPlus<?> image)
+		ImgPlus<?> image, LongConsumer computedBytes)
 	{
 		int count = feature.count();
 		if (count <= 0) throw new IllegalArgumentException();
@@ -288,21 +358,194 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 		final DiskCachedCellImgFactory<FloatType> featureFactory =
 			new DiskCachedCellImgFactory<>(new FloatType(), featureOpts);
 		RandomAccessible<?> input = Views.extendBorder(image);
-		CellLoader<FloatType> loader = target -> feature.apply(input, target);
+		CellLoader<FloatType> loader = target -> {
+			feature.apply(input, target);
+			computedBytes.accept(Intervals.numElements(target) * Float.BYTES);
+		};
 		return featureFactory.create(dimensions, loader);
 	}
 
+	/**
+	 * Adds the feature vectors of all labeled pixels as samples to the training.
+	 * The samples are grouped by the cell of the feature image they belong to.
+	 * The required cells are computed in parallel, and the samples are then
+	 * added cell by cell.
+	 */
 	private void addSamples(Training training,
 		SparseRandomAccessIntType classIndices,
-		RandomAccessible<? extends Composite<FloatType>> features)
+		DiskCachedCellImg<FloatType, ?> featureBlock)
+	{
+		List<SampleGroup> groups = groupSamplesByCell(classIndices, featureBlock
+			.getCellGrid());
+		RandomAccessible<? extends Composite<FloatType>> features = Views.collapse(
+			featureBlock);
+		// NB: Accessing one pixel of a cell, computes the entire cell.
+		Parallelization.getTaskExecutor().forEach(groups, group -> {
+			RandomAccess<? extends Composite<FloatType>> ra = features.randomAccess();
+			group.setPosition(0, ra);
+			ra.get().get(0).get();
+		});
+		RandomAccess<? extends Composite<FloatType>> ra = features.randomAccess();
+		for (SampleGroup group : groups) {
+			for (int i = 0; i < group.size(); i++) {
+				group.setPosition(i, ra);
+				training.add(ra.get(), group.classIndices.get(i));
+			}
+		}
+	}
+
+	private List<SampleGroup> groupSamplesByCell(
+		SparseRandomAccessIntType classIndices, CellGrid grid)
+	{
+		int n = classIndices.numDimensions();
+		long[] gridDimensions = grid.getGridDimensions();
+		long[] cellPosition = new long[grid.numDimensions()];
+		TLongObjectHashMap<SampleGroup> groups = new TLongObjectHashMap<>();
+		List<SampleGroup> orderedGroups = new ArrayList<>();
+		Cursor<IntType> cursor = classIndices.sparseCursor();
+		while (cursor.hasNext()) {
+			int classIndex = cursor.next().get();
+			for (int d = 0; d < n; d++)
+				cellPosition[d] = cursor.getLongPosition(d) / grid.cellDimension(d);
+			long cellIndex = IntervalIndexer.positionToIndex(cellPosition,
+				gridDimensions);
+			SampleGroup group = groups.get(cellIndex);
+			if (group == null) {
+				group = new SampleGroup(n);
+				groups.put(cellIndex, group);
+				orderedGroups.add(group);
+			}
+			group.add(cursor, classIndex);
+		}
+		return orderedGroups;
+	}
+
+	/**
+	 * The labeled pixels that lie in the same cell of the feature image.
+	 */
+	private static class SampleGroup {
+
+		private final int n;
+
+		private final TLongArrayList positions = new TLongArrayList();
+
+		private final TIntArrayList classIndices = new TIntArrayList();
+
+		private SampleGroup(int n) {
+			this.n = n;
+		}
+
+		private void add(Localizable position, int classIndex) {
+			for (int d = 0; d < n; d++)
+				positions.add(position.getLongPosition(d));
+			classIndices.add(classIndex);
+		}
+
+		private int size() {
+			return classIndices.size();
+		}
+
+		private void setPosition(int i, RandomAccess<?> ra) {
+			for (int d = 0; d < n; d++)
+				ra.setPosition(positions.get(i * n + d), d);
+		}
+	}
+
+	/**
+	 * Returns true if segment and predict should read the feature images from
+	 * the {@link FeatureCache}, rather than letting the pixel classification
+	 * segmenter calculate them again. This is the case if the classifier was
+	 * trained by this object, and the CPU is used. On the GPU, the pixel
+	 * classification segmenter calculates the features and applies the
+	 * classifier without copying them back to the main memory.
+	 */
+	private boolean useCachedFeatures() {
+		return classifier != null && !useGpu && getFeatureCacheSizePreference() > 0;
+	}
+
+	private void withCachedFeatures(ImgPlus<?> image, ImgPlus<?> source,
+		List<Integer> sliceIndices,
+		Consumer<DiskCachedCellImg<FloatType, ?>> action)
+	{
+		FeatureCalculator featuresCalculator = segmenter.features();
+		featureCache.setMaxSizeInBytes(getFeatureCacheSizePreference() << 20);
+		featureCache.use(this, source, sliceIndices, featuresCalculator.settings(),
+			useGpu, computedBytes -> cachedFeatureBlock(featuresCalculator, image,
+				computedBytes), action);
+	}
+
+	/**
+	 * Writes the index of the most likely class for every pixel of the output
+	 * into the output. The feature vectors are read from the given cached
+	 * feature image.
+	 */
+	private <T extends IntegerType<?>> void segmentFromFeatures(
+		DiskCachedCellImg<FloatType, ?> features, RandomAccessibleInterval<T> out)
 	{
-		Cursor<IntType> classIndicesCursor = classIndices.sparseCursor();
-		RandomAccess<? extends Composite<? extends RealType<?>>> ra = features
+		Instances header = instancesHeader();
+		RandomAccess<? extends Composite<FloatType>> in = Views.collapse(features)
 			.randomAccess();
-		while (classIndicesCursor.hasNext()) {
-			int classIndex = classIndicesCursor.next().get();
-			ra.setPosition(classIndicesCursor);
-			training.add(ra.get(), classIndex);
+		Cursor<T> cursor = Views.flatIterable(out).localizingCursor();
+		while (cursor.hasNext()) {
+			T pixel = cursor.next();
+			in.setPosition(cursor);
+			pixel.setInteger(Utils.maxIndex(distribution(header, in.get())));
+		}
+	}
+
+	/**
+	 * Writes the class probabilities for every pixel of the output into the
+	 * output. The last axis of the output is the class axis. The feature vectors
+	 * are read from the given cached feature image.
+	 */
+	private <T extends RealType<?>> void predictFromFeatures(
+		DiskCachedCellImg<FloatType, ?> features, RandomAccessibleInterval<T> out)
+	{
+		Instances header = instancesHeader();
+		RandomAccess<? extends Composite<FloatType>> in = Views.collapse(features)
+			.randomAccess();
+		Cursor<? extends Composite<T>> cursor = Views.flatIterable(Views.collapse(
+			out)).localizingCursor();
+		while (cursor.hasNext()) {
+			Composite<T> probabilities = cursor.next();
+			in.setPosition(cursor);
+			double[] distribution = distribution(header, in.get());
+			for (int i = 0; i < distribution.length; i++)
+				probabilities.get(i).setReal(distribution[i]);
+		}
+	}
+
+	/**
+	 * Returns the attributes used by the classifier: one numeric attribute per
+	 * feature, and the class attribute last.
+	 */
+	private Instances instancesHeader() {
+		ArrayList<Attribute> attributes = new ArrayList<>();
+		int count = segmenter.features().count();
+		for (int i = 0; i < count; i++)
+			attributes.add(new Attribute("feature" + i));
+		attributes.add(new Attribute("class", new ArrayList<>(segmenter
+			.classNames())));
+		Instances header = new Instances("segment", attributes, 0);
+		header.setClassIndex(attributes.size() - 1);
+		return header;
+	}
+
+	private double[] distribution(Instances header,
+		Composite<FloatType> featureVector)
+	{
+		int count = header.numAttributes() - 1;
+		double[] values = new double[count + 1];
+		for (int i = 0; i < count; i++)
+			values[i] = featureVector.get(i).getRealDouble();
+		values[count] = Utils.missingValue();
+		Instance instance = new DenseInstance(1.0, values);
+		instance.setDataset(header);
+		try {
+			return classifier.distributionForInstance(instance);
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
 		}
 	}
 
@@ -344,10 +587,20 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 	public void openModel(final String path) {
 		segmenter = sc.fiji.labkit.pixel_classification.classification.Segmenter
 			.fromJson(context, GsonUtils.read(path));
+		classifier = null;
 		segmenter.setUseGpu(useGpu);
+		removeCachedFeatures();
 		featureSettings = segmenter.features().settings();
 	}
 
+	/**
+	 * Returns the number of feature images, that are calculated for each input
+	 * image channel.
+	 */
+	public int numberOfFeatures() {
+		return segmenter.features().count();
+	}
+
 	@Override
 	public int[] suggestCellSize(ImgPlus<?> image) {
 		if (ImgPlusViewsOld.hasAxis(image, Axes.CHANNEL))
@@ -420,8 +673,8 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 		return image.firstElement() instanceof ARGBType ? ChannelSetting.RGB : ChannelSetting.SINGLE;
 	}
 
-	private <T> void applyOnSlices(BiConsumer<ImgPlus<?>, RandomAccessibleInterval<T>> action,
-		ImgPlus<?> image, RandomAccessibleInterval<T> target, int imageTimeAxis, int targetTimeAxis)
+	private <T> void applyOnSlices(SliceAction<T> action, ImgPlus<?> image,
+		RandomAccessibleInterval<T> target, int imageTimeAxis, int targetTimeAxis)
 	{
 		long min = target.min(targetTimeAxis);
 		long max = target.max(targetTimeAxis);
@@ -430,14 +683,41 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 		for (long pos = min; pos <= max; pos++) {
 			RandomAccessibleInterval<T> targetSlize = Views.hyperSlice(target, targetTimeAxis, pos);
 			ImgPlus<?> imageSlice = ImgPlusViews.hyperSlice(Cast.unchecked(image), imageTimeAxis, pos);
-			action.accept(imageSlice, targetSlize);
+			action.accept(imageSlice, (int) (pos - image.min(imageTimeAxis)), targetSlize);
 		}
 	}
 
+	private interface SliceAction<T> {
+
+		void accept(ImgPlus<?> imageSlice, int sliceIndex,
+			RandomAccessibleInterval<T> targetSlice);
+	}
+
 	public void setFeatureSettings(FeatureSettings featureSettings) {
+		removeCachedFeatures();
 		this.featureSettings = featureSettings;
 	}
 
+	/**
+	 * Removes the cached feature images, that were calculated for this segmenter
+	 * with the current feature settings. This is done when the settings change,
+	 * because the feature images are unlikely to be used again. Feature images
+	 * that are also used by other segmenters are kept.
+	 */
+	private void removeCachedFeatures() {
+		if (featureSettings != null)
+			featureCache.removeAll(this, featureSettings);
+	}
+
+	/**
+	 * Removes all feature images, that are kept to speed up repeated training,
+	 * and frees the memory and disk space they use. The feature images are
+	 * shared by all {@link TrainableSegmentationSegmenter}s.
+	 */
+	public static void clearFeatureCache() {
+		FeatureCache.getInstance().clear();
+	}
+
 	// -- Helper methods --
 
 	private boolean getUseGpuPreference() {
@@ -453,4 +733,22 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 		PrefService prefService = context.service(PrefService.class);
 		prefService.put(TrainableSegmentationSegmenter.class, "USE_GPU", useGpu);
 	}
+
+	private long getFeatureCacheSizePreference() {
+		PrefService prefService = context.service(PrefService.class);
+		return prefService.getLong(TrainableSegmentationSegmenter.class,
+			"FEATURE_CACHE_SIZE_MB", DEFAULT_FEATURE_CACHE_SIZE_MB);
+	}
+
+	/**
+	 * Sets the maximal total size (in megabytes) of the feature images, that are
+	 * kept between training runs. Zero disables the feature cache.
+	 */
+	public static void setFeatureCacheSizePreference(Context context,
+		long megabytes)
+	{
+		PrefService prefService = context.service(PrefService.class);
+		prefService.put(TrainableSegmentationSegmenter.class,
+			"FEATURE_CACHE_SIZE_MB", megabytes);
+	}
 }
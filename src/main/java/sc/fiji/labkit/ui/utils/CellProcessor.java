@@ -0,0 +1,155 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.utils;
+
+import bdv.export.ProgressWriter;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.parallel.Parallelization;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Applies an operation to a list of cells, using a fixed number of worker
+ * threads. The workers take the cells from a shared queue, biggest cells
+ * first, such that no worker idles while others still process large cells.
+ * <p>
+ * The first exception thrown by the operation, or a
+ * {@link CancellationException} thrown by the {@link ProgressWriter}, stops
+ * all workers and is rethrown by {@link #run}. Progress is reported at most
+ * every {@value ChunkProgress#INTERVAL_MILLIS} milliseconds.
+ * <p>
+ * Each worker processes one cell at a time. If there are at least as many
+ * cells as threads, the operation runs single threaded within a worker.
+ * Otherwise the remaining threads are split between the workers, and used by
+ * the {@link Parallelization} framework within the operation.
+ *
+ * @author Matthias Arzt
+ */
+class CellProcessor<T> {
+
+	private final RandomAccessibleInterval<T> image;
+
+	private final Consumer<RandomAccessibleInterval<T>> operation;
+
+	private final ProgressWriter progressWriter;
+
+	private final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+	private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+	private ChunkProgress progress;
+
+	CellProcessor(RandomAccessibleInterval<T> image,
+		Consumer<RandomAccessibleInterval<T>> operation,
+		ProgressWriter progressWriter)
+	{
+		this.image = image;
+		this.operation = operation;
+		this.progressWriter = progressWriter;
+	}
+
+	void run(List<Interval> cells, int numThreads) {
+		int numCells = cells.size();
+		progress = new ChunkProgress(progressWriter, numCells);
+		List<Interval> sorted = new ArrayList<>(cells);
+		sorted.sort(Comparator.comparingLong(Intervals::numElements).reversed());
+		Queue<Interval> queue = new ConcurrentLinkedQueue<>(sorted);
+		int numWorkers = Math.max(1, Math.min(numThreads, numCells));
+		ExecutorService executor = Executors.newFixedThreadPool(numWorkers);
+		try {
+			List<Future<?>> workers = new ArrayList<>();
+			for (int i = 0; i < numWorkers; i++) {
+				int threadsPerWorker = Math.max(1, numThreads / numWorkers + (i <
+					numThreads % numWorkers ? 1 : 0));
+				workers.add(executor.submit(() -> work(queue, threadsPerWorker)));
+			}
+			for (Future<?> worker : workers)
+				worker.get();
+		}
+		catch (InterruptedException e) {
+			cancelled.set(true);
+			Thread.currentThread().interrupt();
+			throw new CancellationException();
+		}
+		catch (ExecutionException e) {
+			failure.compareAndSet(null, e.getCause());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		rethrowFailure();
+		progressWriter.setProgress(1.0);
+	}
+
+	private void work(Queue<Interval> queue, int numThreads) {
+		Parallelization.runWithNumThreads(numThreads, () -> {
+			for (Interval cell = queue.poll(); cell != null && !cancelled.get(); cell =
+				queue.poll())
+			{
+				try {
+					if (Thread.currentThread().isInterrupted())
+						throw new CancellationException();
+					operation.accept(Views.interval(image, cell));
+					progress.chunkFinished();
+				}
+				catch (Throwable e) {
+					failure.compareAndSet(null, e);
+					cancelled.set(true);
+				}
+			}
+		});
+	}
+
+	private void rethrowFailure() {
+		Throwable e = failure.get();
+		if (e == null)
+			return;
+		if (e instanceof RuntimeException)
+			throw (RuntimeException) e;
+		if (e instanceof Error)
+			throw (Error) e;
+		throw new RuntimeException(e);
+	}
+}
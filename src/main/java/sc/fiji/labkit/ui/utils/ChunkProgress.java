@@ -0,0 +1,70 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.utils;
+
+import bdv.export.ProgressWriter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the processed chunks, and reports the progress to a
+ * {@link ProgressWriter}. Progress is reported at most every
+ * {@value #INTERVAL_MILLIS} milliseconds, such that processing many small
+ * chunks isn't slowed down by the output. Thread safe.
+ *
+ * @author Matthias Arzt
+ */
+class ChunkProgress {
+
+	static final long INTERVAL_MILLIS = 200;
+
+	private final ProgressWriter progressWriter;
+
+	private final long numChunks;
+
+	private final AtomicLong numFinished = new AtomicLong();
+
+	private final AtomicLong lastReport = new AtomicLong();
+
+	ChunkProgress(ProgressWriter progressWriter, long numChunks) {
+		this.progressWriter = progressWriter;
+		this.numChunks = numChunks;
+	}
+
+	void chunkFinished() {
+		long finished = numFinished.incrementAndGet();
+		long now = System.currentTimeMillis();
+		long last = lastReport.get();
+		if (now - last < INTERVAL_MILLIS || !lastReport.compareAndSet(last, now))
+			return;
+		progressWriter.out().println("Chunk " + finished + " of " + numChunks);
+		progressWriter.setProgress((double) finished / numChunks);
+	}
+}
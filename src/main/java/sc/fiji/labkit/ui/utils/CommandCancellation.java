@@ -0,0 +1,121 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.utils;
+
+import bdv.export.ProgressWriter;
+import org.scijava.Cancelable;
+
+import java.io.PrintStream;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Helps to implement {@link Cancelable} for a command.
+ * <p>
+ * The command executes its work with {@link #run(Runnable)}. A call to
+ * {@link #cancel(String)} interrupts the thread that executes the work, and
+ * every {@link ProgressWriter} returned by {@link #wrap(ProgressWriter)}
+ * throws a {@link CancellationException} when the progress is updated. This
+ * stops {@link ParallelUtils#applyOperationOnCells} and
+ * {@link ParallelUtils#populateCachedImg} from starting new cells.
+ *
+ * @author Matthias Arzt
+ */
+public class CommandCancellation {
+
+	private Thread thread = null;
+
+	private volatile String reason = null;
+
+	/**
+	 * Executes the action. Exceptions that are caused by cancellation are not
+	 * rethrown.
+	 */
+	public void run(Runnable action) {
+		synchronized (this) {
+			thread = Thread.currentThread();
+		}
+		try {
+			if (isCanceled())
+				return;
+			action.run();
+		}
+		catch (RuntimeException e) {
+			if (!isCanceled())
+				throw e;
+		}
+		finally {
+			synchronized (this) {
+				thread = null;
+				// NB: clear the interrupted flag, the thread might be reused.
+				Thread.interrupted();
+			}
+		}
+	}
+
+	public synchronized void cancel(String reason) {
+		this.reason = reason == null ? "Canceled" : reason;
+		if (thread != null)
+			thread.interrupt();
+	}
+
+	public boolean isCanceled() {
+		return reason != null;
+	}
+
+	public String getCancelReason() {
+		return reason;
+	}
+
+	/**
+	 * Returns a {@link ProgressWriter} that forwards to the given one, and
+	 * throws a {@link CancellationException} after {@link #cancel} was called.
+	 */
+	public ProgressWriter wrap(ProgressWriter progressWriter) {
+		return new ProgressWriter() {
+
+			@Override
+			public PrintStream out() {
+				return progressWriter.out();
+			}
+
+			@Override
+			public PrintStream err() {
+				return progressWriter.err();
+			}
+
+			@Override
+			public void setProgress(double completionRatio) {
+				if (isCanceled())
+					throw new CancellationException(reason);
+				progressWriter.setProgress(completionRatio);
+			}
+		};
+	}
+}
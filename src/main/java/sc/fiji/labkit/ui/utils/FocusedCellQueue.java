@@ -0,0 +1,148 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.utils;
+
+import net.imglib2.Interval;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.Intervals;
+
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * Hands out the indices of the cells of a {@link CellGrid}, each exactly once.
+ * Cells that intersect the focus interval come first, followed by the cells
+ * closest to it. Cells that lie in the direction, in which the focus was moved
+ * recently, are preferred. The remaining cells are kept in a binary heap, that
+ * is rebuilt in linear time whenever the focus changes.
+ *
+ * @author Matthias Arzt
+ */
+class FocusedCellQueue {
+
+	private final CellGrid grid;
+
+	private final Supplier<Interval> focus;
+
+	private final double[] priorities;
+
+	private final int[] heap;
+
+	private int size;
+
+	private Interval lastFocus;
+
+	private double[] direction;
+
+	FocusedCellQueue(CellGrid grid, Supplier<Interval> focus) {
+		this.grid = grid;
+		this.focus = focus;
+		int numCells = (int) Intervals.numElements(grid.getGridDimensions());
+		this.priorities = new double[numCells];
+		this.heap = IntStream.range(0, numCells).toArray();
+		this.size = numCells;
+	}
+
+	/**
+	 * Returns the index of the next cell, or -1 if all cells have been handed
+	 * out.
+	 */
+	synchronized int next() {
+		if (size == 0)
+			return -1;
+		updatePriorities();
+		int index = heap[0];
+		heap[0] = heap[--size];
+		siftDown(0);
+		return index;
+	}
+
+	private void updatePriorities() {
+		Interval current = focus.get();
+		if (current == null || (lastFocus != null && Intervals.equals(current,
+			lastFocus)))
+			return;
+		if (lastFocus != null && lastFocus.numDimensions() == current
+			.numDimensions())
+			direction = difference(center(lastFocus), center(current));
+		lastFocus = current;
+		for (int i = 0; i < size; i++)
+			priorities[heap[i]] = priority(heap[i], current);
+		for (int i = size / 2 - 1; i >= 0; i--)
+			siftDown(i);
+	}
+
+	private void siftDown(int position) {
+		int index = heap[position];
+		while (true) {
+			int child = 2 * position + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && priorities[heap[child + 1]] < priorities[heap[
+				child]])
+				child++;
+			if (priorities[heap[child]] >= priorities[index])
+				break;
+			heap[position] = heap[child];
+			position = child;
+		}
+		heap[position] = index;
+	}
+
+	private double priority(int index, Interval focus) {
+		int n = Math.min(grid.numDimensions(), focus.numDimensions());
+		long[] cellMin = new long[grid.numDimensions()];
+		int[] cellDims = new int[grid.numDimensions()];
+		grid.getCellDimensions(index, cellMin, cellDims);
+		double distance = 0;
+		double ahead = 0;
+		for (int d = 0; d < n; d++) {
+			long cellMax = cellMin[d] + cellDims[d] - 1;
+			long gap = Math.max(0, Math.max(focus.min(d) - cellMax, cellMin[d] -
+				focus.max(d)));
+			distance += (double) gap * gap;
+			if (direction != null)
+				ahead += direction[d] * ((cellMin[d] + cellMax) * 0.5 - (focus.min(
+					d) + focus.max(d)) * 0.5);
+		}
+		// cells ahead in the navigation direction count as half as far away
+		return ahead > 0 ? distance / 4 : distance;
+	}
+
+	private static double[] center(Interval interval) {
+		return IntStream.range(0, interval.numDimensions()).mapToDouble(
+			d -> (interval.min(d) + interval.max(d)) * 0.5).toArray();
+	}
+
+	private static double[] difference(double[] a, double[] b) {
+		return IntStream.range(0, a.length).mapToDouble(d -> b[d] - a[d])
+			.toArray();
+	}
+}
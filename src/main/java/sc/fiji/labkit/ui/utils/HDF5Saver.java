@@ -30,9 +30,9 @@
 package sc.fiji.labkit.ui.utils;
 
 import bdv.export.ExportMipmapInfo;
+import bdv.export.ExportScalePyramid.LoopbackHeuristic;
 import bdv.export.ProgressWriter;
 import bdv.export.ProposeMipmaps;
-import bdv.export.SubTaskProgressWriter;
 import bdv.export.WriteSequenceToHdf5;
 import bdv.img.hdf5.Hdf5ImageLoader;
 import bdv.img.hdf5.Partition;
@@ -62,13 +62,22 @@ import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
+import sc.fiji.labkit.ui.utils.progress.CombinedProgressWriter;
 import sc.fiji.labkit.ui.utils.progress.DummyProgressWriter;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -106,9 +115,16 @@ import java.util.stream.IntStream;
  * </pre>
  * <p>
  * And there is the option to write each partition individually. Which is useful
- * when you want to distribute the task between multiple processes. Please note
- * using multi threading want give you a speed up. As the underlying library for
- * HDF5 writing doesn't support multi threading.
+ * when you want to distribute the task between multiple processes.
+ * {@link #writeAllPartitions()} writes the partitions concurrently, see
+ * {@link #setNumThreads}. This pays off if the image is computed lazily, as
+ * the computation runs in parallel, even though the underlying HDF5 library
+ * writes one block at a time.
+ * </p>
+ * <p>
+ * Each partition is first written to a temporary file, which is renamed when
+ * the partition is complete. An interrupted export can therefore be resumed,
+ * see {@link #setResume}.
  * </p>
  * 
  * <pre>
@@ -133,6 +149,8 @@ public class HDF5Saver {
 	private final SpimDataMinimal data;
 	private ArrayList<Partition> partitions = null;
 	private Map<Integer, ExportMipmapInfo> mipmapInfo;
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	private boolean resume = false;
 
 	public HDF5Saver(RandomAccessibleInterval<?> image, String filename) {
 		final File file = new File(filename);
@@ -156,6 +174,22 @@ public class HDF5Saver {
 		this.progressWriter = progressWriter;
 	}
 
+	/**
+	 * Sets the number of threads used for writing. The threads are distributed
+	 * among the partitions that are written concurrently.
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	/**
+	 * If set to true, {@link #writeAllPartitions()} skips the partitions that
+	 * have been completely written by a previous, interrupted export.
+	 */
+	public void setResume(boolean resume) {
+		this.resume = resume;
+	}
+
 	public void writeAll() {
 		writeAllPartitions();
 		writeXmlAndHdf5();
@@ -242,7 +276,8 @@ public class HDF5Saver {
 		Map<Integer, ExportMipmapInfo> mipmapInfo = ProposeMipmaps.proposeMipmaps(
 			data.getSequenceDescription());
 		WriteSequenceToHdf5.writeHdf5File(data.getSequenceDescription(), mipmapInfo,
-			true, hdf5, null, null, 8, progressWriter);
+			true, hdf5, loopbackToPreviousLevel(), null, numThreads,
+			progressWriter);
 	}
 
 	private void writeHDF5Partitioned() {
@@ -254,13 +289,40 @@ public class HDF5Saver {
 
 	public void writeAllPartitions() {
 		if (partitions == null) return;
-		int size = numberOfPartitions();
-		for (int i = 0; i < size; ++i) {
-			double start = 0.95 * i / size;
-			double end = 0.95 * (i + 1) / size;
-			final ProgressWriter p = new SubTaskProgressWriter(progressWriter, start,
-				end);
-			writePartition(i, p);
+		List<Integer> indices = IntStream.range(0, numberOfPartitions()).filter(
+			i -> !(resume && isPartitionComplete(i))).boxed().collect(Collectors
+				.toList());
+		if (indices.isEmpty()) return;
+		int concurrentPartitions = Math.min(numThreads, indices.size());
+		int threadsPerPartition = Math.max(1, numThreads / concurrentPartitions);
+		// NB: The last 5% are left for writing the XML and table of content.
+		CombinedProgressWriter combined = new CombinedProgressWriter(
+			progressWriter, indices.size(), 0.95);
+		ExecutorService executor = Executors.newFixedThreadPool(
+			concurrentPartitions);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int k = 0; k < indices.size(); k++) {
+				int index = indices.get(k);
+				ProgressWriter p = combined.subTask(k);
+				futures.add(executor.submit(() -> writePartition(index,
+					threadsPerPartition, p)));
+			}
+			for (Future<?> future : futures)
+				future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+		finally {
+			executor.shutdownNow();
 		}
 	}
 
@@ -268,13 +330,48 @@ public class HDF5Saver {
 		return partitions == null ? 0 : partitions.size();
 	}
 
+	/**
+	 * Returns true if the partition with the given index has been completely
+	 * written.
+	 */
+	public boolean isPartitionComplete(int index) {
+		return new File(partitions.get(index).getPath()).isFile();
+	}
+
 	public void writePartition(int index) {
-		writePartition(index, progressWriter);
+		writePartition(index, numThreads, progressWriter);
 	}
 
-	private void writePartition(int index, ProgressWriter progressWriter) {
+	private void writePartition(int index, int threads,
+		ProgressWriter progressWriter)
+	{
+		Partition partition = partitions.get(index);
+		File file = new File(partition.getPath());
+		File tmp = new File(file.getParentFile(), "~" + file.getName());
+		Partition tmpPartition = new Partition(tmp.getAbsolutePath(), partition
+			.getTimepointIdSequenceToPartition(), partition
+				.getSetupIdSequenceToPartition());
 		WriteSequenceToHdf5.writeHdf5PartitionFile(data.getSequenceDescription(),
-			mipmapInfo, true, partitions.get(index), null, null, 8, progressWriter);
+			mipmapInfo, true, tmpPartition, loopbackToPreviousLevel(), null,
+			threads, progressWriter);
+		try {
+			Files.move(tmp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Each resolution level is computed from the blocks of the previous level,
+	 * that have already been written to the HDF5 file, rather than from the
+	 * image itself. This avoids evaluating a lazily computed image more than
+	 * once.
+	 */
+	private static LoopbackHeuristic loopbackToPreviousLevel() {
+		return (originalImg, factorsToOriginalImg, previousLevel,
+			factorsToPreviousLevel, chunkSize) -> previousLevel >= 0;
 	}
 
 	private static String removeExtension(String filename, String... extensions) {
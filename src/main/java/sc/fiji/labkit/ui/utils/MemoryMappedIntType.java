@@ -0,0 +1,516 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.utils;
+
+import gnu.trove.list.array.TIntArrayList;
+import net.imglib2.AbstractWrappedInterval;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.basictypeaccess.IntAccess;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * An {@link IntType} image, that stores its pixels off-heap in a memory-mapped
+ * file. It's meant to be used as index image for labelings, that are too
+ * large to be held on the Java heap.
+ * <p>
+ * The file starts with a small header (magic number, version and interval),
+ * followed by the pixel values as little endian integers in flat iteration
+ * order. The content of the file is kept, such that the image can be opened
+ * again with {@link #open(File)}. A newly created file is filled with zeros.
+ * {@link #openCopyOnWrite(File)} maps a file privately, changes to the pixels
+ * are then kept in memory and never written back to the file.
+ * <p>
+ * {@link #writeTo(File)} writes a snapshot of the pixels to another file. The
+ * first snapshot contains all pixels, it becomes the base of the image. Later
+ * snapshots only contain the blocks of pixels, that were modified since, and
+ * refer to the base. Such a delta snapshot can only be opened with
+ * {@link #openCopyOnWrite(File)}, which maps the base and copies the modified
+ * blocks into memory. Snapshots are never modified, they can be opened while
+ * the image is still in use.
+ * <p>
+ * As a {@link MappedByteBuffer} is limited to 2 GB, the file is mapped in
+ * chunks of 1 GB. Threads may write to different pixels concurrently.
+ * {@link #close()} releases the file, the image must not be used afterwards.
+ *
+ * @author Matthias Arzt
+ */
+public class MemoryMappedIntType extends AbstractWrappedInterval<Interval>
+	implements RandomAccessibleInterval<IntType>, Closeable
+{
+
+	private static final int MAGIC = 0x4c4b4958; // "LKIX"
+
+	private static final int DELTA_MAGIC = 0x4c4b4944; // "LKID"
+
+	private static final int VERSION = 1;
+
+	private static final int CHUNK_SHIFT = 28;
+
+	private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+	/**
+	 * Modified pixels are tracked in blocks of 64k pixels.
+	 */
+	private static final int BLOCK_SHIFT = 16;
+
+	private static final IntBuffer CLOSED = IntBuffer.allocate(0);
+
+	private final File file;
+
+	private final RandomAccessFile randomAccessFile;
+
+	private final MappedByteBuffer[] mappedChunks;
+
+	private final IntBuffer[] chunks;
+
+	private final long[] min;
+
+	private final long[] stepSize;
+
+	private final long size;
+
+	/**
+	 * Blocks of pixels, that might differ from the base snapshot.
+	 */
+	private final AtomicIntegerArray dirtyBlocks;
+
+	/**
+	 * Snapshot that contains all pixels of the image, except for the dirty
+	 * blocks. Null, if there is no such snapshot.
+	 */
+	private File base;
+
+	private boolean closed = false;
+
+	private MemoryMappedIntType(File file, RandomAccessFile randomAccessFile,
+		Interval interval, long headerSize, FileChannel.MapMode mode)
+		throws IOException
+	{
+		super(new FinalInterval(interval));
+		this.file = file;
+		this.randomAccessFile = randomAccessFile;
+		this.min = Intervals.minAsLongArray(interval);
+		this.stepSize = new long[n];
+		long size = 1;
+		for (int d = 0; d < n; d++) {
+			stepSize[d] = size;
+			size *= interval.dimension(d);
+		}
+		this.size = size;
+		this.dirtyBlocks = new AtomicIntegerArray((int) ((size +
+			(1L << BLOCK_SHIFT) - 1) >>> BLOCK_SHIFT));
+		int numChunks = (int) ((size + CHUNK_MASK) >>> CHUNK_SHIFT);
+		this.mappedChunks = new MappedByteBuffer[numChunks];
+		this.chunks = new IntBuffer[numChunks];
+		FileChannel channel = randomAccessFile.getChannel();
+		for (int i = 0; i < numChunks; i++) {
+			long offset = (long) i << CHUNK_SHIFT;
+			long length = Math.min(size - offset, 1L << CHUNK_SHIFT);
+			mappedChunks[i] = channel.map(mode,
+				headerSize + offset * Integer.BYTES, length * Integer.BYTES);
+			chunks[i] = mappedChunks[i].order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+		}
+	}
+
+	/**
+	 * Creates a new file, or overwrites an existing one, and maps it as an image
+	 * of the given interval. All pixels are zero.
+	 */
+	public static MemoryMappedIntType create(File file, Interval interval)
+		throws IOException
+	{
+		ByteBuffer header = header(interval);
+		long size = Intervals.numElements(interval);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			// NB: On most file systems, setLength creates a sparse file. The
+			// space for the pixels is only allocated once they are written.
+			raf.setLength(header.capacity() + size * Integer.BYTES);
+			raf.getChannel().write(header, 0);
+			return new MemoryMappedIntType(file, raf, interval, header.capacity(),
+				FileChannel.MapMode.READ_WRITE);
+		}
+		catch (IOException | RuntimeException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Maps an existing file, that was created by {@link #create(File, Interval)}.
+	 * The pixel values are not copied into memory.
+	 */
+	public static MemoryMappedIntType open(File file) throws IOException {
+		return open(file, FileChannel.MapMode.READ_WRITE);
+	}
+
+	/**
+	 * Maps an existing file, that was created by {@link #create(File, Interval)}
+	 * or {@link #writeTo(File)}, as private copy-on-write mapping. Changes to the
+	 * pixels are not written to the file, only the modified pages occupy memory.
+	 */
+	public static MemoryMappedIntType openCopyOnWrite(File file)
+		throws IOException
+	{
+		return open(file, FileChannel.MapMode.PRIVATE);
+	}
+
+	private static MemoryMappedIntType open(File file, FileChannel.MapMode mode)
+		throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			int magic = raf.readInt();
+			if (magic == DELTA_MAGIC && mode == FileChannel.MapMode.PRIVATE)
+				try {
+					return openDelta(file, raf);
+				}
+				finally {
+					raf.close();
+				}
+			if (magic != MAGIC)
+				throw new IOException("Not a memory mapped index image: " + file);
+			Interval interval = readHeader(raf);
+			long headerSize = header(interval).capacity();
+			if (raf.length() < headerSize + Intervals.numElements(interval) *
+				Integer.BYTES)
+				throw new IOException("Index image file is truncated: " + file);
+			MemoryMappedIntType image = new MemoryMappedIntType(file, raf, interval,
+				headerSize, mode);
+			if (mode == FileChannel.MapMode.PRIVATE)
+				image.base = file.getAbsoluteFile();
+			return image;
+		}
+		catch (IOException | RuntimeException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the version and interval, that follow the magic number.
+	 */
+	private static Interval readHeader(RandomAccessFile raf) throws IOException {
+		int version = raf.readInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported version of index image: " + version);
+		int n = raf.readInt();
+		long[] min = new long[n];
+		long[] max = new long[n];
+		for (int d = 0; d < n; d++) {
+			min[d] = raf.readLong();
+			max[d] = raf.readLong();
+		}
+		return new FinalInterval(min, max);
+	}
+
+	/**
+	 * Maps the base of the delta snapshot, and copies the modified blocks into
+	 * the private mapping.
+	 */
+	private static MemoryMappedIntType openDelta(File file, RandomAccessFile raf)
+		throws IOException
+	{
+		Interval interval = readHeader(raf);
+		File baseFile = new File(file.getAbsoluteFile().getParentFile(), raf
+			.readUTF());
+		MemoryMappedIntType image = openCopyOnWrite(baseFile);
+		try {
+			if (!baseFile.getAbsoluteFile().equals(image.base) || !Intervals.equals(
+				image, interval))
+				throw new IOException("The base of the index image " + file +
+					" is invalid: " + baseFile);
+			int numBlocks = raf.readInt();
+			FileChannel channel = raf.getChannel();
+			for (int i = 0; i < numBlocks; i++) {
+				long block = raf.readLong();
+				if (block < 0 || block >= image.dirtyBlocks.length())
+					throw new IOException("Invalid block in index image: " + file);
+				// NB: The channel shares its position with the random access file.
+				ByteBuffer buffer = image.blockBytes((int) block);
+				while (buffer.hasRemaining())
+					if (channel.read(buffer) < 0)
+						throw new EOFException("Index image file is truncated: " + file);
+				image.dirtyBlocks.set((int) block, 1);
+			}
+			return image;
+		}
+		catch (IOException | RuntimeException e) {
+			image.close();
+			throw e;
+		}
+	}
+
+	private static ByteBuffer header(Interval interval) {
+		int n = interval.numDimensions();
+		ByteBuffer header = ByteBuffer.allocate(3 * Integer.BYTES + 2 * n *
+			Long.BYTES);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(n);
+		for (int d = 0; d < n; d++) {
+			header.putLong(interval.min(d));
+			header.putLong(interval.max(d));
+		}
+		header.flip();
+		return header;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Writes all modified pixels to the file.
+	 */
+	public synchronized void flush() {
+		if (closed)
+			return;
+		for (MappedByteBuffer chunk : mappedChunks)
+			chunk.force();
+	}
+
+	/**
+	 * Writes a snapshot of the current pixel values to the given file, that
+	 * isn't changed by later modifications of the image. The snapshot only
+	 * contains the modified blocks of pixels and refers to the base of the
+	 * image, if the base is located in the same directory. Otherwise all pixels
+	 * are written, and the written file becomes the new base. The target must
+	 * not be a file, that is mapped by an image.
+	 */
+	public synchronized void writeTo(File target) throws IOException {
+		if (closed)
+			throw new IllegalStateException("Image is closed: " + file);
+		target = target.getAbsoluteFile();
+		try {
+			if (base != null && base.exists() && !base.equals(target) && base
+				.getParentFile().equals(target.getParentFile()))
+				writeDelta(target);
+			else {
+				writeFull(target);
+				base = target;
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(target.toPath());
+			throw e;
+		}
+	}
+
+	private void writeFull(File target) throws IOException {
+		// NB: The blocks are marked clean, before they are copied. Pixels that
+		// are modified concurrently, are marked dirty again.
+		for (int i = 0; i < dirtyBlocks.length(); i++)
+			dirtyBlocks.set(i, 0);
+		try (FileChannel channel = FileChannel.open(target.toPath(),
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			writeFully(channel, header(this));
+			for (MappedByteBuffer chunk : mappedChunks)
+				writeFully(channel, chunk.duplicate());
+		}
+	}
+
+	private void writeDelta(File target) throws IOException {
+		TIntArrayList blocks = new TIntArrayList();
+		for (int i = 0; i < dirtyBlocks.length(); i++)
+			if (dirtyBlocks.get(i) != 0)
+				blocks.add(i);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(bytes);
+		header.writeInt(DELTA_MAGIC);
+		header.writeInt(VERSION);
+		header.writeInt(n);
+		for (int d = 0; d < n; d++) {
+			header.writeLong(min(d));
+			header.writeLong(max(d));
+		}
+		header.writeUTF(base.getName());
+		header.writeInt(blocks.size());
+		header.flush();
+		try (FileChannel channel = FileChannel.open(target.toPath(),
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			writeFully(channel, ByteBuffer.wrap(bytes.toByteArray()));
+			ByteBuffer blockIndex = ByteBuffer.allocate(Long.BYTES);
+			for (int i = 0; i < blocks.size(); i++) {
+				blockIndex.clear();
+				blockIndex.putLong(blocks.get(i)).flip();
+				writeFully(channel, blockIndex);
+				writeFully(channel, blockBytes(blocks.get(i)));
+			}
+		}
+	}
+
+	/**
+	 * Returns the files, that the snapshot written by {@link #writeTo(File)}
+	 * consists of: the snapshot itself, and its base if it is a delta snapshot.
+	 */
+	public static List<File> snapshotFiles(File snapshot) throws IOException {
+		snapshot = snapshot.getAbsoluteFile();
+		try (RandomAccessFile raf = new RandomAccessFile(snapshot, "r")) {
+			if (raf.readInt() != DELTA_MAGIC)
+				return Collections.singletonList(snapshot);
+			readHeader(raf);
+			return Arrays.asList(snapshot, new File(snapshot.getParentFile(), raf
+				.readUTF()));
+		}
+	}
+
+	/**
+	 * Returns the bytes of the given block of pixels, in the mapped buffers.
+	 */
+	private ByteBuffer blockBytes(int block) {
+		long offset = (long) block << BLOCK_SHIFT;
+		int start = (int) (offset & CHUNK_MASK) * Integer.BYTES;
+		int length = (int) Math.min(1L << BLOCK_SHIFT, size - offset) *
+			Integer.BYTES;
+		ByteBuffer buffer = mappedChunks[(int) (offset >>> CHUNK_SHIFT)]
+			.duplicate();
+		buffer.position(start);
+		buffer.limit(start + length);
+		return buffer;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer)
+		throws IOException
+	{
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	/**
+	 * Writes all modified pixels to the file and closes it. Accessing the pixels
+	 * afterwards causes an exception. The memory mapping is released, once the
+	 * buffers are garbage collected.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		flush();
+		closed = true;
+		// NB: The mapping is not released explicitly. Other threads might still
+		// hold a mapped buffer, accessing it after unmapping would crash the JVM.
+		// Replacing the buffers causes later accesses to fail with an exception.
+		Arrays.fill(chunks, CLOSED);
+		Arrays.fill(mappedChunks, null);
+		randomAccessFile.close();
+	}
+
+	@Override
+	public RandomAccess<IntType> randomAccess() {
+		return new MappedRandomAccess();
+	}
+
+	@Override
+	public RandomAccess<IntType> randomAccess(Interval interval) {
+		return randomAccess();
+	}
+
+	private long index(long[] position) {
+		long index = 0;
+		for (int d = 0; d < n; d++)
+			index += (position[d] - min[d]) * stepSize[d];
+		return index;
+	}
+
+	private class MappedRandomAccess extends Point implements
+		RandomAccess<IntType>
+	{
+
+		private final IntType value = new IntType(new IntAccess() {
+
+			@Override
+			public int getValue(int ignored) {
+				long index = index(position);
+				return chunks[(int) (index >>> CHUNK_SHIFT)].get((int) (index &
+					CHUNK_MASK));
+			}
+
+			@Override
+			public void setValue(int ignored, int value) {
+				long index = index(position);
+				chunks[(int) (index >>> CHUNK_SHIFT)].put((int) (index & CHUNK_MASK),
+					value);
+				// NB: The block is marked after the pixel is written, see writeFull.
+				int block = (int) (index >>> BLOCK_SHIFT);
+				if (dirtyBlocks.get(block) == 0)
+					dirtyBlocks.set(block, 1);
+			}
+		});
+
+		private MappedRandomAccess() {
+			super(MemoryMappedIntType.this.numDimensions());
+		}
+
+		private MappedRandomAccess(Localizable localizable) {
+			super(localizable);
+		}
+
+		@Override
+		public RandomAccess<IntType> copy() {
+			return new MappedRandomAccess(this);
+		}
+
+		@Override
+		public IntType get() {
+			return value;
+		}
+	}
+}
@@ -0,0 +1,223 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.utils;
+
+import bdv.export.ProgressWriter;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes an image block by block into a directory, using the N5 format with
+ * gzip compression. The directory can be opened with any N5 reader, for
+ * example with BigDataViewer or Fiji's N5 plugins.
+ * <p>
+ * Blocks are written independently, which allows to write them from multiple
+ * threads, and to write each block as soon as it's computed.
+ *
+ * @author Matthias Arzt
+ */
+public class N5DatasetWriter<T extends RealType<T> & NativeType<T>> {
+
+	private static final String N5_VERSION = "2.5.1";
+
+	private final File directory;
+
+	private final long[] dimensions;
+
+	private final int[] blockSize;
+
+	private final T type;
+
+	public N5DatasetWriter(File directory, long[] dimensions, int[] blockSize,
+		T type) throws IOException
+	{
+		this.directory = directory;
+		this.dimensions = dimensions.clone();
+		this.blockSize = blockSize.clone();
+		this.type = type;
+		dataType(type);
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create directory: " + directory);
+		writeAttributes();
+	}
+
+	/**
+	 * Writes the given image into the directory, using the native pixel type
+	 * of the image. Blocks are computed and written in parallel.
+	 */
+	public static <T extends RealType<T> & NativeType<T>> void writeImage(
+		RandomAccessibleInterval<T> image, File directory, int[] blockSize,
+		ProgressWriter progressWriter) throws IOException
+	{
+		RandomAccessibleInterval<T> zeroMin = Views.zeroMin(image);
+		N5DatasetWriter<T> writer = new N5DatasetWriter<>(directory, Intervals
+			.dimensionsAsLongArray(image), blockSize, Util.getTypeFromInterval(
+				image));
+		try {
+			ParallelUtils.applyOperationOnCells(zeroMin, blockSize, block -> {
+				try {
+					writer.writeBlock(block);
+				}
+				catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}, progressWriter);
+		}
+		catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Writes a block. The interval of the given image must be aligned with the
+	 * block grid. Only blocks at the border of the image may be smaller than
+	 * the block size.
+	 */
+	public void writeBlock(RandomAccessibleInterval<T> block) throws IOException {
+		int n = dimensions.length;
+		File file = directory;
+		for (int d = 0; d < n; d++) {
+			if (block.min(d) % blockSize[d] != 0)
+				throw new IllegalArgumentException(
+					"Block is not aligned to the grid.");
+			file = new File(file, Long.toString(block.min(d) / blockSize[d]));
+		}
+		File parent = file.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs())
+			throw new IOException("Could not create directory: " + parent);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+			new FileOutputStream(file))))
+		{
+			out.writeShort(0); // mode: default
+			out.writeShort(n);
+			for (int d = 0; d < n; d++)
+				out.writeInt((int) block.dimension(d));
+			GZIPOutputStream gzip = new GZIPOutputStream(out);
+			gzip.write(toBytes(block));
+			gzip.finish();
+		}
+	}
+
+	/**
+	 * Copies the block into a primitive array, and returns the pixels as big
+	 * endian bytes, in x-fastest order, as required by N5.
+	 */
+	private byte[] toBytes(RandomAccessibleInterval<T> block) {
+		ArrayImg<T, ?> copy = new ArrayImgFactory<>(type).create(Intervals
+			.dimensionsAsLongArray(block));
+		LoopBuilder.setImages(Views.zeroMin(block), copy).forEachPixel((i, o) -> o
+			.set(i));
+		Object array = ((ArrayDataAccess<?>) copy.update(null))
+			.getCurrentStorageArray();
+		if (array instanceof byte[]) return (byte[]) array;
+		if (array instanceof short[]) {
+			short[] values = (short[]) array;
+			ByteBuffer buffer = ByteBuffer.allocate(values.length * Short.BYTES);
+			buffer.asShortBuffer().put(values);
+			return buffer.array();
+		}
+		if (array instanceof int[]) {
+			int[] values = (int[]) array;
+			ByteBuffer buffer = ByteBuffer.allocate(values.length * Integer.BYTES);
+			buffer.asIntBuffer().put(values);
+			return buffer.array();
+		}
+		float[] values = (float[]) array;
+		ByteBuffer buffer = ByteBuffer.allocate(values.length * Float.BYTES);
+		buffer.asFloatBuffer().put(values);
+		return buffer.array();
+	}
+
+	private void writeAttributes() throws IOException {
+		JsonObject attributes = new JsonObject();
+		attributes.addProperty("n5", N5_VERSION);
+		attributes.add("dimensions", toJsonArray(dimensions));
+		JsonArray blockSizeArray = new JsonArray();
+		for (int size : blockSize)
+			blockSizeArray.add(size);
+		attributes.add("blockSize", blockSizeArray);
+		attributes.addProperty("dataType", dataType(type));
+		JsonObject compression = new JsonObject();
+		compression.addProperty("type", "gzip");
+		compression.addProperty("level", -1);
+		attributes.add("compression", compression);
+		try (Writer writer = new OutputStreamWriter(new FileOutputStream(new File(
+			directory, "attributes.json")), StandardCharsets.UTF_8))
+		{
+			writer.write(attributes.toString());
+		}
+	}
+
+	private static JsonArray toJsonArray(long[] values) {
+		JsonArray array = new JsonArray();
+		for (long value : values)
+			array.add(value);
+		return array;
+	}
+
+	private static String dataType(Object type) {
+		if (type instanceof UnsignedByteType) return "uint8";
+		if (type instanceof UnsignedShortType) return "uint16";
+		if (type instanceof IntType) return "int32";
+		if (type instanceof FloatType) return "float32";
+		throw new IllegalArgumentException("Unsupported pixel type: " + type
+			.getClass().getSimpleName());
+	}
+}
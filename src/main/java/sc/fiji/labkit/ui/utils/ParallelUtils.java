@@ -34,26 +34,23 @@ import bdv.export.ProgressWriter;
 import java.util.AbstractList;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.cache.img.CachedCellImg;
-import net.imglib2.img.Img;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.parallel.Parallelization;
 import net.imglib2.parallel.TaskExecutor;
 import net.imglib2.util.Cast;
+import net.imglib2.util.IntervalIndexer;
 import net.imglib2.util.Intervals;
-import net.imglib2.view.Views;
 
 import java.util.List;
-import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -64,33 +61,33 @@ public class ParallelUtils {
 
 	/**
 	 * Divides the given image into cells of size cellDimensions and executes the
-	 * given the given operation on each chunk. Imglib2 {@link Parallelization} is
-	 * used to parallelize this process. The {@link ProgressWriter} can be used to
-	 * visualize the progress or cancel the operation.
+	 * given the given operation on each chunk. The cells are processed in
+	 * parallel, using as many threads as there are processors. The
+	 * {@link ProgressWriter} can be used to visualize the progress or cancel the
+	 * operation.
 	 */
 	public static <T> void applyOperationOnCells(RandomAccessibleInterval<T> image,
 		int[] cellDimensions,
 		Consumer<RandomAccessibleInterval<T>> operation, ProgressWriter progressWriter)
+	{
+		applyOperationOnCells(image, cellDimensions, operation, progressWriter,
+			Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Same as {@link #applyOperationOnCells(RandomAccessibleInterval, int[],
+	 * Consumer, ProgressWriter)}, but uses the given number of threads,
+	 * independent of the current {@link Parallelization} settings. The
+	 * operation itself is executed single threaded.
+	 */
+	public static <T> void applyOperationOnCells(RandomAccessibleInterval<T> image,
+		int[] cellDimensions,
+		Consumer<RandomAccessibleInterval<T>> operation, ProgressWriter progressWriter,
+		int numThreads)
 	{
 		List<Interval> cells = getCells(new CellGrid(Intervals.dimensionsAsLongArray(image),
 			cellDimensions));
-		AtomicInteger numStarted = new AtomicInteger(0);
-		AtomicInteger numFinished = new AtomicInteger(0);
-		int n = cells.size();
-		Parallelization.getTaskExecutor().forEach(cells, cell -> {
-			AtomicBoolean cancelled = new AtomicBoolean(false);
-			if (cancelled.get()) throw new CancellationException();
-			try {
-				progressWriter.out().println("Chunk " + numStarted.incrementAndGet() + " of " + n);
-				operation.accept(Views.interval(image, cell));
-				progressWriter.setProgress((double) numFinished.incrementAndGet() / n);
-			}
-			catch (CancellationException e) {
-				cancelled.set(true);
-				throw e;
-			}
-		});
-		progressWriter.setProgress(1.0);
+		new CellProcessor<>(image, operation, progressWriter).run(cells, numThreads);
 	}
 
 	private static List<Interval> getCells(CellGrid cellGrid) {
@@ -124,53 +121,86 @@ public class ParallelUtils {
 
 	public static void populateCachedImg(
 		RandomAccessibleInterval<?> img, ProgressWriter progressWriter)
+	{
+		populateCachedImg(img, progressWriter, () -> null);
+	}
+
+	/**
+	 * Computes all cells of the given {@link CachedCellImg}, using the given
+	 * number of threads.
+	 */
+	public static void populateCachedImg(
+		RandomAccessibleInterval<?> img, ProgressWriter progressWriter,
+		int numThreads)
+	{
+		populateCachedImg(img, progressWriter, () -> null, numThreads);
+	}
+
+	/**
+	 * Computes all cells of the given {@link CachedCellImg}. Cells that
+	 * intersect or are close to the interval returned by focus are computed
+	 * first. The focus is queried again before each cell, which allows to
+	 * follow the region currently shown in BigDataViewer. The worker threads run
+	 * with minimal thread priority, such that cells requested by the viewer are
+	 * preferred.
+	 */
+	public static void populateCachedImg(
+		RandomAccessibleInterval<?> img, ProgressWriter progressWriter,
+		Supplier<Interval> focus)
+	{
+		populateCachedImg(img, progressWriter, focus, Runtime.getRuntime()
+			.availableProcessors());
+	}
+
+	private static void populateCachedImg(
+		RandomAccessibleInterval<?> img, ProgressWriter progressWriter,
+		Supplier<Interval> focus, int numThreads)
 	{
 		if (img instanceof CachedCellImg) {
-			Parallelization.runWithNumThreads(Runtime.getRuntime().availableProcessors(), () -> {
-				internPopulateCachedImg(Cast.unchecked(img), progressWriter);
+			Parallelization.runWithNumThreads(numThreads, () -> {
+				internPopulateCachedImg(Cast.unchecked(img), progressWriter, focus);
 			});
 		}
 	}
 
 	private static void internPopulateCachedImg(
-		CachedCellImg<?, ?> img, ProgressWriter progressWriter)
+		CachedCellImg<?, ?> img, ProgressWriter progressWriter,
+		Supplier<Interval> focus)
 	{
-		final Img<?> cells = img.getCells();
-		final long numCells = cells.size();
-		final AtomicLong chunk = new AtomicLong();
-		forEachPixel(cells, cell -> {
-			final long c = chunk.incrementAndGet();
-			progressWriter.out().println("Chunk " + c + " of " + numCells);
-			progressWriter.setProgress((double) c / numCells);
-		});
-		progressWriter.setProgress(1.0);
-	}
-
-	private static <T> void forEachPixel(Img<T> img, Consumer<T> action) {
+		final CellGrid grid = img.getCellGrid();
+		final long[] gridDimensions = grid.getGridDimensions();
+		final FocusedCellQueue queue = new FocusedCellQueue(grid, focus);
+		final long numCells = Intervals.numElements(gridDimensions);
+		final ChunkProgress progress = new ChunkProgress(progressWriter, numCells);
+		final AtomicBoolean cancelled = new AtomicBoolean(false);
 		final TaskExecutor te = Parallelization.getTaskExecutor();
 		final int numThreads = te.getParallelism();
-		final long size = img.size();
-		final AtomicLong nextIndex = new AtomicLong();
-		final AtomicBoolean cancelled = new AtomicBoolean(false);
 		te.forEach(IntStream.range(0, numThreads).boxed().collect(Collectors.toList()), workerIndex -> {
-			final Cursor<T> cursor = img.cursor();
-			long iCursor = -1;
-			for (long i = nextIndex.getAndIncrement(); i < size && !cancelled.get(); i = nextIndex
-				.getAndIncrement())
-			{
-				if (Thread.interrupted()) {
-					cancelled.set(true);
-				}
-				try {
-					cursor.jumpFwd(i - iCursor);
-					action.accept(cursor.get());
-					iCursor = i;
-				}
-				catch (Exception e) {
-					cancelled.set(true);
-					throw e;
+			final Thread thread = Thread.currentThread();
+			final int priority = thread.getPriority();
+			thread.setPriority(Thread.MIN_PRIORITY);
+			try {
+				final RandomAccess<?> cells = img.getCells().randomAccess();
+				final long[] position = new long[gridDimensions.length];
+				for (int i = queue.next(); i >= 0 && !cancelled.get(); i = queue.next()) {
+					if (Thread.interrupted()) {
+						cancelled.set(true);
+						break;
+					}
+					IntervalIndexer.indexToPosition(i, gridDimensions, position);
+					cells.setPosition(position);
+					cells.get();
+					progress.chunkFinished();
 				}
 			}
+			catch (RuntimeException e) {
+				cancelled.set(true);
+				throw e;
+			}
+			finally {
+				thread.setPriority(priority);
+			}
 		});
+		progressWriter.setProgress(1.0);
 	}
 }
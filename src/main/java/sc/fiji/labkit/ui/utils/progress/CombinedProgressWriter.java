@@ -0,0 +1,99 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.utils.progress;
+
+import bdv.export.ProgressWriter;
+
+import java.io.PrintStream;
+
+/**
+ * Combines the progress of concurrently running sub tasks into the progress of
+ * the whole task. Each sub task reports its progress to its own
+ * {@link ProgressWriter}, see {@link #subTask(int)}. The combined progress is
+ * the average of the sub tasks, scaled by the given fraction. This allows to
+ * leave some of the progress for work that's done after the sub tasks.
+ *
+ * @author Matthias Arzt
+ */
+public class CombinedProgressWriter {
+
+	private final ProgressWriter progressWriter;
+
+	private final double fraction;
+
+	private final double[] progress;
+
+	public CombinedProgressWriter(ProgressWriter progressWriter,
+		int numberOfSubTasks)
+	{
+		this(progressWriter, numberOfSubTasks, 1.0);
+	}
+
+	public CombinedProgressWriter(ProgressWriter progressWriter,
+		int numberOfSubTasks, double fraction)
+	{
+		this.progressWriter = progressWriter;
+		this.fraction = fraction;
+		this.progress = new double[numberOfSubTasks];
+	}
+
+	/**
+	 * Returns the {@link ProgressWriter} for the sub task with the given index.
+	 */
+	public ProgressWriter subTask(int index) {
+		return new ProgressWriter() {
+
+			@Override
+			public PrintStream out() {
+				return progressWriter.out();
+			}
+
+			@Override
+			public PrintStream err() {
+				return progressWriter.err();
+			}
+
+			@Override
+			public void setProgress(double completionRatio) {
+				update(index, completionRatio);
+			}
+		};
+	}
+
+	private void update(int index, double completionRatio) {
+		double sum = 0;
+		synchronized (progress) {
+			progress[index] = completionRatio;
+			for (double value : progress)
+				sum += value;
+		}
+		progressWriter.setProgress(fraction * sum / progress.length);
+	}
+}
@@ -0,0 +1,723 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.utils.sparse;
+
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import net.imglib2.AbstractCursor;
+import net.imglib2.AbstractWrappedInterval;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.basictypeaccess.IntAccess;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.roi.IterableRegion;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import org.apache.commons.lang3.ArrayUtils;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * A sparse {@link IntType} image, that stores its pixels in lazily allocated
+ * blocks of 32x32x32 pixels.
+ * <p>
+ * Blocks that contain only a few pixels are stored in a small hash map. Once a
+ * block gets denser, it's converted into a primitive array. The array type
+ * (byte, short or int) is chosen as small as possible for the values written
+ * to the block. Compared to {@link SparseRandomAccessIntType}, this requires
+ * much less memory for densely labeled regions, and the pixel access is
+ * cheaper because no hashing is needed for dense blocks.
+ * <p>
+ * Write access is synchronized per block, such that threads writing to
+ * different blocks don't block each other.
+ *
+ * @author Matthias Arzt
+ */
+public class ChunkedSparseRandomAccessIntType extends
+	AbstractWrappedInterval<Interval> implements RandomAccessibleInterval<IntType>
+{
+
+	private static final int BLOCK_SIZE = 32;
+
+	private static final int MAX_BLOCKED_DIMENSIONS = 3;
+
+	private final ReadRetryWriteLock lock = new ReadRetryWriteLock();
+
+	private final TLongObjectHashMap<Block> blocks = new TLongObjectHashMap<>();
+
+	private final long[] min;
+
+	private final int[] blockSize;
+
+	private final long[] gridSize;
+
+	private final int blockVolume;
+
+	private final int noEntryValue;
+
+	private volatile int clearCount = 0;
+
+	private volatile PixelChangeListener[] listeners =
+		new PixelChangeListener[0];
+
+	public ChunkedSparseRandomAccessIntType(Interval source) {
+		this(source, 0);
+	}
+
+	public ChunkedSparseRandomAccessIntType(Interval source, int noEntryValue) {
+		super(source);
+		int n = source.numDimensions();
+		this.min = Intervals.minAsLongArray(source);
+		this.blockSize = new int[n];
+		this.gridSize = new long[n];
+		int volume = 1;
+		for (int d = 0; d < n; d++) {
+			long size = source.dimension(d);
+			blockSize[d] = d < MAX_BLOCKED_DIMENSIONS ? (int) Math.min(BLOCK_SIZE,
+				size) : 1;
+			gridSize[d] = (size + blockSize[d] - 1) / blockSize[d];
+			volume *= blockSize[d];
+		}
+		this.blockVolume = volume;
+		this.noEntryValue = noEntryValue;
+	}
+
+	@Override
+	public RandomAccess<IntType> randomAccess() {
+		return new MyRandomAccess();
+	}
+
+	@Override
+	public RandomAccess<IntType> randomAccess(Interval interval) {
+		return randomAccess();
+	}
+
+	/**
+	 * Returns a cursor that visits only the pixels, that are different from the
+	 * no entry value.
+	 */
+	public Cursor<IntType> sparseCursor() {
+		return new MappingCursor<>(sparsityPattern().cursor(), randomAccess());
+	}
+
+	/**
+	 * Returns the set of pixels, that are different from the no entry value. The
+	 * returned region is read only.
+	 */
+	public IterableRegion<BitType> sparsityPattern() {
+		return new SparsityPattern();
+	}
+
+	/**
+	 * Returns the number of allocated blocks.
+	 */
+	public int numBlocks() {
+		synchronized (lock) {
+			return blocks.size();
+		}
+	}
+
+	/**
+	 * Adds a listener that is notified about every changed pixel value.
+	 * {@link #clear()} doesn't notify the listeners.
+	 */
+	public synchronized void addPixelChangeListener(
+		PixelChangeListener listener)
+	{
+		listeners = ArrayUtils.add(listeners, listener);
+	}
+
+	public synchronized void removePixelChangeListener(
+		PixelChangeListener listener)
+	{
+		listeners = ArrayUtils.removeElement(listeners, listener);
+	}
+
+	public void clear() {
+		synchronized (lock) {
+			lock.writeLock();
+			try {
+				blocks.clear();
+				clearCount++;
+			}
+			finally {
+				lock.writeUnlock();
+			}
+		}
+	}
+
+	// -- Helper methods --
+
+	private Block getBlock(long blockIndex) {
+		while (true) {
+			try {
+				long readId = lock.startRead();
+				Block block = blocks.get(blockIndex);
+				if (lock.isReadValid(readId))
+					return block;
+			}
+			catch (ArrayIndexOutOfBoundsException ignore) {
+				// NB: TLongObjectHashMap.get(long) might throw an
+				// ArrayIndexOutOfBoundsException, if it is rehashed.
+			}
+		}
+	}
+
+	private Block getOrCreateBlock(long blockIndex) {
+		Block block = getBlock(blockIndex);
+		if (block != null)
+			return block;
+		synchronized (lock) {
+			block = blocks.get(blockIndex);
+			if (block != null)
+				return block;
+			block = new Block(blockIndex);
+			lock.writeLock();
+			try {
+				blocks.put(blockIndex, block);
+			}
+			finally {
+				lock.writeUnlock();
+			}
+			return block;
+		}
+	}
+
+	private Block[] sortedBlocks() {
+		synchronized (lock) {
+			Block[] result = blocks.values(new Block[blocks.size()]);
+			Arrays.sort(result, (a, b) -> Long.compare(a.index, b.index));
+			return result;
+		}
+	}
+
+	private long blockIndexToPosition(long blockIndex, int d) {
+		long step = 1;
+		for (int i = 0; i < d; i++)
+			step *= gridSize[i];
+		return blockIndex / step % gridSize[d] * blockSize[d] + min[d];
+	}
+
+	private int encode(int value) {
+		return value - noEntryValue;
+	}
+
+	private int decode(int code) {
+		return code + noEntryValue;
+	}
+
+	// -- Helper classes --
+
+	/**
+	 * A block of pixels. A pixel with code zero is empty, non-zero codes
+	 * represent the value {@code code + noEntryValue}.
+	 */
+	private class Block {
+
+		private final long index;
+
+		private final long[] offset;
+
+		private final ReadRetryWriteLock blockLock = new ReadRetryWriteLock();
+
+		private volatile Storage storage = new HashStorage();
+
+		private volatile int count = 0;
+
+		private final PixelChangeQueue changes = new PixelChangeQueue(
+			numDimensions());
+
+		private Block(long index) {
+			this.index = index;
+			this.offset = new long[min.length];
+			for (int d = 0; d < offset.length; d++)
+				offset[d] = blockIndexToPosition(index, d);
+		}
+
+		private int get(int localIndex) {
+			while (true) {
+				try {
+					long readId = blockLock.startRead();
+					int code = storage.get(localIndex);
+					if (blockLock.isReadValid(readId))
+						return code;
+				}
+				catch (ArrayIndexOutOfBoundsException ignore) {
+					// NB: The hash storage might throw an exception while it's
+					// rehashed.
+				}
+			}
+		}
+
+		private void set(Localizable position, int localIndex, int code) {
+			PixelChangeListener[] l = listeners;
+			synchronized (blockLock) {
+				Storage s = storage;
+				int old = s.get(localIndex);
+				if (old == code)
+					return;
+				int newCount = count + (old == 0 ? 1 : 0) - (code == 0 ? 1 : 0);
+				blockLock.writeLock();
+				try {
+					if (newCount == 0)
+						s = new HashStorage();
+					else if (!s.fits(code) || s.isFull(newCount))
+						s = s.convert(code);
+					s.set(localIndex, code);
+					storage = s;
+					count = newCount;
+				}
+				finally {
+					blockLock.writeUnlock();
+				}
+				if (l.length == 0)
+					return;
+				changes.add(position, decode(old), decode(code));
+			}
+			changes.notifyListeners(l);
+		}
+
+		/**
+		 * Returns the indices of all non-empty pixels in the block in ascending
+		 * order.
+		 */
+		private int[] nonEmptyIndices() {
+			synchronized (blockLock) {
+				return storage.nonEmptyIndices(count);
+			}
+		}
+	}
+
+	private abstract class Storage {
+
+		abstract int get(int localIndex);
+
+		abstract void set(int localIndex, int code);
+
+		abstract boolean fits(int code);
+
+		/**
+		 * Returns true, if the storage should be converted to an array, when it
+		 * holds the given number of pixels.
+		 */
+		boolean isFull(int count) {
+			return false;
+		}
+
+		/**
+		 * Returns an array storage with the same content as this storage, that
+		 * additionally fits the given code.
+		 */
+		Storage convert(int code) {
+			Storage result = newArrayStorage(maxCode(code));
+			for (int i : nonEmptyIndices(blockVolume))
+				result.set(i, get(i));
+			return result;
+		}
+
+		int maxCode(int code) {
+			return code;
+		}
+
+		int[] nonEmptyIndices(int count) {
+			int[] result = new int[count];
+			int j = 0;
+			for (int i = 0; i < blockVolume && j < count; i++)
+				if (get(i) != 0)
+					result[j++] = i;
+			return j == count ? result : Arrays.copyOf(result, j);
+		}
+	}
+
+	private Storage newArrayStorage(int maxCode) {
+		if ((maxCode & ~0xff) == 0)
+			return new ByteStorage();
+		if ((maxCode & ~0xffff) == 0)
+			return new ShortStorage();
+		return new IntStorage();
+	}
+
+	private class HashStorage extends Storage {
+
+		private final TIntIntHashMap map = new TIntIntHashMap(16, 0.5f, -1, 0);
+
+		@Override
+		int get(int localIndex) {
+			return map.get(localIndex);
+		}
+
+		@Override
+		void set(int localIndex, int code) {
+			if (code == 0)
+				map.remove(localIndex);
+			else
+				map.put(localIndex, code);
+		}
+
+		@Override
+		boolean fits(int code) {
+			return true;
+		}
+
+		@Override
+		boolean isFull(int count) {
+			return count > blockVolume / 16;
+		}
+
+		@Override
+		int maxCode(int code) {
+			int max = code;
+			for (int value : map.values())
+				if (Integer.compareUnsigned(value, max) > 0)
+					max = value;
+			return max;
+		}
+
+		@Override
+		int[] nonEmptyIndices(int count) {
+			int[] keys = map.keys();
+			Arrays.sort(keys);
+			return keys;
+		}
+	}
+
+	private class ByteStorage extends Storage {
+
+		private final byte[] array = new byte[blockVolume];
+
+		@Override
+		int get(int localIndex) {
+			return array[localIndex] & 0xff;
+		}
+
+		@Override
+		void set(int localIndex, int code) {
+			array[localIndex] = (byte) code;
+		}
+
+		@Override
+		boolean fits(int code) {
+			return (code & ~0xff) == 0;
+		}
+	}
+
+	private class ShortStorage extends Storage {
+
+		private final short[] array = new short[blockVolume];
+
+		@Override
+		int get(int localIndex) {
+			return array[localIndex] & 0xffff;
+		}
+
+		@Override
+		void set(int localIndex, int code) {
+			array[localIndex] = (short) code;
+		}
+
+		@Override
+		boolean fits(int code) {
+			return (code & ~0xffff) == 0;
+		}
+	}
+
+	private class IntStorage extends Storage {
+
+		private final int[] array = new int[blockVolume];
+
+		@Override
+		int get(int localIndex) {
+			return array[localIndex];
+		}
+
+		@Override
+		void set(int localIndex, int code) {
+			array[localIndex] = code;
+		}
+
+		@Override
+		boolean fits(int code) {
+			return true;
+		}
+	}
+
+	private class MyRandomAccess extends Point implements RandomAccess<IntType> {
+
+		private long cachedBlockIndex = -1;
+
+		private Block cachedBlock = null;
+
+		private int cachedClearCount = -1;
+
+		private int localIndex;
+
+		private final IntType value = new IntType(new IntAccess() {
+
+			@Override
+			public int getValue(int ignored) {
+				Block block = block(false);
+				return block == null ? noEntryValue : decode(block.get(localIndex));
+			}
+
+			@Override
+			public void setValue(int ignored, int value) {
+				int code = encode(value);
+				Block block = block(code != 0);
+				if (block != null)
+					block.set(MyRandomAccess.this, localIndex, code);
+			}
+		});
+
+		private MyRandomAccess() {
+			super(ChunkedSparseRandomAccessIntType.this.numDimensions());
+		}
+
+		private MyRandomAccess(Localizable localizable) {
+			super(localizable);
+		}
+
+		private Block block(boolean create) {
+			long blockIndex = 0;
+			long gridStep = 1;
+			int local = 0;
+			int localStep = 1;
+			for (int d = 0; d < n; d++) {
+				long p = position[d] - min[d];
+				blockIndex += p / blockSize[d] * gridStep;
+				local += (int) (p % blockSize[d]) * localStep;
+				gridStep *= gridSize[d];
+				localStep *= blockSize[d];
+			}
+			localIndex = local;
+			if (blockIndex == cachedBlockIndex && cachedClearCount == clearCount &&
+				cachedBlock != null)
+				return cachedBlock;
+			int currentClearCount = clearCount;
+			Block block = create ? getOrCreateBlock(blockIndex) : getBlock(
+				blockIndex);
+			if (block != null) {
+				cachedBlockIndex = blockIndex;
+				cachedBlock = block;
+				cachedClearCount = currentClearCount;
+			}
+			return block;
+		}
+
+		@Override
+		public RandomAccess<IntType> copy() {
+			return new MyRandomAccess(this);
+		}
+
+		@Override
+		public IntType get() {
+			return value;
+		}
+	}
+
+	private class SparsityPattern extends AbstractWrappedInterval<Interval>
+		implements IterableRegion<BitType>
+	{
+
+		private SparsityPattern() {
+			super(ChunkedSparseRandomAccessIntType.this);
+		}
+
+		@Override
+		public Cursor<Void> cursor() {
+			return new SparsityCursor(sortedBlocks());
+		}
+
+		@Override
+		public Cursor<Void> localizingCursor() {
+			return cursor();
+		}
+
+		@Override
+		public long size() {
+			long sum = 0;
+			for (Block block : sortedBlocks())
+				sum += block.count;
+			return sum;
+		}
+
+		@Override
+		public Void firstElement() {
+			return null;
+		}
+
+		@Override
+		public Object iterationOrder() {
+			return null;
+		}
+
+		@Override
+		public Iterator<Void> iterator() {
+			return cursor();
+		}
+
+		@Override
+		public RandomAccess<BitType> randomAccess() {
+			return new SparsityRandomAccess();
+		}
+
+		@Override
+		public RandomAccess<BitType> randomAccess(Interval interval) {
+			return randomAccess();
+		}
+	}
+
+	private class SparsityCursor extends AbstractCursor<Void> {
+
+		private final Block[] blocks;
+
+		private final long[] position;
+
+		private int blockIndex;
+
+		private int[] indices;
+
+		private int i;
+
+		private SparsityCursor(Block[] blocks) {
+			super(ChunkedSparseRandomAccessIntType.this.numDimensions());
+			this.blocks = blocks;
+			this.position = new long[n];
+			reset();
+		}
+
+		private SparsityCursor(SparsityCursor cursor) {
+			super(cursor.numDimensions());
+			this.blocks = cursor.blocks;
+			this.position = cursor.position.clone();
+			this.blockIndex = cursor.blockIndex;
+			this.indices = cursor.indices;
+			this.i = cursor.i;
+		}
+
+		@Override
+		public Void get() {
+			return null;
+		}
+
+		@Override
+		public SparsityCursor copy() {
+			return new SparsityCursor(this);
+		}
+
+		@Override
+		public void fwd() {
+			i++;
+			while (i >= indices.length) {
+				blockIndex++;
+				indices = blocks[blockIndex].nonEmptyIndices();
+				i = 0;
+			}
+			Block block = blocks[blockIndex];
+			int local = indices[i];
+			for (int d = 0; d < n; d++) {
+				position[d] = block.offset[d] + local % blockSize[d];
+				local /= blockSize[d];
+			}
+		}
+
+		@Override
+		public void reset() {
+			blockIndex = -1;
+			indices = new int[0];
+			i = -1;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (i + 1 < indices.length)
+				return true;
+			for (int b = blockIndex + 1; b < blocks.length; b++)
+				if (blocks[b].count > 0)
+					return true;
+			return false;
+		}
+
+		@Override
+		public void localize(long[] position) {
+			System.arraycopy(this.position, 0, position, 0, n);
+		}
+
+		@Override
+		public long getLongPosition(int d) {
+			return position[d];
+		}
+	}
+
+	private class SparsityRandomAccess extends Point implements
+		RandomAccess<BitType>
+	{
+
+		private final RandomAccess<IntType> values = randomAccess();
+
+		private final BitType value = new BitType(new LongArray(1)) {
+
+			@Override
+			public void set(boolean value) {
+				throw new UnsupportedOperationException(
+					"The sparsity pattern is read only.");
+			}
+
+			@Override
+			public boolean get() {
+				values.setPosition(SparsityRandomAccess.this);
+				return values.get().getInteger() != noEntryValue;
+			}
+		};
+
+		private SparsityRandomAccess() {
+			super(ChunkedSparseRandomAccessIntType.this.numDimensions());
+		}
+
+		private SparsityRandomAccess(Localizable localizable) {
+			super(localizable);
+		}
+
+		@Override
+		public RandomAccess<BitType> copy() {
+			return new SparsityRandomAccess(this);
+		}
+
+		@Override
+		public BitType get() {
+			return value;
+		}
+	}
+}
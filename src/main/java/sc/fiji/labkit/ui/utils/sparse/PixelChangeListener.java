@@ -0,0 +1,57 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.utils.sparse;
+
+import net.imglib2.Localizable;
+
+/**
+ * Listener that is notified, whenever a pixel value of a
+ * {@link SparseRandomAccessIntType} or {@link ChunkedSparseRandomAccessIntType}
+ * is changed.
+ * <p>
+ * The listener is called after the image released its write lock for the
+ * modified pixel, such that a slow listener doesn't block other threads that
+ * write to the image. The changes of a pixel are reported in the order they
+ * happened, but possibly by another thread, that is already reporting the
+ * changes of the same part of the image.
+ * Implementations must be thread safe, and must not write to the image.
+ *
+ * @author Matthias Arzt
+ */
+public interface PixelChangeListener {
+
+	/**
+	 * @param position Position of the modified pixel. Only valid during the
+	 *          call.
+	 * @param oldValue Pixel value before the modification.
+	 * @param newValue Pixel value after the modification.
+	 */
+	void pixelChanged(Localizable position, int oldValue, int newValue);
+}
@@ -0,0 +1,133 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.utils.sparse;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import net.imglib2.Localizable;
+import net.imglib2.Point;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pixel changes, that are recorded while the write lock of a part of an image
+ * is held, and passed to the {@link PixelChangeListener}s after the lock is
+ * released. This way a slow listener doesn't block other threads, that write
+ * to the same part of the image.
+ * <p>
+ * The changes of one queue are passed to the listeners by one thread at a
+ * time, in the order they were recorded. A change is passed to the listeners
+ * before {@link #notifyListeners} returns, unless another thread is already
+ * notifying the listeners. In this case the other thread also passes the
+ * change.
+ *
+ * @author Matthias Arzt
+ */
+class PixelChangeQueue {
+
+	private final int n;
+
+	private final ReentrantLock notifyLock = new ReentrantLock();
+
+	private TLongArrayList positions = new TLongArrayList();
+
+	private TIntArrayList values = new TIntArrayList();
+
+	PixelChangeQueue(int numDimensions) {
+		this.n = numDimensions;
+	}
+
+	/**
+	 * Records a pixel change. This is called while the write lock is held.
+	 */
+	synchronized void add(Localizable position, int oldValue, int newValue) {
+		for (int d = 0; d < n; d++)
+			positions.add(position.getLongPosition(d));
+		values.add(oldValue);
+		values.add(newValue);
+	}
+
+	/**
+	 * Passes the recorded changes to the listeners. This must be called after
+	 * the write lock is released.
+	 */
+	void notifyListeners(PixelChangeListener[] listeners) {
+		do {
+			if (!notifyLock.tryLock())
+				return;
+			try {
+				for (Changes changes = take(); changes != null; changes = take())
+					for (PixelChangeListener listener : listeners)
+						changes.notifyListener(listener);
+			}
+			finally {
+				notifyLock.unlock();
+			}
+		}
+		// NB: Changes that were added while notifyLock was held, by a thread
+		// that failed to acquire it, must not be left behind.
+		while (!isEmpty());
+	}
+
+	private synchronized boolean isEmpty() {
+		return values.isEmpty();
+	}
+
+	private synchronized Changes take() {
+		if (values.isEmpty())
+			return null;
+		Changes changes = new Changes(positions, values);
+		positions = new TLongArrayList();
+		values = new TIntArrayList();
+		return changes;
+	}
+
+	private class Changes {
+
+		private final TLongArrayList positions;
+
+		private final TIntArrayList values;
+
+		private Changes(TLongArrayList positions, TIntArrayList values) {
+			this.positions = positions;
+			this.values = values;
+		}
+
+		private void notifyListener(PixelChangeListener listener) {
+			Point position = new Point(n);
+			for (int i = 0; i < values.size() / 2; i++) {
+				for (int d = 0; d < n; d++)
+					position.setPosition(positions.get(i * n + d), d);
+				listener.pixelChanged(position, values.get(2 * i), values.get(2 * i +
+					1));
+			}
+		}
+	}
+}
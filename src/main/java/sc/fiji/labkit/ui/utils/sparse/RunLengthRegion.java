@@ -0,0 +1,397 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.utils.sparse;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
+import net.imglib2.AbstractCursor;
+import net.imglib2.AbstractWrappedInterval;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.roi.IterableRegion;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.util.Intervals;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+/**
+ * A read only {@link IterableRegion} that is stored as a list of runs. A run
+ * is a sequence of consecutive pixels along the x-axis in one row of the
+ * image.
+ * <p>
+ * Operations that process the region run by run, like
+ * {@link #forEachPixel(RandomAccessible, Consumer)} or {@link #boundingBox()},
+ * only need to compute the position of the first pixel of each run.
+ *
+ * @author Matthias Arzt
+ */
+public class RunLengthRegion extends AbstractWrappedInterval<Interval>
+	implements IterableRegion<BitType>
+{
+
+	private final IntervalIndexer2 indexer;
+
+	private final long[] starts;
+
+	private final int[] lengths;
+
+	private final int numRuns;
+
+	private final long size;
+
+	private RunLengthRegion(Interval interval, long[] starts, int[] lengths,
+		int numRuns)
+	{
+		super(interval);
+		this.indexer = new IntervalIndexer2(interval);
+		this.starts = starts;
+		this.lengths = lengths;
+		this.numRuns = numRuns;
+		long sum = 0;
+		for (int i = 0; i < numRuns; i++)
+			sum += lengths[i];
+		this.size = sum;
+	}
+
+	/**
+	 * Returns the number of runs.
+	 */
+	public int numRuns() {
+		return numRuns;
+	}
+
+	/**
+	 * Calls the consumer for each run of the region, with the position of the
+	 * first pixel of the run and the length of the run. The position is only
+	 * valid during the call.
+	 */
+	public void forEachRun(RunConsumer consumer) {
+		Point start = new Point(numDimensions());
+		for (int i = 0; i < numRuns; i++) {
+			indexer.indexToPosition(starts[i], start);
+			consumer.accept(start, lengths[i]);
+		}
+	}
+
+	/**
+	 * Calls the action for each pixel of the given image, that is contained in
+	 * the region.
+	 */
+	public <T> void forEachPixel(RandomAccessible<T> image,
+		Consumer<? super T> action)
+	{
+		RandomAccess<T> ra = image.randomAccess(this);
+		forEachRun((start, length) -> {
+			ra.setPosition(start);
+			for (int i = 0; i < length; i++) {
+				action.accept(ra.get());
+				ra.fwd(0);
+			}
+		});
+	}
+
+	/**
+	 * Returns the bounding box of the region, or null if the region is empty.
+	 */
+	public Interval boundingBox() {
+		if (numRuns == 0)
+			return null;
+		int n = numDimensions();
+		long[] min = new long[n];
+		long[] max = new long[n];
+		Arrays.fill(min, Long.MAX_VALUE);
+		Arrays.fill(max, Long.MIN_VALUE);
+		for (int i = 0; i < numRuns; i++) {
+			for (int d = 0; d < n; d++) {
+				long position = indexer.indexToPosition(starts[i], d);
+				long end = d == 0 ? position + lengths[i] - 1 : position;
+				min[d] = Math.min(min[d], position);
+				max[d] = Math.max(max[d], end);
+			}
+		}
+		return new FinalInterval(min, max);
+	}
+
+	@Override
+	public Cursor<Void> cursor() {
+		return new RunCursor();
+	}
+
+	@Override
+	public Cursor<Void> localizingCursor() {
+		return cursor();
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public Void firstElement() {
+		return null;
+	}
+
+	@Override
+	public Object iterationOrder() {
+		return null;
+	}
+
+	@Override
+	public Iterator<Void> iterator() {
+		return cursor();
+	}
+
+	@Override
+	public RandomAccess<BitType> randomAccess() {
+		return new RunRandomAccess();
+	}
+
+	@Override
+	public RandomAccess<BitType> randomAccess(Interval interval) {
+		return randomAccess();
+	}
+
+	private boolean contains(Localizable position) {
+		if (!Intervals.contains(this, position))
+			return false;
+		long code = indexer.positionToIndex(position);
+		int i = Arrays.binarySearch(starts, 0, numRuns, code);
+		if (i >= 0)
+			return true;
+		int run = -i - 2;
+		return run >= 0 && code < starts[run] + lengths[run];
+	}
+
+	/**
+	 * Consumer for the runs of a {@link RunLengthRegion}.
+	 */
+	public interface RunConsumer {
+
+		void accept(Localizable start, int length);
+	}
+
+	/**
+	 * Creates a {@link RunLengthRegion} from pixel indices, as computed by
+	 * {@link IntervalIndexer2#positionToIndex}. The indices can be added in any
+	 * order, but adding them in ascending order avoids sorting. Consecutive
+	 * indices are merged into runs immediately, such that the memory
+	 * requirement depends on the number of runs, not the number of pixels.
+	 */
+	public static class Builder {
+
+		private final Interval interval;
+
+		private final long width;
+
+		private final TLongArrayList starts = new TLongArrayList();
+
+		private final TIntArrayList lengths = new TIntArrayList();
+
+		private boolean sorted = true;
+
+		public Builder(Interval interval) {
+			this.interval = interval;
+			this.width = interval.dimension(0);
+		}
+
+		public void add(long index) {
+			int last = starts.size() - 1;
+			if (last >= 0) {
+				long start = starts.getQuick(last);
+				long end = start + lengths.getQuick(last);
+				if (index >= start && index < end)
+					return;
+				if (index == end && index % width != 0) {
+					lengths.setQuick(last, lengths.getQuick(last) + 1);
+					return;
+				}
+				if (index < end)
+					sorted = false;
+			}
+			starts.add(index);
+			lengths.add(1);
+		}
+
+		public RunLengthRegion build() {
+			if (!sorted)
+				sortAndMergeRuns();
+			int numRuns = starts.size();
+			return new RunLengthRegion(interval, starts.toArray(), lengths.toArray(),
+				numRuns);
+		}
+
+		/**
+		 * Sorts the runs by their start, and merges overlapping and adjacent
+		 * runs within the same row.
+		 */
+		private void sortAndMergeRuns() {
+			// NB: For runs with equal start, only the longest run is needed.
+			TLongIntHashMap longest = new TLongIntHashMap();
+			for (int i = 0; i < starts.size(); i++) {
+				long start = starts.getQuick(i);
+				longest.put(start, Math.max(longest.get(start), lengths.getQuick(i)));
+			}
+			long[] sortedStarts = longest.keys();
+			Arrays.sort(sortedStarts);
+			starts.resetQuick();
+			lengths.resetQuick();
+			sorted = true;
+			for (long start : sortedStarts) {
+				int length = longest.get(start);
+				int last = starts.size() - 1;
+				long lastStart = last >= 0 ? starts.getQuick(last) : -1;
+				long lastEnd = last >= 0 ? lastStart + lengths.getQuick(last) : -1;
+				boolean sameRow = last >= 0 && start / width == lastStart / width;
+				if (sameRow && start <= lastEnd)
+					lengths.setQuick(last, (int) (Math.max(lastEnd, start + length) -
+						lastStart));
+				else {
+					starts.add(start);
+					lengths.add(length);
+				}
+			}
+		}
+	}
+
+	// -- Helper classes --
+
+	private class RunCursor extends AbstractCursor<Void> {
+
+		private final long[] position;
+
+		private int run;
+
+		private int remaining;
+
+		private RunCursor() {
+			super(RunLengthRegion.this.numDimensions());
+			this.position = new long[n];
+			reset();
+		}
+
+		private RunCursor(RunCursor cursor) {
+			super(cursor.numDimensions());
+			this.position = cursor.position.clone();
+			this.run = cursor.run;
+			this.remaining = cursor.remaining;
+		}
+
+		@Override
+		public Void get() {
+			return null;
+		}
+
+		@Override
+		public RunCursor copy() {
+			return new RunCursor(this);
+		}
+
+		@Override
+		public void fwd() {
+			if (remaining > 0) {
+				position[0]++;
+				remaining--;
+			}
+			else {
+				run++;
+				long code = starts[run];
+				for (int d = 0; d < n; d++)
+					position[d] = indexer.indexToPosition(code, d);
+				remaining = lengths[run] - 1;
+			}
+		}
+
+		@Override
+		public void reset() {
+			run = -1;
+			remaining = 0;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return remaining > 0 || run < numRuns - 1;
+		}
+
+		@Override
+		public void localize(long[] position) {
+			System.arraycopy(this.position, 0, position, 0, n);
+		}
+
+		@Override
+		public long getLongPosition(int d) {
+			return position[d];
+		}
+	}
+
+	private class RunRandomAccess extends Point implements RandomAccess<BitType> {
+
+		private final BitType value = new BitType(new LongArray(1)) {
+
+			@Override
+			public void set(boolean value) {
+				throw new UnsupportedOperationException(
+					"RunLengthRegion is read only.");
+			}
+
+			@Override
+			public boolean get() {
+				return contains(RunRandomAccess.this);
+			}
+		};
+
+		private RunRandomAccess() {
+			super(RunLengthRegion.this.numDimensions());
+		}
+
+		private RunRandomAccess(Localizable localizable) {
+			super(localizable);
+		}
+
+		@Override
+		public RandomAccess<BitType> copy() {
+			return new RunRandomAccess(this);
+		}
+
+		@Override
+		public BitType get() {
+			return value;
+		}
+	}
+}
@@ -29,6 +29,7 @@
 
 package sc.fiji.labkit.ui.utils.sparse;
 
+import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.set.TLongSet;
 import gnu.trove.set.hash.TLongHashSet;
 import net.imglib2.AbstractCursor;
@@ -42,10 +43,26 @@ import net.imglib2.img.basictypeaccess.array.LongArray;
 import net.imglib2.roi.IterableRegion;
 import net.imglib2.type.logic.BitType;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 
 /**
+ * An {@link IterableRegion} that stores the set of its pixels in a hash set.
+ * <p>
+ * Additionally, a sorted array of the pixel indices is maintained. Pixels that
+ * are added in ascending order are simply appended to this array. Pixels that
+ * are added out of order are collected in a list, and removals are only
+ * recorded in the hash set. When the next cursor is created, the collected
+ * pixels are sorted and merged into the sorted array, and the removed pixels
+ * are skipped. This takes linear time, plus the time to sort the collected
+ * pixels. Creating a cursor is therefore cheap, as long as the region is not
+ * modified in between.
+ * <p>
+ * The {@link TLongSet} passed to the constructor must not be modified from
+ * outside afterwards. The methods of this class are thread safe.
+ *
  * @author Matthias Arzt
  */
 public class SparseIterableRegion extends AbstractWrappedInterval<Interval>
@@ -56,6 +73,23 @@ public class SparseIterableRegion extends AbstractWrappedInterval<Interval>
 
 	final private IntervalIndexer2 indexer;
 
+	private long[] sortedCodes = new long[0];
+
+	private int sortedSize = 0;
+
+	/**
+	 * Pixel indices, that were added out of order, and are not yet merged into
+	 * {@link #sortedCodes}.
+	 */
+	private final TLongArrayList unsortedCodes = new TLongArrayList();
+
+	/**
+	 * True, if pixels were removed since the last merge. The removed pixels
+	 * might still be contained in {@link #sortedCodes} or
+	 * {@link #unsortedCodes}.
+	 */
+	private boolean removed = false;
+
 	public SparseIterableRegion(Interval interval) {
 		this(interval, new TLongHashSet());
 	}
@@ -64,23 +98,87 @@ public class SparseIterableRegion extends AbstractWrappedInterval<Interval>
 		super(interval);
 		this.codes = positions;
 		this.indexer = new IntervalIndexer2(interval);
+		this.unsortedCodes.addAll(positions);
 	}
 
-	public void add(Localizable position) {
-		codes.add(indexer.positionToIndex(position));
+	public synchronized void add(Localizable position) {
+		long code = indexer.positionToIndex(position);
+		if (!codes.add(code))
+			return;
+		if (sortedSize == 0 || sortedCodes[sortedSize - 1] < code)
+			append(code);
+		else
+			unsortedCodes.add(code);
 	}
 
-	public void remove(Localizable position) {
-		codes.remove(indexer.positionToIndex(position));
+	public synchronized void remove(Localizable position) {
+		if (codes.remove(indexer.positionToIndex(position)))
+			removed = true;
 	}
 
-	private boolean contains(Localizable position) {
+	private synchronized boolean contains(Localizable position) {
 		return codes.contains(indexer.positionToIndex(position));
 	}
 
+	private void append(long code) {
+		if (sortedSize == sortedCodes.length)
+			sortedCodes = Arrays.copyOf(sortedCodes, Math.max(16, sortedSize * 2));
+		sortedCodes[sortedSize++] = code;
+	}
+
+	/**
+	 * Returns the array of sorted pixel indices. Only the first
+	 * {@link #sortedSize} entries are valid. The entries of the returned array
+	 * are never changed, new entries are only appended.
+	 */
+	private long[] sortedCodes() {
+		if (!removed && unsortedCodes.isEmpty())
+			return sortedCodes;
+		unsortedCodes.sort();
+		long[] merged = new long[codes.size()];
+		int size = 0;
+		int i = 0;
+		int j = 0;
+		int numUnsorted = unsortedCodes.size();
+		while (i < sortedSize || j < numUnsorted) {
+			long code = j >= numUnsorted || (i < sortedSize &&
+				sortedCodes[i] < unsortedCodes.get(j)) ? sortedCodes[i++]
+					: unsortedCodes.get(j++);
+			// NB: A pixel that was removed and added again, might occur twice.
+			if (size > 0 && merged[size - 1] == code)
+				continue;
+			if (removed && !codes.contains(code))
+				continue;
+			merged[size++] = code;
+		}
+		sortedCodes = merged;
+		sortedSize = size;
+		unsortedCodes.clear();
+		removed = false;
+		return sortedCodes;
+	}
+
 	@Override
-	public Cursor<Void> cursor() {
-		return new SparseRoiCursor();
+	public synchronized Cursor<Void> cursor() {
+		long[] sorted = sortedCodes();
+		return new SparseRoiCursor(sorted, 0, sortedSize);
+	}
+
+	/**
+	 * Splits the region into the given number of chunks and returns a cursor
+	 * for each chunk. The cursors can be used to iterate over the region in
+	 * parallel.
+	 */
+	public synchronized List<Cursor<Void>> splitCursor(int numChunks) {
+		long[] sorted = sortedCodes();
+		int size = sortedSize;
+		List<Cursor<Void>> cursors = new ArrayList<>(numChunks);
+		for (int i = 0; i < numChunks; i++) {
+			int from = (int) ((long) size * i / numChunks);
+			int to = (int) ((long) size * (i + 1) / numChunks);
+			cursors.add(new SparseRoiCursor(sorted, from, to));
+		}
+		return cursors;
 	}
 
 	@Override
@@ -89,7 +187,7 @@ public class SparseIterableRegion extends AbstractWrappedInterval<Interval>
 	}
 
 	@Override
-	public long size() {
+	public synchronized long size() {
 		return codes.size();
 	}
 
@@ -123,19 +221,32 @@ public class SparseIterableRegion extends AbstractWrappedInterval<Interval>
 	{
 
 		private final long[] sortedCodes;
+		private final int firstIndex;
 		private final int lastIndex;
-		private final Point point;
+		private final long[] position;
+		private final long max0;
 		private int i;
 
-		private SparseRoiCursor() {
+		private SparseRoiCursor(long[] sortedCodes, int from, int to) {
 			super(SparseIterableRegion.this.numDimensions());
-			point = new Point(SparseIterableRegion.this.numDimensions());
-			sortedCodes = codes.toArray();
-			Arrays.sort(sortedCodes);
-			lastIndex = sortedCodes.length - 1;
+			this.sortedCodes = sortedCodes;
+			this.firstIndex = from;
+			this.lastIndex = to - 1;
+			this.position = new long[n];
+			this.max0 = SparseIterableRegion.this.max(0);
 			reset();
 		}
 
+		private SparseRoiCursor(SparseRoiCursor cursor) {
+			super(cursor.numDimensions());
+			this.sortedCodes = cursor.sortedCodes;
+			this.firstIndex = cursor.firstIndex;
+			this.lastIndex = cursor.lastIndex;
+			this.position = cursor.position.clone();
+			this.max0 = cursor.max0;
+			this.i = cursor.i;
+		}
+
 		@Override
 		public Void get() {
 			return null;
@@ -143,18 +254,36 @@ public class SparseIterableRegion extends AbstractWrappedInterval<Interval>
 
 		@Override
 		public SparseRoiCursor copy() {
-			throw new UnsupportedOperationException();
+			return new SparseRoiCursor(this);
 		}
 
 		@Override
 		public void fwd() {
 			i++;
-			indexer.indexToPosition(sortedCodes[i], point);
+			// NB: Consecutive pixels in a row only require to increment the x
+			// coordinate.
+			if (i > firstIndex && sortedCodes[i] == sortedCodes[i - 1] + 1 &&
+				position[0] < max0)
+				position[0]++;
+			else
+				localizeCurrent();
+		}
+
+		@Override
+		public void jumpFwd(long steps) {
+			i += steps;
+			localizeCurrent();
+		}
+
+		private void localizeCurrent() {
+			long code = sortedCodes[i];
+			for (int d = 0; d < n; d++)
+				position[d] = indexer.indexToPosition(code, d);
 		}
 
 		@Override
 		public void reset() {
-			i = -1;
+			i = firstIndex - 1;
 		}
 
 		@Override
@@ -164,12 +293,12 @@ public class SparseIterableRegion extends AbstractWrappedInterval<Interval>
 
 		@Override
 		public void localize(long[] position) {
-			point.localize(position);
+			System.arraycopy(this.position, 0, position, 0, n);
 		}
 
 		@Override
 		public long getLongPosition(int d) {
-			return point.getLongPosition(d);
+			return position[d];
 		}
 	}
 
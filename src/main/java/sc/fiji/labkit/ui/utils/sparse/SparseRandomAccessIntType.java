@@ -31,6 +31,8 @@ package sc.fiji.labkit.ui.utils.sparse;
 
 import gnu.trove.impl.Constants;
 import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
 import net.imglib2.AbstractWrappedInterval;
 import net.imglib2.Cursor;
 import net.imglib2.Interval;
@@ -41,19 +43,46 @@ import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.basictypeaccess.IntAccess;
 import net.imglib2.roi.IterableRegion;
 import net.imglib2.type.BooleanType;
+import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.integer.IntType;
+import org.apache.commons.lang3.ArrayUtils;
+
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * A sparse {@link IntType} image, that stores the pixel values in hash maps.
+ * <p>
+ * The pixels are distributed over a fixed number of segments, each segment
+ * has its own {@link TLongIntHashMap} and {@link ReadRetryWriteLock}. The
+ * segment is chosen by hashing the pixel index divided by 256,
+ * such that neighboring pixels in a row end up in the same segment. This way
+ * threads that write to different regions of the image rarely block each
+ * other, and a read only needs to be retried if the segment it reads from is
+ * modified concurrently.
+ *
  * @author Matthias Arzt
  */
 public class SparseRandomAccessIntType extends AbstractWrappedInterval<Interval>
 	implements RandomAccessibleInterval<IntType>
 {
 
-	private final ReadRetryWriteLock lock = new ReadRetryWriteLock();
+	private static final int NUM_SEGMENTS = 64;
+
+	private static final int RUN_LENGTH = 256;
+
+	private final Segment[] segments;
 	private final IntervalIndexer2 indexer;
-	private final TLongIntHashMap values;
 	private final int noEntryValue;
+	private volatile PixelChangeListener[] listeners =
+		new PixelChangeListener[0];
+
+	/**
+	 * Counts the changes of the set of pixels, that are different from the no
+	 * entry value. Changes of pixel values, that keep this set, are not counted.
+	 */
+	private final AtomicLong patternModifications = new AtomicLong();
+
+	private volatile PatternSnapshot patternSnapshot = null;
 
 	public SparseRandomAccessIntType(Interval source) {
 		this(source, 0);
@@ -62,8 +91,9 @@ public class SparseRandomAccessIntType extends AbstractWrappedInterval<Interval>
 	public SparseRandomAccessIntType(Interval source, int noEntryValue) {
 		super(source);
 		this.indexer = new IntervalIndexer2(source);
-		this.values = new TLongIntHashMap(Constants.DEFAULT_CAPACITY,
-			Constants.DEFAULT_LOAD_FACTOR, -1, noEntryValue);
+		this.segments = new Segment[NUM_SEGMENTS];
+		for (int i = 0; i < NUM_SEGMENTS; i++)
+			segments[i] = new Segment(noEntryValue);
 		this.noEntryValue = noEntryValue;
 	}
 
@@ -81,50 +111,156 @@ public class SparseRandomAccessIntType extends AbstractWrappedInterval<Interval>
 		return new MappingCursor<>(sparsityPattern().cursor(), randomAccess());
 	}
 
+	/**
+	 * Returns a snapshot of the set of pixels, that are different from the no
+	 * entry value. The snapshot is cached, it's only computed again if pixels
+	 * were set to or from the no entry value in the meantime.
+	 */
 	public IterableRegion<? extends BooleanType<?>> sparsityPattern() {
-		return new SparseIterableRegion(this, values.keySet());
+		long modifications = patternModifications.get();
+		PatternSnapshot snapshot = patternSnapshot;
+		if (snapshot != null && snapshot.modifications == modifications)
+			return snapshot.pattern;
+		TLongSet keys = new TLongHashSet(Constants.DEFAULT_CAPACITY,
+			Constants.DEFAULT_LOAD_FACTOR, -1);
+		for (Segment segment : segments)
+			segment.addKeysTo(keys);
+		SparseIterableRegion pattern = new SparseIterableRegion(this, keys);
+		// NB: Sort the pixel indices now. The shared snapshot is never modified
+		// afterwards, so creating cursors from multiple threads is safe.
+		pattern.cursor();
+		// NB: If pixels changed while the keys were collected, the modification
+		// count differs by now, and the snapshot is computed again next time.
+		patternSnapshot = new PatternSnapshot(modifications, pattern);
+		return pattern;
+	}
+
+	/**
+	 * Adds a listener that is notified about every changed pixel value.
+	 * {@link #clear()} doesn't notify the listeners.
+	 */
+	public synchronized void addPixelChangeListener(
+		PixelChangeListener listener)
+	{
+		listeners = ArrayUtils.add(listeners, listener);
+	}
+
+	public synchronized void removePixelChangeListener(
+		PixelChangeListener listener)
+	{
+		listeners = ArrayUtils.removeElement(listeners, listener);
 	}
 
 	// -- Helper methods --
 
 	public void clear() {
-		values.clear();
+		for (Segment segment : segments)
+			segment.clear();
+		patternModifications.incrementAndGet();
+	}
+
+	private Segment segment(long index) {
+		long region = index / RUN_LENGTH;
+		int hash = (int) (region ^ (region >>> 32)) * 0x9E3779B9;
+		return segments[(hash >>> 16) & (NUM_SEGMENTS - 1)];
 	}
 
 	private int get(MyRandomAccess position) {
 		long index = indexer.positionToIndex(position);
-		while (true) {
-			try {
-				long readId = lock.startRead();
-				int value = values.get(index);
-				if (lock.isReadValid(readId))
-					return value;
-			}
-			catch (ArrayIndexOutOfBoundsException ignore) {
-				// NB: TLongInHashMap.get(long) sometimes throws an
-				// ArrayIndexOutOfBoundsException, if it is rehashed.
-			}
-		}
+		return segment(index).get(index);
 	}
 
 	private void set(MyRandomAccess position, int value) {
 		long index = indexer.positionToIndex(position);
+		segment(index).set(position, index, value);
+	}
+
+	// -- Helper classes --
+
+	private class Segment {
+
+		private final ReadRetryWriteLock lock = new ReadRetryWriteLock();
 
-		synchronized (lock) {
-			lock.writeLock();
-			try {
-				if (value == noEntryValue)
-					values.remove(index);
-				else
-					values.put(index, value);
+		private final TLongIntHashMap values;
+
+		private final PixelChangeQueue changes = new PixelChangeQueue(
+			numDimensions());
+
+		private Segment(int noEntryValue) {
+			this.values = new TLongIntHashMap(Constants.DEFAULT_CAPACITY,
+				Constants.DEFAULT_LOAD_FACTOR, -1, noEntryValue);
+		}
+
+		private int get(long index) {
+			while (true) {
+				try {
+					long readId = lock.startRead();
+					int value = values.get(index);
+					if (lock.isReadValid(readId))
+						return value;
+				}
+				catch (ArrayIndexOutOfBoundsException ignore) {
+					// NB: TLongInHashMap.get(long) sometimes throws an
+					// ArrayIndexOutOfBoundsException, if it is rehashed.
+				}
+			}
+		}
+
+		private void set(Localizable position, long index, int value) {
+			PixelChangeListener[] l = listeners;
+			synchronized (lock) {
+				int oldValue;
+				lock.writeLock();
+				try {
+					if (value == noEntryValue)
+						oldValue = values.remove(index);
+					else
+						oldValue = values.put(index, value);
+				}
+				finally {
+					lock.writeUnlock();
+				}
+				if ((oldValue == noEntryValue) != (value == noEntryValue))
+					patternModifications.incrementAndGet();
+				if (l.length == 0 || oldValue == value)
+					return;
+				changes.add(position, oldValue, value);
+			}
+			changes.notifyListeners(l);
+		}
+
+		private void clear() {
+			synchronized (lock) {
+				lock.writeLock();
+				try {
+					values.clear();
+				}
+				finally {
+					lock.writeUnlock();
+				}
 			}
-			finally {
-				lock.writeUnlock();
+		}
+
+		private void addKeysTo(TLongSet keys) {
+			synchronized (lock) {
+				keys.addAll(values.keys());
 			}
 		}
 	}
 
-	// -- Helper classes --
+	private static class PatternSnapshot {
+
+		private final long modifications;
+
+		private final IterableRegion<BitType> pattern;
+
+		private PatternSnapshot(long modifications,
+			IterableRegion<BitType> pattern)
+		{
+			this.modifications = modifications;
+			this.pattern = pattern;
+		}
+	}
 
 	private class MyRandomAccess extends Point implements RandomAccess<IntType> {
 
@@ -34,6 +34,7 @@ import net.imagej.axis.Axes;
 import net.imagej.axis.AxisType;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.util.Intervals;
 import org.junit.Test;
 
@@ -41,6 +42,7 @@ import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 
 public class ImgPlusViewsOldTest {
 
@@ -54,4 +56,17 @@ public class ImgPlusViewsOldTest {
 		assertArrayEquals(new long[] { 4, 3, 2, 1 }, Intervals
 			.dimensionsAsLongArray(result));
 	}
+
+	@Test
+	public void testSubsampleSpatialAxes() {
+		ImgPlus<IntType> image = new ImgPlus<>(ArrayImgs.ints(new int[] { 0, 1, 2,
+			3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17 }, 9, 2), "",
+			new AxisType[] { Axes.X, Axes.CHANNEL });
+		ImgPlus<IntType> result = ImgPlusViewsOld.subsampleSpatialAxes(image, 4);
+		assertArrayEquals(new long[] { 2, 2 }, Intervals.dimensionsAsLongArray(
+			result));
+		assertEquals(5, result.randomAccess().setPositionAndGet(1, 0).get());
+		assertEquals(14, result.randomAccess().setPositionAndGet(1, 1).get());
+		assertEquals(4, result.averageScale(0), 0);
+	}
 }
@@ -0,0 +1,188 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.labeling;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.test.ImgLib2Assert;
+import net.imglib2.util.Intervals;
+import org.junit.Test;
+import sc.fiji.labkit.pixel_classification.utils.SingletonContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link LabelingJournal}.
+ */
+public class LabelingJournalTest {
+
+	private final LabelingSerializer serializer = new LabelingSerializer(
+		SingletonContext.getInstance());
+
+	@Test
+	public void testReplayOnBaseFile() throws IOException {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("a", "b"),
+			new FinalInterval(10, 10));
+		set(labeling, 1, 1, "a");
+		String baseFile = tempFile(".labeling").getAbsolutePath();
+		serializer.save(labeling, baseFile);
+		LabelingJournal journal = new LabelingJournal(tempFile(".journal"));
+		journal.start(baseFile, labeling);
+		set(labeling, 2, 3, "b");
+		set(labeling, 1, 1, "b");
+		journal.record(Intervals.createMinMax(1, 1, 2, 3));
+		journal.flush(labeling);
+		set(labeling, 9, 9, "a");
+		journal.record(Intervals.createMinMax(9, 9, 9, 9));
+		journal.flush(labeling);
+		assertLabelingEquals(labeling, LabelingJournal.open(journal.getFile(),
+			serializer));
+	}
+
+	@Test
+	public void testRequiresCompaction() throws IOException {
+		LabelingJournal journal = new LabelingJournal(tempFile(".journal"));
+		Interval interval = new FinalInterval(100, 100);
+		journal.record(Intervals.createMinMax(0, 0, 9, 9));
+		assertFalse(journal.requiresCompaction(interval));
+		journal.record(Intervals.createMinMax(0, 0, 99, 49));
+		assertTrue(journal.requiresCompaction(interval));
+		journal.takePendingChanges();
+		assertFalse(journal.requiresCompaction(interval));
+		journal.record(null);
+		assertTrue(journal.requiresCompaction(interval));
+	}
+
+	@Test
+	public void testReplayWithoutBaseFile() throws IOException {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("a", "b"),
+			new FinalInterval(10, 10));
+		LabelingJournal journal = new LabelingJournal(tempFile(".journal"));
+		journal.start(null, labeling);
+		set(labeling, 4, 5, "a");
+		journal.record(null);
+		journal.flush(labeling);
+		Labeling actual = LabelingJournal.open(journal.getFile(), serializer);
+		assertEquals(Arrays.asList("a", "b"), actual.getLabels().stream().map(
+			Label::name).collect(Collectors.toList()));
+		assertLabelingEquals(labeling, actual);
+	}
+
+	@Test
+	public void testIncompleteEntryIsIgnored() throws IOException {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("a", "b"),
+			new FinalInterval(10, 10));
+		LabelingJournal journal = new LabelingJournal(tempFile(".journal"));
+		journal.start(null, labeling);
+		set(labeling, 4, 5, "a");
+		journal.record(Intervals.createMinMax(4, 5, 4, 5));
+		journal.flush(labeling);
+		long completeSize = journal.size();
+		Labeling expected = Labeling.createEmpty(Arrays.asList("a", "b"),
+			new FinalInterval(10, 10));
+		set(expected, 4, 5, "a");
+		set(labeling, 7, 7, "b");
+		journal.record(Intervals.createMinMax(7, 7, 7, 7));
+		journal.flush(labeling);
+		try (RandomAccessFile file = new RandomAccessFile(journal.getFile(),
+			"rw"))
+		{
+			file.setLength(completeSize + 5);
+		}
+		assertLabelingEquals(expected, LabelingJournal.open(journal.getFile(),
+			serializer));
+	}
+
+	@Test
+	public void testChangesAreCopied() throws IOException {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("a", "b"),
+			new FinalInterval(10, 10));
+		LabelingJournal journal = new LabelingJournal(tempFile(".journal"));
+		journal.start(null, labeling);
+		set(labeling, 4, 5, "a");
+		journal.record(Intervals.createMinMax(4, 5, 4, 5));
+		LabelingJournal.Changes changes = journal.takeChanges(labeling);
+		Labeling expected = Labeling.createEmpty(Arrays.asList("a", "b"),
+			new FinalInterval(10, 10));
+		set(expected, 4, 5, "a");
+		set(labeling, 4, 5, "b");
+		journal.write(changes);
+		assertLabelingEquals(expected, LabelingJournal.open(journal.getFile(),
+			serializer));
+	}
+
+	@Test(expected = IOException.class)
+	public void testWriteFailsIfLabelsChanged() throws IOException {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("a", "b"),
+			new FinalInterval(10, 10));
+		LabelingJournal journal = new LabelingJournal(tempFile(".journal"));
+		journal.start(null, labeling);
+		labeling.addLabel("c");
+		assertTrue(journal.labelsChanged(labeling.getLabels()));
+		set(labeling, 4, 5, "c");
+		journal.record(Intervals.createMinMax(4, 5, 4, 5));
+		journal.flush(labeling);
+	}
+
+	private static void set(Labeling labeling, long x, long y, String label) {
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		ra.setPosition(new long[] { x, y });
+		ra.get().clear();
+		ra.get().add(labeling.getLabel(label));
+	}
+
+	private static void assertLabelingEquals(Labeling expected,
+		Labeling actual)
+	{
+		ImgLib2Assert.assertImageEquals(expected, actual, (a, b) -> names(a)
+			.equals(names(b)));
+	}
+
+	private static Set<String> names(Set<Label> labels) {
+		return labels.stream().map(Label::name).collect(Collectors.toSet());
+	}
+
+	private static File tempFile(String suffix) throws IOException {
+		File file = File.createTempFile("test-", suffix);
+		file.deleteOnExit();
+		return file;
+	}
+}
@@ -38,6 +38,8 @@ import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.roi.IterableRegion;
+import net.imglib2.roi.labeling.LabelingType;
+import sc.fiji.labkit.ui.utils.MemoryMappedIntType;
 import sc.fiji.labkit.ui.utils.sparse.SparseIterableRegion;
 import net.imglib2.test.ImgLib2Assert;
 import sc.fiji.labkit.pixel_classification.utils.SingletonContext;
@@ -49,8 +51,11 @@ import org.junit.Test;
 import java.awt.*;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -59,6 +64,7 @@ import java.util.Set;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author Matthias Arzt
@@ -68,10 +74,147 @@ public class LabelingSerializationTest {
 	private final LabelingSerializer serializer = new LabelingSerializer(SingletonContext
 		.getInstance());
 
+	private final LabelingSerializer binarySerializer = binarySerializer();
+
 	@Test
 	public void testJson() throws IOException {
 		testSerialization(exampleLabeling(), "json");
 		testSerialization(emptyLabeling(), "json");
+		testSerialization(overlappingLabeling(), "json");
+	}
+
+	@Test
+	public void testJsonWithLabelsBeforeInterval() throws IOException {
+		final String filename = tempFileWithExtension("json");
+		String json = "{\"labels\":{\"B\":[[1,2]],\"A\":[]}," +
+			"\"interval\":{\"n\":2,\"min\":[0,0],\"max\":[3,3]}}";
+		Files.write(Paths.get(filename), json.getBytes(StandardCharsets.UTF_8));
+		Labeling labeling = serializer.open(filename);
+		assertEquals(Arrays.asList("B", "A"), labeling.getLabels().stream().map(
+			Label::name).collect(Collectors.toList()));
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		ra.setPosition(new long[] { 1, 2 });
+		assertEquals(Collections.singleton("B"), toStrings(ra.get()));
+		assertEquals(1, labeling.getPixelCount(labeling.getLabel("B")));
+	}
+
+	@Test
+	public void testLabelingIsJsonByDefault() throws IOException {
+		final String filename = tempFileWithExtension("labeling");
+		serializer.setBinaryFormat(false);
+		serializer.save(exampleLabeling(), filename);
+		byte[] bytes = Files.readAllBytes(Paths.get(filename));
+		assertEquals('{', bytes[0]);
+		testSerialization(serializer, exampleLabeling(), "labeling");
+	}
+
+	@Test
+	public void testBinary() throws IOException {
+		testSerialization(binarySerializer, exampleLabeling(), "labeling");
+		testSerialization(binarySerializer, emptyLabeling(), "labeling");
+		testSerialization(binarySerializer, overlappingLabeling(), "labeling");
+	}
+
+	@Test
+	public void testBinaryColorsAndLabelOrder() throws IOException {
+		Labeling expected = exampleLabeling();
+		expected.getLabel("B").setColor(new ARGBType(Color.yellow.getRGB()));
+		final String filename = tempFileWithExtension("labeling");
+		binarySerializer.save(expected, filename);
+		Labeling actual = binarySerializer.open(filename);
+		assertColorsAndLabelOrderMatches(expected.getLabels(), actual.getLabels());
+	}
+
+	@Test
+	public void testMemoryMapped() throws IOException {
+		final String filename = tempFileWithExtension("labeling");
+		File indexFile = new File(filename + ".scratch");
+		indexFile.deleteOnExit();
+		Labeling expected = Labeling.createEmptyMemoryMapped(Arrays.asList("A",
+			"B", "C"), new FinalInterval(20, 10, 3), indexFile);
+		RandomAccess<LabelingType<Label>> ra = expected.randomAccess();
+		ra.setPosition(new long[] { 3, 4, 1 });
+		ra.get().add(expected.getLabel("A"));
+		ra.get().add(expected.getLabel("C"));
+		ra.setPosition(new long[] { 19, 9, 2 });
+		ra.get().add(expected.getLabel("B"));
+		serializer.save(expected, filename);
+		Labeling actual = serializer.open(filename);
+		assertTrue(actual.getIndexImg() instanceof MemoryMappedIntType);
+		assertColorsAndLabelOrderMatches(expected.getLabels(), actual.getLabels());
+		ImgLib2Assert.assertImageEquals(expected, actual, (a, b) -> setsEqual(
+			toStrings(a), toStrings(b)));
+		expected.dispose();
+		actual.dispose();
+		LabelingSerializer.delete(filename, filename);
+	}
+
+	@Test
+	public void testMemoryMappedSnapshot() throws IOException {
+		final String filename = tempFileWithExtension("labeling");
+		File indexFile = new File(filename + ".scratch");
+		indexFile.deleteOnExit();
+		Labeling labeling = Labeling.createEmptyMemoryMapped(Arrays.asList("A",
+			"B"), new FinalInterval(20, 10), indexFile);
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		ra.setPosition(new long[] { 3, 4 });
+		ra.get().add(labeling.getLabel("A"));
+		serializer.save(labeling, filename);
+		// NB: Changes after saving, must not modify the saved labeling.
+		ra.get().add(labeling.getLabel("B"));
+		Labeling saved = serializer.open(filename);
+		RandomAccess<LabelingType<Label>> savedRa = saved.randomAccess();
+		savedRa.setPosition(new long[] { 3, 4 });
+		assertEquals(Collections.singleton("A"), toStrings(savedRa.get()));
+		// NB: Changes to the opened labeling, must not modify the saved file.
+		savedRa.get().clear();
+		Labeling reopened = serializer.open(filename);
+		RandomAccess<LabelingType<Label>> reopenedRa = reopened.randomAccess();
+		reopenedRa.setPosition(new long[] { 3, 4 });
+		assertEquals(Collections.singleton("A"), toStrings(reopenedRa.get()));
+		labeling.dispose();
+		saved.dispose();
+		reopened.dispose();
+		LabelingSerializer.delete(filename, filename);
+	}
+
+	@Test
+	public void testSaveMemoryMappedAgain() throws IOException {
+		final String filename = tempFileWithExtension("labeling");
+		File indexFile = new File(filename + ".scratch");
+		indexFile.deleteOnExit();
+		Labeling labeling = Labeling.createEmptyMemoryMapped(Arrays.asList("A",
+			"B"), new FinalInterval(20, 10), indexFile);
+		serializer.save(labeling, filename);
+		labeling.dispose();
+		// NB: The opened labeling maps the snapshot, saving it again must not
+		// overwrite the snapshot.
+		Labeling opened = serializer.open(filename);
+		RandomAccess<LabelingType<Label>> ra = opened.randomAccess();
+		ra.setPosition(new long[] { 3, 4 });
+		ra.get().add(opened.getLabel("B"));
+		serializer.save(opened, filename);
+		Labeling reopened = serializer.open(filename);
+		RandomAccess<LabelingType<Label>> reopenedRa = reopened.randomAccess();
+		reopenedRa.setPosition(new long[] { 3, 4 });
+		assertEquals(Collections.singleton("B"), toStrings(reopenedRa.get()));
+		assertEquals(Collections.singleton("B"), toStrings(ra.get()));
+		opened.dispose();
+		reopened.dispose();
+		LabelingSerializer.delete(filename, filename);
+	}
+
+	@Test
+	public void testOpenJsonWithLabelingExtension() throws IOException {
+		Labeling expected = exampleLabeling();
+		final String jsonFilename = tempFileWithExtension("json");
+		serializer.save(expected, jsonFilename);
+		final String filename = tempFileWithExtension("labeling");
+		Files.copy(Paths.get(jsonFilename), Paths.get(filename),
+			StandardCopyOption.REPLACE_EXISTING);
+		Labeling actual = serializer.open(filename);
+		ImgLib2Assert.assertImageEquals(expected, actual, (a, b) -> setsEqual(
+			toStrings(a), toStrings(b)));
 	}
 
 	@Test
@@ -93,6 +236,12 @@ public class LabelingSerializationTest {
 
 	private void testSerialization(Labeling labeling, String extension)
 		throws IOException
+	{
+		testSerialization(serializer, labeling, extension);
+	}
+
+	private void testSerialization(LabelingSerializer serializer,
+		Labeling labeling, String extension) throws IOException
 	{
 		final String filename = tempFileWithExtension(extension);
 		serializer.save(labeling, filename);
@@ -101,6 +250,13 @@ public class LabelingSerializationTest {
 			toStrings(b)));
 	}
 
+	private static LabelingSerializer binarySerializer() {
+		LabelingSerializer serializer = new LabelingSerializer(SingletonContext
+			.getInstance());
+		serializer.setBinaryFormat(true);
+		return serializer;
+	}
+
 	private String tempFileWithExtension(String extension) throws IOException {
 		File file = File.createTempFile("test-", "." + extension);
 		file.deleteOnExit();
@@ -137,6 +293,22 @@ public class LabelingSerializationTest {
 		return labeling;
 	}
 
+	private static Labeling overlappingLabeling() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("A", "B", "C"),
+			new FinalInterval(20, 10, 3));
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		for (int x = 2; x < 20; x++) {
+			ra.setPosition(new long[] { x, 5, 1 });
+			ra.get().add(labeling.getLabel("A"));
+			if (x % 3 == 0)
+				ra.get().add(labeling.getLabel("B"));
+		}
+		ra.setPosition(new long[] { 0, 6, 1 });
+		ra.get().add(labeling.getLabel("C"));
+		labeling.removeLabel(labeling.getLabel("B"));
+		return labeling;
+	}
+
 	private static Labeling emptyLabeling() {
 		return Labeling.createEmpty(Collections.emptyList(), new FinalInterval(2,
 			2));
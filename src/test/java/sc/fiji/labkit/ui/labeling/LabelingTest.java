@@ -31,17 +31,22 @@ package sc.fiji.labkit.ui.labeling;
 
 import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccess;
+import net.imglib2.roi.IterableRegion;
 import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.type.logic.BitType;
 import net.imglib2.util.Intervals;
+import sc.fiji.labkit.ui.utils.sparse.RunLengthRegion;
 import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class LabelingTest {
@@ -81,4 +86,71 @@ public class LabelingTest {
 		randomAccess.setPosition(position);
 		return randomAccess.get();
 	}
+
+	@Test
+	public void testRunLengthRegion() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("f", "b"), interval);
+		Label f = labeling.getLabel("f");
+		Label b = labeling.getLabel("b");
+		addPixelLabel(labeling, f, 0, 1);
+		addPixelLabel(labeling, f, 1, 1);
+		addPixelLabel(labeling, b, 1, 1);
+		RunLengthRegion region = labeling.runLengthRegion(f);
+		assertEquals(2, region.size());
+		assertEquals(1, region.numRuns());
+		assertTrue(Intervals.equals(Intervals.createMinSize(0, 1, 2, 1), region
+			.boundingBox()));
+	}
+
+	@Test
+	public void testIterableRegionsAreWritable() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("f", "b"), interval);
+		Label f = labeling.getLabel("f");
+		addPixelLabel(labeling, f, 1, 1);
+		IterableRegion<BitType> region = labeling.iterableRegions().get(f);
+		assertEquals(1, region.size());
+		RandomAccess<BitType> ra = region.randomAccess();
+		ra.setPosition(new long[] { 0, 0 });
+		ra.get().setOne();
+		assertEquals(2, region.size());
+		assertEquals(1, labeling.getPixelCount(f));
+	}
+
+	@Test
+	public void testAddRegion() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("f", "b"), interval);
+		Label f = labeling.getLabel("f");
+		Label b = labeling.getLabel("b");
+		addPixelLabel(labeling, b, 1, 1);
+		addPixelLabel(labeling, f, 0, 1);
+		addPixelLabel(labeling, f, 1, 1);
+		Label copy = labeling.addLabel("copy");
+		labeling.addRegion(copy, labeling.runLengthRegion(f));
+		assertEquals(new HashSet<>(Arrays.asList(f, copy)), new HashSet<>(
+			getPixelLabels(labeling, 0, 1)));
+		assertEquals(new HashSet<>(Arrays.asList(f, b, copy)), new HashSet<>(
+			getPixelLabels(labeling, 1, 1)));
+		assertTrue(getPixelLabels(labeling, 0, 0).isEmpty());
+	}
+
+	@Test
+	public void testPixelCountAndBoundingBox() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("f", "b"), interval);
+		Label f = labeling.getLabel("f");
+		Label b = labeling.getLabel("b");
+		assertEquals(0, labeling.getPixelCount(f));
+		assertNull(labeling.getBoundingBox(f));
+		addPixelLabel(labeling, f, 0, 0);
+		addPixelLabel(labeling, f, 1, 1);
+		addPixelLabel(labeling, b, 1, 1);
+		assertEquals(2, labeling.getPixelCount(f));
+		assertTrue(Intervals.equals(interval, labeling.getBoundingBox(f)));
+		getPixelLabels(labeling, 0, 0).remove(f);
+		assertEquals(1, labeling.getPixelCount(f));
+		assertTrue(Intervals.equals(Intervals.createMinSize(1, 1, 1, 1), labeling
+			.getBoundingBox(f)));
+		labeling.clearLabel(f);
+		assertEquals(0, labeling.getPixelCount(f));
+		assertEquals(1, labeling.getPixelCount(b));
+	}
 }
@@ -0,0 +1,104 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.models;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.integer.IntType;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DefaultCachedImageFactoryTest {
+
+	@Test
+	public void testCellsAreComputedOnce() {
+		CacheStatistics statistics = DefaultCachedImageFactory.getStatistics();
+		long computed = statistics.getComputed();
+		Img<IntType> image = createImage();
+		fillWithPositions(image);
+		assertPositions(image);
+		assertEquals(10, statistics.getComputed() - computed);
+	}
+
+	@Test
+	public void testStrongReferencesAreBoundedAcrossImages() {
+		long before = DefaultCachedImageFactory.getMaxCacheSizeInBytes();
+		DefaultCachedImageFactory.setMaxCacheSizeInBytes(2 * 10 * 10 * 4);
+		try {
+			for (int i = 0; i < 3; i++)
+				fillWithPositions(createImage());
+			assertTrue(DefaultCachedImageFactory
+				.getStronglyReferencedBytes() <= 2 * 10 * 10 * 4);
+		}
+		finally {
+			DefaultCachedImageFactory.setMaxCacheSizeInBytes(before);
+		}
+	}
+
+	@Test
+	public void testCellsOfCollectedImagesAreReleased() throws InterruptedException {
+		long before = DefaultCachedImageFactory.getStronglyReferencedBytes();
+		fillWithPositions(createImage());
+		for (int i = 0; i < 100 && DefaultCachedImageFactory
+			.getStronglyReferencedBytes() > before; i++)
+		{
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertTrue(DefaultCachedImageFactory.getStronglyReferencedBytes() <= before);
+	}
+
+	private Img<IntType> createImage() {
+		CellGrid grid = new CellGrid(new long[] { 100, 10 }, new int[] { 10, 10 });
+		return DefaultCachedImageFactory.getInstance().setupCachedImage(null,
+			target -> {}, grid, new IntType());
+	}
+
+	private void fillWithPositions(Img<IntType> image) {
+		Cursor<IntType> cursor = image.localizingCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			cursor.get().set(cursor.getIntPosition(0) + 100 * cursor.getIntPosition(
+				1));
+		}
+	}
+
+	private void assertPositions(Img<IntType> image) {
+		Cursor<IntType> cursor = image.localizingCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			assertEquals(cursor.getIntPosition(0) + 100 * cursor.getIntPosition(1),
+				cursor.get().get());
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.plugin;
+
+import net.imglib2.Point;
+import net.imglib2.util.Intervals;
+import org.junit.Test;
+import sc.fiji.labkit.ui.utils.sparse.SparseIterableRegion;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConnectedComponentsTest {
+
+	@Test
+	public void testComponentCrossingChunks() {
+		SparseIterableRegion region = new SparseIterableRegion(Intervals
+			.createMinSize(10, 20, 300, 300));
+		for (int y = 20; y < 320; y++)
+			for (int x = 10; x < 310; x++)
+				region.add(new Point(x, y));
+		List<ConnectedComponents.Component> components = ConnectedComponents
+			.analyze(region);
+		assertEquals(1, components.size());
+		ConnectedComponents.Component component = components.get(0);
+		assertEquals(300 * 300, component.size());
+		assertEquals(10, component.min(0));
+		assertEquals(309, component.max(0));
+		assertEquals(20, component.min(1));
+		assertEquals(319, component.max(1));
+		assertEquals(159.5, component.centroid(0), 1e-6);
+		assertEquals(169.5, component.centroid(1), 1e-6);
+	}
+
+	@Test
+	public void testStripes() {
+		SparseIterableRegion region = new SparseIterableRegion(Intervals
+			.createMinSize(0, 0, 300, 300));
+		for (int y = 0; y < 300; y++)
+			for (int x = 0; x < 300; x += 2)
+				region.add(new Point(x, y));
+		List<ConnectedComponents.Component> components = ConnectedComponents
+			.analyze(region);
+		assertEquals(150, components.size());
+		for (int i = 0; i < components.size(); i++) {
+			ConnectedComponents.Component component = components.get(i);
+			assertEquals(300, component.size());
+			assertEquals(2 * i, component.min(0));
+			assertEquals(2 * i, component.max(0));
+		}
+	}
+}
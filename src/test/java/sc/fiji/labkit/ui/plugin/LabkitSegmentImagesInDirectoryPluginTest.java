@@ -88,6 +88,23 @@ public class LabkitSegmentImagesInDirectoryPluginTest {
 		testOutputDirectory(outputDirectory);
 	}
 
+	@Test
+	public void testParallelFiles()
+		throws IOException, ExecutionException, InterruptedException
+	{
+		File inputDirectory = createTestInputDirectory();
+		File outputDirectory = Files.createTempDirectory("labkit-test-output").toFile();
+		cmd.run(LabkitSegmentImagesInDirectoryPlugin.class, true,
+			"input_directory", inputDirectory,
+			"file_filter", "*.tif",
+			"output_directory", outputDirectory,
+			"output_file_suffix", "_segmentation.tif",
+			"segmenter_file", fullPath("/leaf.classifier"),
+			"use_gpu", false,
+			"number_of_parallel_files", 3).get();
+		testOutputDirectory(outputDirectory);
+	}
+
 	private File createTestInputDirectory() throws IOException {
 		File folder = Files.createTempDirectory("labkit-test-input").toFile();
 		RandomAccessibleInterval<UnsignedByteType> image =
@@ -29,6 +29,8 @@
 
 package sc.fiji.labkit.ui.plugin;
 
+import net.imagej.axis.Axes;
+import net.imagej.axis.DefaultLinearAxis;
 import net.imglib2.Cursor;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
@@ -38,8 +40,11 @@ import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.util.Intervals;
 import org.junit.Test;
+import org.scijava.table.Table;
+import sc.fiji.labkit.ui.labeling.Labeling;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
@@ -72,6 +77,20 @@ public class MeasureConnectedComponentsTest {
 		assertEquals(Arrays.asList(1L, 1L, 2L, 8L, 12L), result);
 	}
 
+	@Test
+	public void testCalibratedTable() {
+		Labeling labeling = Labeling.fromMap(Collections.singletonMap("a", input));
+		labeling.setAxes(Arrays.asList(new DefaultLinearAxis(Axes.X, "um", 2),
+			new DefaultLinearAxis(Axes.Y, "um", 3)));
+		Table<?, ?> table = MeasureConnectedComponents.createTable(labeling, true);
+		// NB: The first component is the ring from (1, 1) to (3, 3).
+		assertEquals(48.0, (Double) table.get("size in um*um", 0), 1e-6);
+		assertEquals(4.0, (Double) table.get("centroid X in um", 0), 1e-6);
+		assertEquals(6.0, (Double) table.get("centroid Y in um", 0), 1e-6);
+		assertEquals(2.0, (Double) table.get("min X in um", 0), 1e-6);
+		assertEquals(9.0, (Double) table.get("max Y in um", 0), 1e-6);
+	}
+
 	public static void main(String... args) {
 		new MeasureConnectedComponentsTest().test();
 	}
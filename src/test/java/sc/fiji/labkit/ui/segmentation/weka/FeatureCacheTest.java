@@ -0,0 +1,161 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.segmentation.weka;
+
+import net.imagej.ImgPlus;
+import net.imglib2.cache.img.DiskCachedCellImg;
+import net.imglib2.cache.img.DiskCachedCellImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import org.junit.Test;
+import sc.fiji.labkit.pixel_classification.pixel_feature.filter.GroupedFeatures;
+import sc.fiji.labkit.pixel_classification.pixel_feature.filter.SingleFeatures;
+import sc.fiji.labkit.pixel_classification.pixel_feature.settings.FeatureSettings;
+import sc.fiji.labkit.pixel_classification.pixel_feature.settings.GlobalSettings;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests {@link FeatureCache}.
+ */
+public class FeatureCacheTest {
+
+	private final ImgPlus<?> image = new ImgPlus<>(ArrayImgs.floats(10, 10));
+
+	private final FeatureSettings settings = new FeatureSettings(GlobalSettings
+		.default2d().build(), SingleFeatures.identity());
+
+	private final AtomicInteger created = new AtomicInteger();
+
+	@Test
+	public void testReuse() {
+		FeatureCache cache = new FeatureCache(1 << 20);
+		DiskCachedCellImg<FloatType, ?> a = use(cache, settings, 0);
+		DiskCachedCellImg<FloatType, ?> b = use(cache, settings, 0);
+		assertSame(a, b);
+		assertEquals(1, created.get());
+	}
+
+	@Test
+	public void testDifferentKeys() {
+		FeatureCache cache = new FeatureCache(1 << 20);
+		use(cache, settings, 0);
+		use(cache, settings, 1);
+		use(cache, new FeatureSettings(GlobalSettings.default2d().build(),
+			GroupedFeatures.gauss()), 0);
+		assertEquals(3, created.get());
+	}
+
+	@Test
+	public void testSizeLimit() {
+		FeatureCache cache = new FeatureCache(0);
+		use(cache, settings, 0);
+		use(cache, settings, 0);
+		assertEquals(2, created.get());
+	}
+
+	@Test
+	public void testSizeOfComputedCells() {
+		// NB: The feature images are 400 bytes large, but only the computed
+		// cells count.
+		FeatureCache cache = new FeatureCache(100);
+		use(cache, settings, 0);
+		use(cache, settings, 0);
+		assertEquals(1, created.get());
+		cache.use(this, image, Collections.singletonList(0), settings, false,
+			this::createFeatures, features -> features.firstElement().get());
+		use(cache, settings, 0);
+		assertEquals(2, created.get());
+	}
+
+	@Test
+	public void testPinnedImagesAreNotShutDown() {
+		FeatureCache cache = new FeatureCache(1 << 20);
+		cache.use(this, image, Collections.singletonList(0), settings, false,
+			this::createFeatures, features -> {
+				cache.clear();
+				cache.setMaxSizeInBytes(0);
+				// NB: The image is still in use, computing a cell must work.
+				assertEquals(0, features.firstElement().get(), 0);
+			});
+		use(cache, settings, 0);
+		assertEquals(2, created.get());
+	}
+
+	@Test
+	public void testRemoveAllKeepsImagesOfOtherOwners() {
+		FeatureCache cache = new FeatureCache(1 << 20);
+		Object other = new Object();
+		use(cache, settings, 0);
+		cache.use(other, image, Collections.singletonList(0), settings, false,
+			this::createFeatures, features -> {});
+		cache.removeAll(other, settings);
+		use(cache, settings, 0);
+		assertEquals(1, created.get());
+		cache.removeAll(this, settings);
+		use(cache, settings, 0);
+		assertEquals(2, created.get());
+	}
+
+	@Test
+	public void testClear() {
+		FeatureCache cache = new FeatureCache(1 << 20);
+		use(cache, settings, 0);
+		cache.clear();
+		use(cache, settings, 0);
+		assertEquals(2, created.get());
+	}
+
+	private DiskCachedCellImg<FloatType, ?> use(FeatureCache cache,
+		FeatureSettings settings, int slice)
+	{
+		List<DiskCachedCellImg<FloatType, ?>> result = new ArrayList<>();
+		cache.use(this, image, Collections.singletonList(slice), settings, false,
+			this::createFeatures, result::add);
+		return result.get(0);
+	}
+
+	private DiskCachedCellImg<FloatType, ?> createFeatures(
+		LongConsumer computedBytes)
+	{
+		created.incrementAndGet();
+		return new DiskCachedCellImgFactory<>(new FloatType()).create(new long[] {
+			10, 10, 1 }, cell -> computedBytes.accept(Intervals.numElements(cell) *
+				Float.BYTES));
+	}
+}
@@ -0,0 +1,86 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.utils;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.parallel.Parallelization;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.view.Views;
+import org.junit.Test;
+import sc.fiji.labkit.ui.utils.progress.DummyProgressWriter;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class CellProcessorTest {
+
+	@Test
+	public void testAllCellsProcessed() {
+		Img<IntType> image = ArrayImgs.ints(10, 10);
+		ParallelUtils.applyOperationOnCells(image, new int[] { 3, 3 },
+			cell -> Views.iterable(cell).forEach(pixel -> pixel.inc()),
+			new DummyProgressWriter(), 4);
+		for (IntType pixel : image)
+			assertEquals(1, pixel.get());
+	}
+
+	@Test
+	public void testCancellationStopsAllWorkers() {
+		AtomicInteger counter = new AtomicInteger();
+		try {
+			ParallelUtils.applyOperationOnCells(ArrayImgs.ints(10, 10), new int[] { 1,
+				1 }, cell -> {
+					if (counter.incrementAndGet() == 3)
+						throw new CancellationException();
+				}, new DummyProgressWriter(), 1);
+			fail();
+		}
+		catch (CancellationException e) {
+			assertEquals(3, counter.get());
+		}
+	}
+
+	@Test
+	public void testRemainingThreadsAreUsedWithinCells() {
+		AtomicInteger parallelism = new AtomicInteger();
+		ParallelUtils.applyOperationOnCells(ArrayImgs.ints(10, 10), new int[] { 10,
+			10 }, cell -> parallelism.set(Parallelization.getTaskExecutor()
+				.getParallelism()), new DummyProgressWriter(), 4);
+		assertEquals(4, parallelism.get());
+		ParallelUtils.applyOperationOnCells(ArrayImgs.ints(10, 10), new int[] { 1,
+			1 }, cell -> parallelism.set(Parallelization.getTaskExecutor()
+				.getParallelism()), new DummyProgressWriter(), 4);
+		assertEquals(1, parallelism.get());
+	}
+}
@@ -0,0 +1,70 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.utils;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.img.cell.CellGrid;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FocusedCellQueueTest {
+
+	private final CellGrid grid = new CellGrid(new long[] { 100, 10 },
+		new int[] { 10, 10 });
+
+	@Test
+	public void testEachCellExactlyOnce() {
+		FocusedCellQueue queue = new FocusedCellQueue(grid, () -> null);
+		Set<Integer> indices = new HashSet<>();
+		for (int i = queue.next(); i >= 0; i = queue.next())
+			assertTrue(indices.add(i));
+		assertEquals(10, indices.size());
+	}
+
+	@Test
+	public void testFocusedCellsFirst() {
+		AtomicReference<Interval> focus = new AtomicReference<>(
+			FinalInterval.createMinSize(55, 0, 1, 1));
+		FocusedCellQueue queue = new FocusedCellQueue(grid, focus::get);
+		assertEquals(5, queue.next());
+		focus.set(FinalInterval.createMinSize(75, 0, 1, 1));
+		assertEquals(7, queue.next());
+		// the focus moved to the right, cells on the right are preferred
+		assertEquals(8, queue.next());
+		assertEquals(6, queue.next());
+	}
+}
@@ -0,0 +1,188 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.utils;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link MemoryMappedIntType}.
+ */
+public class MemoryMappedIntTypeTest {
+
+	private final Interval interval = Intervals.createMinSize(-5, 3, 0, 20, 10,
+		4);
+
+	@Test
+	public void testNewImageIsZero() throws IOException {
+		File file = tempFile();
+		try (MemoryMappedIntType image = MemoryMappedIntType.create(file,
+			interval))
+		{
+			assertTrue(Intervals.equals(interval, image));
+			RandomAccess<IntType> ra = image.randomAccess();
+			ra.setPosition(new long[] { 14, 12, 3 });
+			assertEquals(0, ra.get().get());
+		}
+	}
+
+	@Test
+	public void testSetAndGet() throws IOException {
+		File file = tempFile();
+		try (MemoryMappedIntType image = MemoryMappedIntType.create(file,
+			interval))
+		{
+			RandomAccess<IntType> ra = image.randomAccess();
+			ra.setPosition(new long[] { -5, 3, 0 });
+			ra.get().set(42);
+			ra.setPosition(new long[] { 14, 12, 3 });
+			ra.get().set(-7);
+			RandomAccess<IntType> ra2 = image.randomAccess();
+			ra2.setPosition(new long[] { -5, 3, 0 });
+			assertEquals(42, ra2.get().get());
+			ra2.setPosition(new long[] { 14, 12, 3 });
+			assertEquals(-7, ra2.get().get());
+			ra2.setPosition(new long[] { -4, 3, 0 });
+			assertEquals(0, ra2.get().get());
+		}
+	}
+
+	@Test
+	public void testReopen() throws IOException {
+		File file = tempFile();
+		try (MemoryMappedIntType image = MemoryMappedIntType.create(file,
+			interval))
+		{
+			RandomAccess<IntType> ra = image.randomAccess();
+			ra.setPosition(new long[] { 1, 5, 2 });
+			ra.get().set(3);
+		}
+		try (MemoryMappedIntType image = MemoryMappedIntType.open(file)) {
+			assertTrue(Intervals.equals(interval, image));
+			RandomAccess<IntType> ra = image.randomAccess();
+			ra.setPosition(new long[] { 1, 5, 2 });
+			assertEquals(3, ra.get().get());
+		}
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testAccessAfterClose() throws IOException {
+		File file = tempFile();
+		MemoryMappedIntType image = MemoryMappedIntType.create(file, interval);
+		RandomAccess<IntType> ra = image.randomAccess();
+		image.close();
+		ra.setPosition(new long[] { 1, 5, 2 });
+		ra.get().get();
+	}
+
+	@Test
+	public void testWriteToAndCopyOnWrite() throws IOException {
+		File file = tempFile();
+		File snapshot = tempFile();
+		try (MemoryMappedIntType image = MemoryMappedIntType.create(file,
+			interval))
+		{
+			RandomAccess<IntType> ra = image.randomAccess();
+			ra.setPosition(new long[] { 1, 5, 2 });
+			ra.get().set(3);
+			image.writeTo(snapshot);
+			ra.get().set(4);
+		}
+		try (MemoryMappedIntType image = MemoryMappedIntType.openCopyOnWrite(
+			snapshot))
+		{
+			RandomAccess<IntType> ra = image.randomAccess();
+			ra.setPosition(new long[] { 1, 5, 2 });
+			assertEquals(3, ra.get().get());
+			ra.get().set(5);
+		}
+		try (MemoryMappedIntType image = MemoryMappedIntType.open(snapshot)) {
+			RandomAccess<IntType> ra = image.randomAccess();
+			ra.setPosition(new long[] { 1, 5, 2 });
+			assertEquals(3, ra.get().get());
+		}
+	}
+
+	@Test
+	public void testDeltaSnapshot() throws IOException {
+		File file = tempFile();
+		File full = tempFile();
+		File delta = tempFile();
+		try (MemoryMappedIntType image = MemoryMappedIntType.create(file,
+			interval))
+		{
+			RandomAccess<IntType> ra = image.randomAccess();
+			ra.setPosition(new long[] { 1, 5, 2 });
+			ra.get().set(3);
+			image.writeTo(full);
+			ra.setPosition(new long[] { 2, 5, 2 });
+			ra.get().set(4);
+			image.writeTo(delta);
+		}
+		assertEquals(Arrays.asList(delta.getAbsoluteFile(), full
+			.getAbsoluteFile()), MemoryMappedIntType.snapshotFiles(delta));
+		try (MemoryMappedIntType image = MemoryMappedIntType.openCopyOnWrite(
+			delta))
+		{
+			RandomAccess<IntType> ra = image.randomAccess();
+			ra.setPosition(new long[] { 1, 5, 2 });
+			assertEquals(3, ra.get().get());
+			ra.setPosition(new long[] { 2, 5, 2 });
+			assertEquals(4, ra.get().get());
+		}
+		try (MemoryMappedIntType image = MemoryMappedIntType.open(full)) {
+			RandomAccess<IntType> ra = image.randomAccess();
+			ra.setPosition(new long[] { 2, 5, 2 });
+			assertEquals(0, ra.get().get());
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testOpenInvalidFile() throws IOException {
+		File file = tempFile();
+		MemoryMappedIntType.open(file).close();
+	}
+
+	private File tempFile() throws IOException {
+		File file = File.createTempFile("test-", ".index");
+		file.deleteOnExit();
+		return file;
+	}
+}
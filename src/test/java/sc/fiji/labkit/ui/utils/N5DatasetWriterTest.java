@@ -0,0 +1,113 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.utils;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.junit.Test;
+import sc.fiji.labkit.ui.utils.progress.DummyProgressWriter;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class N5DatasetWriterTest {
+
+	@Test
+	public void testWriteBlocks() throws IOException {
+		File directory = Files.createTempDirectory("labkit-test-n5").toFile();
+		Img<UnsignedByteType> image = ArrayImgs.unsignedBytes(new byte[] {
+			1, 2, 3,
+			4, 5, 6
+		}, 3, 2);
+		N5DatasetWriter<UnsignedByteType> writer = new N5DatasetWriter<>(
+			directory, new long[] { 3, 2 }, new int[] { 2, 2 },
+			new UnsignedByteType());
+		writer.writeBlock(Views.interval(image, Intervals.createMinSize(0, 0, 2,
+			2)));
+		writer.writeBlock(Views.interval(image, Intervals.createMinSize(2, 0, 1,
+			2)));
+		JsonObject attributes = new JsonParser().parse(new String(Files
+			.readAllBytes(new File(directory, "attributes.json").toPath()),
+			StandardCharsets.UTF_8)).getAsJsonObject();
+		assertEquals("uint8", attributes.get("dataType").getAsString());
+		assertEquals(3, attributes.get("dimensions").getAsJsonArray().get(0)
+			.getAsInt());
+		assertArrayEquals(new byte[] { 1, 2, 4, 5 }, readBlock(new File(
+			directory, "0/0"), 2, 2));
+		assertArrayEquals(new byte[] { 3, 6 }, readBlock(new File(directory,
+			"1/0"), 1, 2));
+	}
+
+	@Test
+	public void testWriteFloatImage() throws IOException {
+		File directory = Files.createTempDirectory("labkit-test-n5").toFile();
+		Img<FloatType> image = ArrayImgs.floats(new float[] { 0.25f, 0.5f, 0.75f },
+			3, 1);
+		N5DatasetWriter.writeImage(image, directory, new int[] { 2, 1 },
+			new DummyProgressWriter());
+		byte[] bytes = readBlock(new File(directory, "1/0"), 1, 1, 4);
+		assertEquals(0.75f, ByteBuffer.wrap(bytes).getFloat(), 0);
+	}
+
+	private static byte[] readBlock(File file, int sizeX, int sizeY)
+		throws IOException
+	{
+		return readBlock(file, sizeX, sizeY, 1);
+	}
+
+	private static byte[] readBlock(File file, int sizeX, int sizeY,
+		int bytesPerPixel) throws IOException
+	{
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			assertEquals(0, in.readShort());
+			assertEquals(2, in.readShort());
+			assertEquals(sizeX, in.readInt());
+			assertEquals(sizeY, in.readInt());
+			byte[] data = new byte[sizeX * sizeY * bytesPerPixel];
+			new DataInputStream(new GZIPInputStream(in)).readFully(data);
+			return data;
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.utils.sparse;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkedSparseRandomAccessIntTypeTest {
+
+	private final Interval interval = Intervals.createMinSize(3, -5, 6, 80, 40,
+		20);
+
+	@Test
+	public void testSetAndGet() {
+		ChunkedSparseRandomAccessIntType image =
+			new ChunkedSparseRandomAccessIntType(interval);
+		RandomAccess<IntType> ra = image.randomAccess();
+		ra.setPosition(new long[] { 50, 10, 20 });
+		assertEquals(0, ra.get().getInteger());
+		ra.get().setInteger(42);
+		RandomAccess<IntType> ra2 = image.randomAccess();
+		ra2.setPosition(new long[] { 50, 10, 20 });
+		assertEquals(42, ra2.get().getInteger());
+	}
+
+	@Test
+	public void testNoEntryValue() {
+		int noEntryValue = -1;
+		ChunkedSparseRandomAccessIntType image =
+			new ChunkedSparseRandomAccessIntType(interval, noEntryValue);
+		assertEquals(noEntryValue, image.randomAccess().get().getInteger());
+		Views.iterable(image).forEach(x -> x.setInteger(noEntryValue));
+		assertFalse(image.sparsityPattern().cursor().hasNext());
+	}
+
+	@Test
+	public void testDenseBlockWithLargeValues() {
+		ChunkedSparseRandomAccessIntType image =
+			new ChunkedSparseRandomAccessIntType(interval);
+		int[] values = { 1, 255, 256, 70000, Integer.MAX_VALUE, -7 };
+		int i = 0;
+		for (IntType pixel : Views.iterable(image))
+			pixel.setInteger(values[i++ % values.length]);
+		i = 0;
+		for (IntType pixel : Views.iterable(image))
+			assertEquals(values[i++ % values.length], pixel.getInteger());
+		assertEquals(Intervals.numElements(interval), image.sparsityPattern()
+			.size());
+	}
+
+	@Test
+	public void testSparsityCursor() {
+		ChunkedSparseRandomAccessIntType image =
+			new ChunkedSparseRandomAccessIntType(interval);
+		long[] a = { 4, -5, 6 };
+		long[] b = { 70, 30, 24 };
+		setValue(image, a, 1);
+		setValue(image, b, 2);
+		setValue(image, new long[] { 40, 20, 10 }, 3);
+		setValue(image, new long[] { 40, 20, 10 }, 0);
+		assertEquals(2, image.sparsityPattern().size());
+		Cursor<IntType> cursor = image.sparseCursor();
+		long[] position = new long[3];
+		assertTrue(cursor.hasNext());
+		assertEquals(1, cursor.next().getInteger());
+		cursor.localize(position);
+		assertArrayEquals(a, position);
+		assertTrue(cursor.hasNext());
+		assertEquals(2, cursor.next().getInteger());
+		cursor.localize(position);
+		assertArrayEquals(b, position);
+		assertFalse(cursor.hasNext());
+	}
+
+	@Test
+	public void testClear() {
+		ChunkedSparseRandomAccessIntType image =
+			new ChunkedSparseRandomAccessIntType(interval);
+		RandomAccess<IntType> ra = image.randomAccess();
+		ra.setPosition(new long[] { 4, -5, 6 });
+		ra.get().setInteger(5);
+		image.clear();
+		assertEquals(0, ra.get().getInteger());
+		assertEquals(0, image.numBlocks());
+		ra.get().setInteger(6);
+		assertEquals(1, image.numBlocks());
+		assertEquals(1, image.sparsityPattern().size());
+	}
+
+	private void setValue(ChunkedSparseRandomAccessIntType image, long[] position,
+		int value)
+	{
+		RandomAccess<IntType> ra = image.randomAccess();
+		ra.setPosition(position);
+		ra.get().setInteger(value);
+	}
+}
@@ -43,6 +43,9 @@ import sc.fiji.labkit.ui.utils.HDF5Saver;
 import java.io.File;
 import java.io.IOException;
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 public class HDF5SaverTest {
 
 	@Test
@@ -87,6 +90,24 @@ public class HDF5SaverTest {
 		ImgLib2Assert.assertImageEquals(image, openImage(xml), Object::equals);
 	}
 
+	@Test
+	public void testResumePartitionedWriting() throws IOException {
+		File xml = File.createTempFile("test", ".xml");
+		Img<UnsignedShortType> image = RandomImgs.seed(42).nextImage(
+			new UnsignedShortType(), 2, 3, 4, 5);
+		HDF5Saver saver = new HDF5Saver(image, xml.getAbsolutePath());
+		saver.setPartitions(1, 1);
+		saver.writePartition(0);
+		saver.writePartition(1);
+		assertTrue(saver.isPartitionComplete(1));
+		assertFalse(saver.isPartitionComplete(2));
+		saver.setResume(true);
+		saver.writeAll();
+		for (int i = 0; i < saver.numberOfPartitions(); i++)
+			assertTrue(saver.isPartitionComplete(i));
+		ImgLib2Assert.assertImageEquals(image, openImage(xml), Object::equals);
+	}
+
 	private RandomAccessibleInterval<? extends NumericType<?>> openImage(
 		File xml)
 	{
@@ -0,0 +1,137 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.utils.sparse;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RunLengthRegionTest {
+
+	private final Interval interval = Intervals.createMinSize(-1, 2, 4, 3);
+
+	private final IntervalIndexer2 indexer = new IntervalIndexer2(interval);
+
+	@Test
+	public void testRuns() {
+		RunLengthRegion region = build(new long[] { 0, 2 }, new long[] { -1, 3 },
+			new long[] { 1, 2 }, new long[] { 2, 2 }, new long[] { -1, 3 });
+		assertEquals(2, region.numRuns());
+		assertEquals(3, region.size());
+		List<String> runs = new ArrayList<>();
+		region.forEachRun((start, length) -> runs.add(start.getLongPosition(0) +
+			"," + start.getLongPosition(1) + ":" + length));
+		assertEquals(Arrays.asList("0,2:3", "-1,3:1"), runs);
+	}
+
+	@Test
+	public void testRunsDontSpanRows() {
+		RunLengthRegion region = build(new long[] { 2, 2 }, new long[] { -1, 3 });
+		assertEquals(2, region.numRuns());
+	}
+
+	@Test
+	public void testCursor() {
+		RunLengthRegion region = build(new long[] { 0, 2 }, new long[] { 1, 2 },
+			new long[] { 2, 4 });
+		Cursor<Void> cursor = region.cursor();
+		long[] position = new long[2];
+		List<String> positions = new ArrayList<>();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			cursor.localize(position);
+			positions.add(Arrays.toString(position));
+		}
+		assertEquals(Arrays.asList("[0, 2]", "[1, 2]", "[2, 4]"), positions);
+	}
+
+	@Test
+	public void testRandomAccess() {
+		RunLengthRegion region = build(new long[] { 0, 2 }, new long[] { 1, 2 });
+		RandomAccess<BitType> ra = region.randomAccess();
+		ra.setPosition(new long[] { 1, 2 });
+		assertTrue(ra.get().get());
+		ra.setPosition(new long[] { 2, 2 });
+		assertFalse(ra.get().get());
+		ra.setPosition(new long[] { -1, 2 });
+		assertFalse(ra.get().get());
+	}
+
+	@Test
+	public void testBoundingBox() {
+		RunLengthRegion region = build(new long[] { 0, 3 }, new long[] { 1, 3 },
+			new long[] { -1, 4 });
+		Interval box = region.boundingBox();
+		assertTrue(Intervals.equals(new FinalInterval(new long[] { -1, 3 },
+			new long[] { 1, 4 }), box));
+		assertNull(build().boundingBox());
+	}
+
+	@Test
+	public void testForEachPixel() {
+		RunLengthRegion region = build(new long[] { 0, 2 }, new long[] { 1, 2 },
+			new long[] { 2, 4 });
+		Img<UnsignedByteType> image = ArrayImgs.unsignedBytes(4, 3);
+		region.forEachPixel(Views.translate(image, -1, 2),
+			UnsignedByteType::setOne);
+		byte[] expected = { 0, 1, 1, 0, 0, 0, 0, 0, 0, 0, 0, 1 };
+		byte[] actual = new byte[12];
+		int i = 0;
+		for (UnsignedByteType pixel : image)
+			actual[i++] = (byte) pixel.get();
+		assertArrayEquals(expected, actual);
+	}
+
+	private RunLengthRegion build(long[]... positions) {
+		RunLengthRegion.Builder builder = new RunLengthRegion.Builder(interval);
+		for (long[] position : positions)
+			builder.add(indexer.positionToIndex(Point.wrap(position)));
+		return builder.build();
+	}
+}
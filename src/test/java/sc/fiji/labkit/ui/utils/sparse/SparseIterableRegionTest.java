@@ -29,11 +29,18 @@
 
 package sc.fiji.labkit.ui.utils.sparse;
 
+import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
+import net.imglib2.Point;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.view.Views;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class SparseIterableRegionTest {
@@ -53,4 +60,82 @@ public class SparseIterableRegionTest {
 		Views.iterable(region).forEach(x -> assertTrue(x.get()));
 	}
 
+	@Test
+	public void testCursorAfterModification() {
+		SparseIterableRegion region = new SparseIterableRegion(new FinalInterval(
+			10, 10));
+		region.add(new Point(2, 3));
+		region.add(new Point(5, 3));
+		assertEquals(Arrays.asList("[2, 3]", "[5, 3]"), positions(region.cursor()));
+		region.add(new Point(1, 1));
+		region.remove(new Point(5, 3));
+		region.add(new Point(9, 9));
+		assertEquals(Arrays.asList("[1, 1]", "[2, 3]", "[9, 9]"), positions(region
+			.cursor()));
+	}
+
+	@Test
+	public void testRemoveAndAddAgain() {
+		SparseIterableRegion region = new SparseIterableRegion(new FinalInterval(
+			10, 10));
+		region.add(new Point(2, 3));
+		region.add(new Point(5, 3));
+		Cursor<Void> before = region.cursor();
+		region.remove(new Point(5, 3));
+		region.remove(new Point(2, 3));
+		region.add(new Point(5, 3));
+		region.add(new Point(1, 1));
+		region.add(new Point(5, 3));
+		assertEquals(Arrays.asList("[1, 1]", "[5, 3]"), positions(region.cursor()));
+		assertEquals(2, region.size());
+		assertEquals(Arrays.asList("[2, 3]", "[5, 3]"), positions(before));
+	}
+
+	@Test
+	public void testConsecutivePixels() {
+		SparseIterableRegion region = new SparseIterableRegion(new FinalInterval(
+			3, 3));
+		region.add(new Point(1, 0));
+		region.add(new Point(2, 0));
+		region.add(new Point(0, 1));
+		region.add(new Point(1, 1));
+		assertEquals(Arrays.asList("[1, 0]", "[2, 0]", "[0, 1]", "[1, 1]"), positions(
+			region.cursor()));
+	}
+
+	@Test
+	public void testCursorCopy() {
+		SparseIterableRegion region = new SparseIterableRegion(new FinalInterval(
+			10, 10));
+		region.add(new Point(2, 3));
+		region.add(new Point(5, 3));
+		Cursor<Void> cursor = region.cursor();
+		cursor.fwd();
+		Cursor<Void> copy = cursor.copy();
+		assertEquals(Arrays.asList("[5, 3]"), positions(cursor));
+		assertEquals(Arrays.asList("[5, 3]"), positions(copy));
+	}
+
+	@Test
+	public void testSplitCursor() {
+		SparseIterableRegion region = new SparseIterableRegion(new FinalInterval(
+			10, 10));
+		for (int i = 0; i < 7; i++)
+			region.add(new Point(i, i));
+		List<String> all = new ArrayList<>();
+		for (Cursor<Void> cursor : region.splitCursor(3))
+			all.addAll(positions(cursor));
+		assertEquals(positions(region.cursor()), all);
+	}
+
+	private List<String> positions(Cursor<?> cursor) {
+		List<String> result = new ArrayList<>();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			long[] position = new long[cursor.numDimensions()];
+			cursor.localize(position);
+			result.add(Arrays.toString(position));
+		}
+		return result;
+	}
 }
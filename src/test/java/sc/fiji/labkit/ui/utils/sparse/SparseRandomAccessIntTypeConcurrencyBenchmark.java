@@ -0,0 +1,143 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2023 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.utils.sparse;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import sc.fiji.labkit.ui.labeling.Label;
+import sc.fiji.labkit.ui.labeling.Labeling;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how well {@link SparseRandomAccessIntType} scales, when multiple
+ * threads write to different regions of the image. {@link #fillLabeling()}
+ * does the same with a {@link PixelChangeListener} attached to the image.
+ *
+ * @author Matthias Arzt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SparseRandomAccessIntTypeConcurrencyBenchmark {
+
+	@Param({ "1", "4", "16" })
+	private int numThreads;
+
+	private final SparseRandomAccessIntType sparse = new SparseRandomAccessIntType(
+		Intervals.createMinSize(0, 0, 0, 100, 100, 96));
+
+	private ExecutorService executor;
+
+	private Labeling labeling;
+
+	@Setup
+	public void setup() {
+		executor = Executors.newFixedThreadPool(numThreads);
+	}
+
+	@Setup(Level.Invocation)
+	public void setupLabeling() {
+		labeling = Labeling.createEmpty(Collections.singletonList("foreground"),
+			sparse);
+	}
+
+	@TearDown
+	public void tearDown() {
+		executor.shutdown();
+	}
+
+	@Benchmark
+	public void fillSparse() throws ExecutionException, InterruptedException {
+		sparse.clear();
+		long depth = sparse.dimension(2) / numThreads;
+		List<Future<?>> futures = new ArrayList<>();
+		for (int i = 0; i < numThreads; i++) {
+			RandomAccessibleInterval<IntType> slab = Views.interval(sparse,
+				Intervals.createMinSize(0, 0, i * depth, 100, 100, depth));
+			futures.add(executor.submit(() -> {
+				for (IntegerType<?> pixel : Views.iterable(slab))
+					pixel.setOne();
+			}));
+		}
+		for (Future<?> future : futures)
+			future.get();
+	}
+
+	/**
+	 * Same as {@link #fillSparse()}, but the pixels are written to a
+	 * {@link Labeling}. The labeling listens to the changes of its sparse index
+	 * image, to keep its label index up to date.
+	 */
+	@Benchmark
+	public void fillLabeling() throws ExecutionException, InterruptedException {
+		Label label = labeling.getLabel("foreground");
+		long depth = labeling.dimension(2) / numThreads;
+		List<Future<?>> futures = new ArrayList<>();
+		for (int i = 0; i < numThreads; i++) {
+			RandomAccessibleInterval<LabelingType<Label>> slab = Views.interval(
+				labeling, Intervals.createMinSize(0, 0, i * depth, 100, 100, depth));
+			futures.add(executor.submit(() -> {
+				for (LabelingType<Label> pixel : Views.iterable(slab))
+					pixel.add(label);
+			}));
+		}
+		for (Future<?> future : futures)
+			future.get();
+	}
+
+	public static void main(final String... args) throws RunnerException {
+		final Options opt = new OptionsBuilder()
+			.include(SparseRandomAccessIntTypeConcurrencyBenchmark.class
+				.getSimpleName())
+			.build();
+		new Runner(opt).run();
+	}
+
+}
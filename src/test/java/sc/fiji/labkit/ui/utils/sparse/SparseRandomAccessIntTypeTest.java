@@ -30,11 +30,19 @@
 package sc.fiji.labkit.ui.utils.sparse;
 
 import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.roi.IterableRegion;
+import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 import org.junit.Test;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 
 public class SparseRandomAccessIntTypeTest {
 
@@ -51,4 +59,52 @@ public class SparseRandomAccessIntTypeTest {
 		// test
 		assertFalse(image.sparsityPattern().cursor().hasNext());
 	}
+
+	@Test
+	public void testConcurrentWrites() {
+		Interval big = Intervals.createMinSize(0, 0, 0, 100, 100, 50);
+		SparseRandomAccessIntType image = new SparseRandomAccessIntType(big);
+		LoopBuilder.setImages(Views.interval(image, big)).multiThreaded()
+			.forEachPixel(IntType::setOne);
+		assertEquals(Intervals.numElements(big), image.sparsityPattern().size());
+		for (IntType pixel : Views.iterable(image))
+			assertEquals(1, pixel.getInteger());
+	}
+
+	@Test
+	public void testSparsityPatternIsUpdatedOnWrite() {
+		SparseRandomAccessIntType image = new SparseRandomAccessIntType(interval);
+		RandomAccess<IntType> ra = image.randomAccess();
+		ra.setPosition(new long[] { 4, -3, 7 });
+		ra.get().set(2);
+		IterableRegion<?> pattern = image.sparsityPattern();
+		assertSame(pattern, image.sparsityPattern());
+		ra.get().set(3);
+		assertSame(pattern, image.sparsityPattern());
+		ra.setPosition(new long[] { 5, -3, 7 });
+		ra.get().set(1);
+		assertEquals(2, image.sparsityPattern().size());
+		ra.get().set(0);
+		assertEquals(1, image.sparsityPattern().size());
+		assertEquals(1, pattern.size());
+	}
+
+	@Test
+	public void testMultiplePixelChangeListeners() {
+		SparseRandomAccessIntType image = new SparseRandomAccessIntType(interval);
+		AtomicInteger first = new AtomicInteger();
+		AtomicInteger second = new AtomicInteger();
+		PixelChangeListener firstListener = (position, oldValue,
+			newValue) -> first.addAndGet(newValue - oldValue);
+		image.addPixelChangeListener(firstListener);
+		image.addPixelChangeListener((position, oldValue, newValue) -> second
+			.addAndGet(newValue - oldValue));
+		RandomAccess<IntType> ra = image.randomAccess();
+		ra.setPosition(Intervals.minAsLongArray(interval));
+		ra.get().set(3);
+		image.removePixelChangeListener(firstListener);
+		ra.get().set(5);
+		assertEquals(3, first.get());
+		assertEquals(5, second.get());
+	}
 }